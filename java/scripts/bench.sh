@@ -0,0 +1,28 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+# generate BENCH_USERS synthetic users sending BENCH_MESSAGES_PER_USER messages
+# on average (5 million by default) and load them into a fresh database,
+# unless BENCH_DATA points to a dataset that is already loaded
+if [ -z "$BENCH_DATA" ]; then
+  BENCH_DATA=$DIR/../../data/bench
+  java -Dprofnetwork.gen.messages=${BENCH_MESSAGES_PER_USER:-50} -cp $CP DataGenerator $BENCH_DATA ${BENCH_USERS:-100000} ${BENCH_SEED:-1}
+  psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/create_tables.sql
+  psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/create_index.sql
+  psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/triggers.sql
+  java -cp $CP ProfNetwork $DB_NAME $PGPORT $USER --load $BENCH_DATA
+  psql -p $PGPORT $DB_NAME -c "VACUUM ANALYZE"
+fi
+
+# run the benchmarks, all of them or the ones named as arguments, e.g.
+# MessageSearch.search MessageSearch.scan for full text search against ILIKE
+java -Dprofnetwork.bench.warmup=${BENCH_WARMUP:-5} -Dprofnetwork.bench.measure=${BENCH_MEASURE:-10} \
+     -Dprofnetwork.bench.threads=${BENCH_THREADS:-1} \
+     -cp $CP ProfNetworkBench $DB_NAME $PGPORT $USER "$@"
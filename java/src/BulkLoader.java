@@ -0,0 +1,603 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads the CSV files of the data directory into the tables.
+ * USR is loaded first, then its child tables in parallel, one writer
+ * thread and pooled connection per table.  Files are read through memory
+ * mapped windows by a small CSV parser that reuses one line buffer.  Rows
+ * are written as multi-row INSERTs of BATCH_ROWS rows, committed every
+ * COMMIT_ROWS rows.
+ *
+ * Messages go to the message shard of their conversation (MessageShards)
+ * and get a new msgId from that shard's sequence, since the ids of the
+ * file are only unique within it and would mostly fall outside the
+ * shard's range.  A shard holds at most 1 &lt;&lt; ID_BITS messages.
+ *
+ * Rows that cannot be loaded go to a reject file with the reason instead
+ * of aborting the load.  These include a wrong field count, a bad date, a
+ * value too long for its column, or a userId missing from USR, checked
+ * against a sorted array of the user ids.  Duplicate keys are left to
+ * the primary keys: a batch they refuse is written again row by row.
+ * Dates are accepted as yyyy/mm/dd or yyyy-mm-dd and written as
+ * yyyy-mm-dd.
+ *
+ */
+public class BulkLoader {
+
+   static final int TEXT = 0;
+   static final int DATE = 1;
+   static final int INT = 2;
+   static final int TIMESTAMP = 3;
+
+   // rows per multi-row INSERT, and rows per transaction.
+   static final int BATCH_ROWS = Integer.getInteger("profnetwork.load.batch", 512);
+   static final int COMMIT_ROWS = Integer.getInteger("profnetwork.load.commit", 50000);
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * One column of a loaded table.
+    */
+   static final class Column {
+      final String name;
+      final int kind;
+      // longest value allowed, 0 for no limit.
+      final int width;
+      final boolean notNull;
+      // SQL written for an empty value, null to write NULL.
+      final String fill;
+
+      Column (String name, int kind, int width, boolean notNull) {
+         this(name, kind, width, notNull, null);
+      }
+
+      Column (String name, int kind, int width, boolean notNull, String fill) {
+         this.name = name;
+         this.kind = kind;
+         this.width = width;
+         this.notNull = notNull;
+         this.fill = fill;
+      }
+   }//end Column
+
+   /**
+    * A table, the file it is loaded from and the columns that reference
+    * USR.
+    */
+   static final class Table {
+      final String name;
+      final String file;
+      final Column[] columns;
+      final int[] users;
+
+      Table (String name, String file, Column[] columns, int[] users) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.users = users;
+      }
+   }//end Table
+
+   static final Table USR = new Table("usr", "usr.csv", new Column[]{
+      new Column("userId", TEXT, 50, true), new Column("password", TEXT, 20, true),
+      new Column("email", TEXT, 0, true), new Column("name", TEXT, 50, false),
+      new Column("dateOfBirth", DATE, 0, false) }, new int[0]);
+
+   // the tables referencing USR, loaded in parallel once USR is in.
+   static final Table[] CHILDREN = {
+      new Table("work_expr", "work_expr.csv", new Column[]{
+         new Column("userId", TEXT, 50, true), new Column("company", TEXT, 50, true),
+         new Column("role", TEXT, 50, true), new Column("location", TEXT, 50, false),
+         new Column("startDate", DATE, 0, true), new Column("endDate", DATE, 0, false) },
+         new int[]{ 0 }),
+      new Table("educational_details", "educational_details.csv", new Column[]{
+         new Column("userId", TEXT, 50, true), new Column("instituitionName", TEXT, 50, true),
+         new Column("major", TEXT, 50, true), new Column("degree", TEXT, 50, true),
+         new Column("startdate", DATE, 0, false), new Column("enddate", DATE, 0, false) },
+         new int[]{ 0 }),
+      new Table("connection_usr", "connection_usr.csv", new Column[]{
+         new Column("userId", TEXT, 50, true), new Column("connectionId", TEXT, 50, true),
+         new Column("status", TEXT, 30, true) },
+         new int[]{ 0, 1 }),
+      new Table("message", "message.csv", new Column[]{
+         new Column("msgId", INT, 0, true), new Column("senderId", TEXT, 50, true),
+         new Column("receiverId", TEXT, 50, true), new Column("contents", TEXT, 500, true),
+         // the defaults of incr_message_num, which a partitioned MESSAGE
+         // only has as column defaults, and those skip an explicit NULL.
+         new Column("sendTime", TIMESTAMP, 0, false, "current_timestamp"),
+         new Column("deleteStatus", INT, 0, false, "0"),
+         new Column("status", TEXT, 30, true) },
+         new int[]{ 1, 2 })
+   };
+
+   /**
+    * What loading one table did.
+    */
+   static final class Result {
+      final String table;
+      long loaded = 0;
+      long rejected = 0;
+      long nanos = 0;
+
+      Result (String table) {
+         this.table = table;
+      }
+
+      public String toString () {
+         double seconds = Math.max(1e-9, this.nanos / 1e9);
+         return String.format("%-20s %,10d rows in %7.2f s (%,10.0f rows/s), %,d rejected",
+                              this.table, this.loaded, seconds, this.loaded / seconds, this.rejected);
+      }
+   }//end Result
+
+   private final ProfNetwork _esql;
+   private final File _dir;
+   private final PrintWriter _rejects;
+   // every user id in USR, sorted for binary search.
+   private volatile String[] _users = new String[0];
+
+   /**
+    * Creates a new loader
+    *
+    * @param esql the database access object
+    * @param dir the directory holding the CSV files
+    * @param rejects the file bad rows are written to
+    * @throws java.io.IOException when the reject file cannot be created
+    */
+   public BulkLoader (ProfNetwork esql, File dir, File rejects) throws IOException {
+      this._esql = esql;
+      this._dir = dir;
+      this._rejects = new PrintWriter(new FileWriter(rejects));
+   }//end BulkLoader
+
+   /**
+    * Method to load every table whose file exists, USR first.
+    *
+    * @param threads writer threads for the child tables
+    * @return one result per loaded table
+    * @throws java.sql.SQLException when a table could not be loaded at all
+    * @throws java.io.IOException when a file could not be read
+    */
+   public List<Result> load (int threads) throws SQLException, IOException {
+      List<Result> results = new ArrayList<Result>();
+      try{
+         if (new File(this._dir, USR.file).exists())
+            results.add(load(USR));
+         // children are checked against every user in the table, not only
+         // the ones loaded now.
+         ResultTable ids = this._esql.executeQueryAndReturnTable("SELECT userId FROM usr");
+         String[] users = new String[ids.getRowCount()];
+         for (int i = 0; i < users.length; ++i)
+            users[i] = ids.getString(i, 0);
+         Arrays.sort(users);
+         this._users = users;
+
+         ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+         try{
+            List<Future<Result>> pending = new ArrayList<Future<Result>>();
+            for (final Table table : CHILDREN){
+               if (!new File(this._dir, table.file).exists())
+                  continue;
+               pending.add(pool.submit(new Callable<Result>(){
+                  public Result call () throws Exception {
+                     return load(table);
+                  }
+               }));
+            }//end for
+            for (Future<Result> f : pending)
+               results.add(f.get());
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while loading");
+         }catch (ExecutionException e){
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            if (e.getCause() instanceof IOException)
+               throw (IOException) e.getCause();
+            throw new SQLException(e.getCause().toString());
+         }finally{
+            pool.shutdownNow();
+         }//end try
+      }finally{
+         this._rejects.close();
+      }//end try
+      return results;
+   }//end load
+
+   /**
+    * Loads one table: rows are checked while reading, and every
+    * COMMIT_ROWS of them for one shard are written in one transaction.
+    */
+   Result load (Table table) throws SQLException, IOException {
+      Result result = new Result(table.name);
+      long start = System.nanoTime();
+      // only messages are spread over the shards, the rest is on shard 0.
+      MessageShards shards = table.name.equals("message") ? this._esql.getMessageShards() : null;
+      List<List<Object[]>> byShard = new ArrayList<List<Object[]>>();
+      for (int shard = 0; shard < (shards == null ? 1 : shards.size()); ++shard)
+         byShard.add(new ArrayList<Object[]>());
+      CsvReader reader = new CsvReader(new File(this._dir, table.file));
+      try{
+         while (reader.next()){
+            String reason = null;
+            Object[] row = null;
+            int shard = 0;
+            try{
+               row = convert(table, reader);
+               reason = check(table, row);
+               if (reason == null && shards != null){
+                  shard = shards.shardOf((String) row[1], (String) row[2]);
+                  row[0] = Integer.valueOf(shards.nextId(shard));
+               }//end if
+            }catch (IllegalArgumentException e){
+               reason = e.getMessage();
+            }catch (SQLException e){
+               // the shard's sequence reached the end of its range.
+               reason = "no msgId left on shard " + shard + ": " + e.getMessage();
+            }//end try
+            if (reason != null){
+               reject(table, reader.lineNumber(), reason, reader.line());
+               ++result.rejected;
+               continue;
+            }//end if
+            List<Object[]> rows = byShard.get(shard);
+            rows.add(row);
+            if (rows.size() == COMMIT_ROWS){
+               write(shard, table, rows, result);
+               rows.clear();
+            }//end if
+         }//end while
+         for (int shard = 0; shard < byShard.size(); ++shard)
+            if (!byShard.get(shard).isEmpty())
+               write(shard, table, byShard.get(shard), result);
+      }finally{
+         reader.close();
+      }//end try
+      result.nanos = System.nanoTime() - start;
+      return result;
+   }//end load
+
+   // turns the fields of the current line into bind values.
+   static Object[] convert (Table table, CsvReader reader) {
+      if (reader.fields() != table.columns.length)
+         throw new IllegalArgumentException("expected " + table.columns.length + " fields, found " + reader.fields());
+      Object[] row = new Object[table.columns.length];
+      for (int i = 0; i < row.length; ++i){
+         Column column = table.columns[i];
+         String value = reader.field(i);
+         if (value == null){
+            if (column.notNull)
+               throw new IllegalArgumentException(column.name + " is empty");
+            continue;
+         }//end if
+         switch (column.kind){
+            case DATE: row[i] = normalizeDate(value); break;
+            case TIMESTAMP: row[i] = normalizeTimestamp(value); break;
+            case INT:
+               try{
+                  row[i] = Integer.valueOf(value.trim());
+               }catch (NumberFormatException e){
+                  throw new IllegalArgumentException(column.name + " is not a number: " + value);
+               }//end try
+               break;
+            default:
+               if (column.width > 0 && rtrim(value).length() > column.width)
+                  throw new IllegalArgumentException(column.name + " is longer than " + column.width);
+               row[i] = value;
+         }//end switch
+      }//end for
+      return row;
+   }//end convert
+
+   // the reason a row cannot be loaded, null if it can.
+   private String check (Table table, Object[] row) {
+      for (int c : table.users)
+         if (Arrays.binarySearch(this._users, rtrim((String) row[c])) < 0)
+            return table.columns[c].name + " " + rtrim((String) row[c]) + " is not in usr";
+      return null;
+   }//end check
+
+   /**
+    * Writes rows in one transaction on a shard.  If the database refuses
+    * it, e.g. for a duplicate key, the rows are written one by one and the
+    * refused ones rejected.
+    */
+   private void write (int shard, final Table table, final List<Object[]> rows, Result result) throws SQLException {
+      MessageShards shards = this._esql.getMessageShards();
+      try{
+         shards.executeInTransaction(shard, new ProfNetwork.Transaction<Void>(){
+            public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+               for (int i = 0; i < rows.size(); i += BATCH_ROWS)
+                  insert(pc, table, rows.subList(i, Math.min(rows.size(), i + BATCH_ROWS)));
+               return null;
+            }
+         });
+         result.loaded += rows.size();
+      }catch (SQLException e){
+         for (Object[] row : rows){
+            try{
+               shards.update(shard, insertSql(table, 1), row);
+               ++result.loaded;
+            }catch (SQLException rowError){
+               reject(table, -1, rowError.getMessage(), join(row));
+               ++result.rejected;
+            }//end try
+         }//end for
+      }//end try
+   }//end write
+
+   static void insert (ConnectionPool.PooledConnection pc, Table table, List<Object[]> rows) throws SQLException {
+      int width = table.columns.length;
+      Object[] params = new Object[rows.size() * width];
+      for (int r = 0; r < rows.size(); ++r)
+         System.arraycopy(rows.get(r), 0, params, r * width, width);
+      String sql = insertSql(table, rows.size());
+      PreparedStatement stmt = ProfNetwork.prepare(pc, sql, params);
+      try{
+         stmt.executeUpdate();
+      }finally{
+         pc.getStatements().release(sql, stmt);
+      }//end try
+   }//end insert
+
+   static String insertSql (Table table, int rows) {
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.name).append('(');
+      StringBuilder values = new StringBuilder("(");
+      for (int i = 0; i < table.columns.length; ++i){
+         Column column = table.columns[i];
+         sql.append(i == 0 ? "" : ", ").append(column.name);
+         values.append(i == 0 ? "" : ", ").append(column.fill == null ? "" : "COALESCE(").append('?');
+         if (column.kind == DATE)
+            values.append("::date");
+         else if (column.kind == TIMESTAMP)
+            values.append("::timestamp");
+         if (column.fill != null)
+            values.append(", ").append(column.fill).append(')');
+      }//end for
+      values.append(')');
+      sql.append(") VALUES ");
+      for (int r = 0; r < rows; ++r)
+         sql.append(r == 0 ? "" : ", ").append(values);
+      return sql.toString();
+   }//end insertSql
+
+   private synchronized void reject (Table table, long line, String reason, String text) {
+      this._rejects.println(table.name + "," + line + ",\"" + reason.replace("\"", "\"\"") + "\"," + text);
+   }//end reject
+
+   static String join (Object[] row) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < row.length; ++i)
+         sb.append(i == 0 ? "" : ",").append(row[i] == null ? "" : row[i].toString());
+      return sb.toString();
+   }//end join
+
+   static String rtrim (String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return end == s.length() ? s : s.substring(0, end);
+   }//end rtrim
+
+   /**
+    * Normalizes yyyy/mm/dd and yyyy-mm-dd dates to yyyy-mm-dd.
+    *
+    * @throws IllegalArgumentException if the value is not a valid date
+    */
+   static String normalizeDate (String value) {
+      String v = value.trim();
+      if (v.length() != 10 || (v.charAt(4) != '/' && v.charAt(4) != '-') || v.charAt(7) != v.charAt(4))
+         throw new IllegalArgumentException("bad date: " + value);
+      int year = digits(v, 0, 4, value);
+      int month = digits(v, 5, 7, value);
+      int day = digits(v, 8, 10, value);
+      if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month))
+         throw new IllegalArgumentException("bad date: " + value);
+      if (v.charAt(4) == '-')
+         return v;
+      char[] c = v.toCharArray();
+      c[4] = '-';
+      c[7] = '-';
+      return new String(c);
+   }//end normalizeDate
+
+   /**
+    * Normalizes the date part of a timestamp, keeping the time of day.
+    */
+   static String normalizeTimestamp (String value) {
+      String v = value.trim();
+      if (v.length() < 10)
+         throw new IllegalArgumentException("bad timestamp: " + value);
+      return normalizeDate(v.substring(0, 10)) + v.substring(10);
+   }//end normalizeTimestamp
+
+   private static int digits (String s, int from, int to, String value) {
+      int n = 0;
+      for (int i = from; i < to; ++i){
+         char c = s.charAt(i);
+         if (c < '0' || c > '9')
+            throw new IllegalArgumentException("bad date: " + value);
+         n = n * 10 + (c - '0');
+      }//end for
+      return n;
+   }//end digits
+
+   private static int daysInMonth (int year, int month) {
+      if (month == 2)
+         return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+      return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+   }//end daysInMonth
+
+   /**
+    * Reads CSV lines through memory mapped windows of a file.  Bytes of
+    * the current line are copied into one reused buffer, quotes removed,
+    * and only the fields asked for become strings.  An unquoted empty
+    * field reads as null, like COPY ... CSV.
+    */
+   static final class CsvReader implements Closeable {
+      static final long WINDOW = 64L << 20;
+
+      private final RandomAccessFile _file;
+      private final FileChannel _channel;
+      private final long _size;
+      private MappedByteBuffer _window = null;
+      private long _windowStart = 0;
+      private byte[] _line = new byte[1024];
+      private int _length = 0;
+      // field i is _line[_starts[i] .. _ends[i]).
+      private int[] _starts = new int[16];
+      private int[] _ends = new int[16];
+      private boolean[] _quoted = new boolean[16];
+      private int _fields = 0;
+      private long _lineNumber = 0;
+
+      CsvReader (File file) throws IOException {
+         this._file = new RandomAccessFile(file, "r");
+         this._channel = this._file.getChannel();
+         this._size = this._channel.size();
+      }
+
+      /**
+       * Moves to the next non-empty line.
+       *
+       * @return false at the end of the file
+       */
+      boolean next () throws IOException {
+         do{
+            if (!readLine())
+               return false;
+         }while (this._length == 0 && this._fields == 1);
+         return true;
+      }
+
+      private boolean readLine () throws IOException {
+         this._length = 0;
+         this._fields = 0;
+         boolean inQuotes = false;
+         boolean any = false;
+         startField(false);
+         while (true){
+            int b = read();
+            if (b < 0){
+               if (!any)
+                  return false;
+               break;
+            }//end if
+            any = true;
+            if (inQuotes){
+               if (b == '"'){
+                  if (peek() == '"'){
+                     read();
+                     append(b);
+                  }else{
+                     inQuotes = false;
+                  }//end if
+               }else{
+                  append(b);
+               }//end if
+            }else if (b == '"'){
+               inQuotes = true;
+               this._quoted[this._fields - 1] = true;
+            }else if (b == ','){
+               endField();
+               startField(false);
+            }else if (b == '\n'){
+               break;
+            }else if (b != '\r'){
+               append(b);
+            }//end if
+         }//end while
+         endField();
+         ++this._lineNumber;
+         return true;
+      }
+
+      int fields () { return this._fields; }
+      long lineNumber () { return this._lineNumber; }
+
+      String field (int i) {
+         int length = this._ends[i] - this._starts[i];
+         if (length == 0 && !this._quoted[i])
+            return null;
+         return new String(this._line, this._starts[i], length, UTF8);
+      }
+
+      // the current line again, fields joined by commas, for rejects.
+      String line () {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < this._fields; ++i){
+            String f = field(i);
+            sb.append(i == 0 ? "" : ",").append(f == null ? "" : f);
+         }//end for
+         return sb.toString();
+      }
+
+      public void close () throws IOException {
+         this._file.close();
+      }
+
+      private void startField (boolean quoted) {
+         if (this._fields == this._starts.length){
+            this._starts = Arrays.copyOf(this._starts, this._fields * 2);
+            this._ends = Arrays.copyOf(this._ends, this._fields * 2);
+            this._quoted = Arrays.copyOf(this._quoted, this._fields * 2);
+         }//end if
+         this._starts[this._fields] = this._length;
+         this._quoted[this._fields] = quoted;
+         ++this._fields;
+      }
+
+      private void endField () {
+         this._ends[this._fields - 1] = this._length;
+      }
+
+      private void append (int b) {
+         if (this._length == this._line.length)
+            this._line = Arrays.copyOf(this._line, this._length * 2);
+         this._line[this._length++] = (byte) b;
+      }
+
+      private int read () throws IOException {
+         if (!ensure())
+            return -1;
+         return this._window.get() & 0xff;
+      }
+
+      private int peek () throws IOException {
+         if (!ensure())
+            return -1;
+         return this._window.get(this._window.position()) & 0xff;
+      }
+
+      // maps the next window once the current one is used up.
+      private boolean ensure () throws IOException {
+         if (this._window != null && this._window.hasRemaining())
+            return true;
+         long next = this._window == null ? 0 : this._windowStart + this._window.capacity();
+         if (next >= this._size)
+            return false;
+         this._windowStart = next;
+         this._window = this._channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(WINDOW, this._size - next));
+         return true;
+      }
+   }//end CsvReader
+
+}//end BulkLoader
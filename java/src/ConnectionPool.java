@@ -0,0 +1,450 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded pool of physical connections to one
+ * PostgreSQL database.  Connections are borrowed for a single operation
+ * and handed back afterwards, so concurrent callers do not serialize on
+ * one connection and a backend restart only costs a reconnect.
+ *
+ * Every pooled connection carries its own StatementCache, since prepared
+ * statements belong to the backend session they were prepared on.
+ *
+ */
+public class ConnectionPool {
+
+   /**
+    * A physical connection owned by the pool together with the prepared
+    * statements cached on it.
+    */
+   public static class PooledConnection {
+      private final ConnectionPool _pool;
+      private final Connection _connection;
+      private final StatementCache _statements;
+      // last time the connection was handed back, in System.nanoTime().
+      private long _lastUsed;
+      // set when the last user hit an error, forces validation.
+      private boolean _suspect = false;
+
+      PooledConnection (ConnectionPool pool, Connection connection, int statementCacheSize) {
+         this._pool = pool;
+         this._connection = connection;
+         this._statements = new StatementCache(connection, statementCacheSize);
+         this._lastUsed = System.nanoTime();
+      }
+
+      public ConnectionPool getPool () { return this._pool; }
+      public Connection getConnection () { return this._connection; }
+      public StatementCache getStatements () { return this._statements; }
+
+      void close () {
+         this._statements.close();
+         try{
+            this._connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _borrowTimeoutNanos;
+   private final long _idleTimeoutNanos;
+   private final long _validateAfterNanos;
+   private final int _statementCacheSize;
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = this._lock.newCondition();
+   // idle connections, most recently used first.
+   private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+   // every open connection, idle or borrowed.
+   private final List<PooledConnection> _all = new ArrayList<PooledConnection>();
+   // connections open or being opened.
+   private int _size = 0;
+   private int _active = 0;
+   private boolean _closed = false;
+   private final ScheduledExecutorService _evictor;
+
+   // statistics, guarded by _lock.
+   private final long _startNanos = System.nanoTime();
+   private long _lastChange = this._startNanos;
+   private long _busyNanos = 0;
+   private long _borrows = 0;
+   private long _waits = 0;
+   private long _waitNanos = 0;
+   private long _maxWaitNanos = 0;
+   private long _timeouts = 0;
+   private long _created = 0;
+   private long _destroyed = 0;
+   private long _validationFailures = 0;
+   private int _peakActive = 0;
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize connections kept open even when idle
+    * @param maxSize connections open at most
+    * @param borrowTimeoutMillis how long borrow waits for a free connection
+    * @param idleTimeoutMillis how long a connection above minSize may stay idle
+    * @param validateAfterMillis idle time after which a connection is checked before reuse
+    * @param statementCacheSize prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool (String url, String user, String passwd, int minSize, int maxSize,
+                          long borrowTimeoutMillis, long idleTimeoutMillis, long validateAfterMillis,
+                          int statementCacheSize) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = Math.max(1, maxSize);
+      this._minSize = Math.max(0, Math.min(minSize, this._maxSize));
+      this._borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+      this._idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+      this._validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+      this._statementCacheSize = statementCacheSize;
+
+      for (int i = 0; i < this._minSize; ++i){
+         PooledConnection pc = open();
+         this._lock.lock();
+         try{
+            ++this._size;
+            this._all.add(pc);
+            this._idle.addFirst(pc);
+         }finally{
+            this._lock.unlock();
+         }//end try
+      }//end for
+
+      this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+         public Thread newThread (Runnable r){
+            Thread t = new Thread(r, "ConnectionPool-evictor");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      long period = Math.max(1000L, Math.min(idleTimeoutMillis, 30000L));
+      this._evictor.scheduleWithFixedDelay(new Runnable(){
+         public void run (){
+            evictIdle();
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Method to borrow a connection.  Idle connections are reused first,
+    * validated when they sat idle for a while or their last user failed,
+    * and replaced when the backend dropped them.  A new connection is opened
+    * while the pool is below its maximum size, otherwise the caller waits.
+    *
+    * @return a connection that must be handed back through release
+    * @throws java.sql.SQLException when no connection is available in time
+    */
+   public PooledConnection borrow () throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + this._borrowTimeoutNanos;
+      boolean waited = false;
+      while (true){
+         PooledConnection pc = null;
+         boolean grow = false;
+         this._lock.lock();
+         try{
+            while (true){
+               if (this._closed)
+                  throw new SQLException("Connection pool is closed");
+               if (!this._idle.isEmpty()){
+                  pc = this._idle.pollFirst();
+                  break;
+               }//end if
+               if (this._size < this._maxSize){
+                  ++this._size;
+                  grow = true;
+                  break;
+               }//end if
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0){
+                  ++this._timeouts;
+                  throw new SQLException(String.format(
+                     "Timed out after %d ms waiting for a database connection (%d in use)",
+                     TimeUnit.NANOSECONDS.toMillis(this._borrowTimeoutNanos), this._active));
+               }//end if
+               waited = true;
+               try{
+                  this._available.awaitNanos(remaining);
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               }//end try
+            }//end while
+            markActive(+1);
+         }finally{
+            this._lock.unlock();
+         }//end try
+
+         if (grow){
+            try{
+               pc = open();
+            }catch (SQLException e){
+               // backend is down or restarting, retry until the deadline.
+               discard(null);
+               if (System.nanoTime() - deadline >= 0)
+                  throw e;
+               sleepQuietly(Math.min(250L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+               continue;
+            }//end try
+            this._lock.lock();
+            try{
+               ++this._created;
+               this._all.add(pc);
+            }finally{
+               this._lock.unlock();
+            }//end try
+         }else if (needsValidation(pc) && !isValid(pc)){
+            this._lock.lock();
+            try{
+               ++this._validationFailures;
+            }finally{
+               this._lock.unlock();
+            }//end try
+            discard(pc);
+            continue;
+         }//end if
+
+         pc._suspect = false;
+         long waitedNanos = System.nanoTime() - start;
+         this._lock.lock();
+         try{
+            ++this._borrows;
+            if (waited)
+               ++this._waits;
+            this._waitNanos += waitedNanos;
+            this._maxWaitNanos = Math.max(this._maxWaitNanos, waitedNanos);
+         }finally{
+            this._lock.unlock();
+         }//end try
+         return pc;
+      }//end while
+   }//end borrow
+
+   /**
+    * Method to hand a borrowed connection back to the pool.
+    *
+    * @param pc the connection returned by borrow
+    * @param failed true when the caller hit an error on the connection, so
+    *        it gets validated before its next use
+    */
+   public void release (PooledConnection pc, boolean failed) {
+      if (pc == null)
+         return;
+      try{
+         if (!pc._connection.getAutoCommit()){
+            // never hand an open transaction to the next borrower.
+            pc._connection.rollback();
+            pc._connection.setAutoCommit(true);
+         }//end if
+      }catch (SQLException e){
+         failed = true;
+      }//end try
+      this._lock.lock();
+      try{
+         markActive(-1);
+         if (this._closed){
+            this._all.remove(pc);
+            --this._size;
+            pc.close();
+            return;
+         }//end if
+         pc._suspect = failed;
+         pc._lastUsed = System.nanoTime();
+         this._idle.addFirst(pc);
+         this._available.signal();
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end release
+
+   /**
+    * Closes idle connections that have not been used within the idle
+    * timeout, keeping at least the minimum pool size open.
+    */
+   void evictIdle () {
+      List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+      this._lock.lock();
+      try{
+         long now = System.nanoTime();
+         // the oldest idle connections sit at the end of the deque.
+         while (this._size > this._minSize && !this._idle.isEmpty()
+                && now - this._idle.peekLast()._lastUsed > this._idleTimeoutNanos){
+            PooledConnection pc = this._idle.pollLast();
+            this._all.remove(pc);
+            --this._size;
+            ++this._destroyed;
+            evicted.add(pc);
+         }//end while
+      }finally{
+         this._lock.unlock();
+      }//end try
+      for (PooledConnection pc : evicted)
+         pc.close();
+   }//end evictIdle
+
+   /**
+    * Method to close every connection of the pool.  Borrowed connections
+    * are closed when they are handed back.
+    */
+   public void close () {
+      List<PooledConnection> idle;
+      this._lock.lock();
+      try{
+         this._closed = true;
+         idle = new ArrayList<PooledConnection>(this._idle);
+         this._all.removeAll(idle);
+         this._size -= idle.size();
+         this._idle.clear();
+         this._available.signalAll();
+      }finally{
+         this._lock.unlock();
+      }//end try
+      this._evictor.shutdownNow();
+      for (PooledConnection pc : idle)
+         pc.close();
+   }//end close
+
+   /**
+    * Reports the prepared statement counters summed over all connections.
+    */
+   public String getStatementStats () {
+      List<PooledConnection> all;
+      this._lock.lock();
+      try{
+         all = new ArrayList<PooledConnection>(this._all);
+      }finally{
+         this._lock.unlock();
+      }//end try
+      long hits = 0, misses = 0, evictions = 0;
+      for (PooledConnection pc : all){
+         hits += pc._statements.getHits();
+         misses += pc._statements.getMisses();
+         evictions += pc._statements.getEvictions();
+      }//end for
+      long total = hits + misses;
+      return String.format("statements: %d connections, %d executions, %d created, %d reused (%.1f%%), %d evictions",
+                           all.size(), total, misses, hits, total == 0 ? 0.0 : 100.0 * hits / total, evictions);
+   }//end getStatementStats
+
+   /**
+    * Reports borrow wait times and how busy the pool has been since it was
+    * created.
+    */
+   public String toString () {
+      this._lock.lock();
+      try{
+         markActive(0);
+         long elapsed = Math.max(1L, System.nanoTime() - this._startNanos);
+         return String.format("pool: %d/%d open (min %d), %d in use (peak %d), utilization %.1f%%, "
+                              + "%d borrows, %d waited, avg wait %.3f ms, max wait %.3f ms, %d timeouts, "
+                              + "%d opened, %d evicted, %d failed validation",
+                              this._size, this._maxSize, this._minSize, this._active, this._peakActive,
+                              100.0 * this._busyNanos / ((double) elapsed * this._maxSize),
+                              this._borrows, this._waits,
+                              this._borrows == 0 ? 0.0 : this._waitNanos / 1e6 / this._borrows,
+                              this._maxWaitNanos / 1e6, this._timeouts,
+                              this._created, this._destroyed, this._validationFailures);
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end toString
+
+   // accumulates busy time and adjusts the active count, caller holds _lock.
+   private void markActive (int delta) {
+      long now = System.nanoTime();
+      this._busyNanos += (long) this._active * (now - this._lastChange);
+      this._lastChange = now;
+      this._active += delta;
+      this._peakActive = Math.max(this._peakActive, this._active);
+   }//end markActive
+
+   private PooledConnection open () throws SQLException {
+      PooledConnection pc = new PooledConnection(this, DriverManager.getConnection(this._url, this._user, this._passwd),
+                                                 this._statementCacheSize);
+      try{
+         // the driver quotes parameters with backslash escapes, which
+         // servers since 9.1 take literally unless told otherwise, so a
+         // quote inside a parameter would end the string.
+         Statement stmt = pc.getConnection().createStatement();
+         try{
+            stmt.executeUpdate("SET standard_conforming_strings = off");
+            stmt.executeUpdate("SET escape_string_warning = off");
+         }finally{
+            stmt.close();
+         }//end try
+      }catch (SQLException e){
+         pc.close();
+         throw e;
+      }//end try
+      return pc;
+   }//end open
+
+   // drops a connection (or a failed attempt to open one) from the pool.
+   private void discard (PooledConnection pc) {
+      this._lock.lock();
+      try{
+         markActive(-1);
+         --this._size;
+         if (pc != null){
+            this._all.remove(pc);
+            ++this._destroyed;
+         }//end if
+         this._available.signal();
+      }finally{
+         this._lock.unlock();
+      }//end try
+      if (pc != null)
+         pc.close();
+   }//end discard
+
+   private boolean needsValidation (PooledConnection pc) {
+      return pc._suspect || System.nanoTime() - pc._lastUsed > this._validateAfterNanos;
+   }//end needsValidation
+
+   private static boolean isValid (PooledConnection pc) {
+      try{
+         Statement stmt = pc._connection.createStatement();
+         try{
+            ResultSet rs = stmt.executeQuery("SELECT 1");
+            return rs.next();
+         }finally{
+            stmt.close();
+         }//end try
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isValid
+
+   private static void sleepQuietly (long millis) {
+      try{
+         Thread.sleep(Math.max(1L, millis));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end sleepQuietly
+
+}//end ConnectionPool
@@ -0,0 +1,165 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class answers whether two users are linked by a chain of at most n
+ * accepted connections in CONNECTION_USR, edges followed in both
+ * directions.
+ *
+ * The search is a bidirectional breadth first search bounded by the hop
+ * count: it always expands the smaller of the two frontiers by one level,
+ * one query per chunk of frontier ids, and stops as soon as a neighbour
+ * was already reached from the other side.  Hub users with thousands of
+ * friends are therefore only expanded when the other side is even larger.
+ * When a frontier grows past maxFrontier the question is handed to the
+ * database as a single recursive query instead.
+ *
+ */
+public class ConnectionReach {
+   // ids bound per neighbour query; smaller chunks are padded up to a power
+   // of two so only a handful of distinct statements get prepared.
+   static final int MAX_CHUNK = 256;
+
+   // frontier size above which the search runs in the database.
+   public static final int DEFAULT_MAX_FRONTIER = 5000;
+
+   static final String REACH_SQL =
+      "WITH RECURSIVE edges(a, b) AS ("
+      + " SELECT userId, connectionId FROM connection_usr WHERE status = 'Accept'"
+      + " UNION ALL SELECT connectionId, userId FROM connection_usr WHERE status = 'Accept'),"
+      + " reach(id, depth) AS ("
+      + " SELECT ?::bpchar, 0"
+      + " UNION SELECT e.b, r.depth + 1 FROM reach r JOIN edges e ON e.a = r.id WHERE r.depth < ?)"
+      + " SELECT 1 FROM reach WHERE id = ?::bpchar LIMIT 1";
+
+   private final ProfNetwork _esql;
+   private final int _maxFrontier;
+
+   /**
+    * Creates a new reachability search
+    *
+    * @param esql the database access object
+    * @param maxFrontier frontier size above which the recursive query is used
+    */
+   public ConnectionReach (ProfNetwork esql, int maxFrontier) {
+      this._esql = esql;
+      this._maxFrontier = maxFrontier;
+   }//end ConnectionReach
+
+   public ConnectionReach (ProfNetwork esql) {
+      this(esql, DEFAULT_MAX_FRONTIER);
+   }//end ConnectionReach
+
+   /**
+    * Method to check whether target is within maxHops accepted connections
+    * of source.
+    *
+    * @param source the user the chain starts at
+    * @param target the user the chain ends at
+    * @param maxHops the longest chain allowed
+    * @return true if such a chain exists
+    * @throws java.sql.SQLException when failed to read the connections
+    */
+   public boolean isWithin (String source, String target, int maxHops) throws SQLException {
+      if (source.equals(target))
+         return true;
+      Set<String> seenSource = new HashSet<String>();
+      Set<String> seenTarget = new HashSet<String>();
+      List<String> frontierSource = new ArrayList<String>();
+      List<String> frontierTarget = new ArrayList<String>();
+      seenSource.add(source);
+      frontierSource.add(source);
+      seenTarget.add(target);
+      frontierTarget.add(target);
+
+      // every step adds one hop to the shortest chain still possible.
+      for (int hops = 0; hops < maxHops; ++hops){
+         boolean fromSource = frontierSource.size() <= frontierTarget.size();
+         List<String> frontier = fromSource ? frontierSource : frontierTarget;
+         if (frontier.isEmpty())
+            return false;
+         if (frontier.size() > this._maxFrontier)
+            return isWithinQuery(source, target, maxHops);
+
+         Set<String> seen = fromSource ? seenSource : seenTarget;
+         Set<String> other = fromSource ? seenTarget : seenSource;
+         List<String> next = new ArrayList<String>();
+         for (String id : neighbours(frontier)){
+            if (other.contains(id))
+               return true;
+            if (seen.add(id))
+               next.add(id);
+         }//end for
+         if (fromSource)
+            frontierSource = next;
+         else
+            frontierTarget = next;
+      }//end for
+      return false;
+   }//end isWithin
+
+   /**
+    * Method to answer the same question with one recursive query, for
+    * neighbourhoods too large to pull into memory.
+    *
+    * @param source the user the chain starts at
+    * @param target the user the chain ends at
+    * @param maxHops the longest chain allowed
+    * @return true if such a chain exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isWithinQuery (String source, String target, int maxHops) throws SQLException {
+      return this._esql.executeQuery(REACH_SQL, source, maxHops, target) > 0;
+   }//end isWithinQuery
+
+   /**
+    * Fetches the accepted connections of every id in a frontier, in both
+    * directions, from the in-memory graph when it is enabled.
+    */
+   List<String> neighbours (Collection<String> ids) throws SQLException {
+      List<String> result = new ArrayList<String>();
+      SocialGraph graph = this._esql.getGraph();
+      if (graph != null){
+         for (String id : ids)
+            result.addAll(Arrays.asList(graph.friends(id)));
+         return result;
+      }//end if
+      List<String> chunk = new ArrayList<String>(MAX_CHUNK);
+      for (String id : ids){
+         chunk.add(id);
+         if (chunk.size() == MAX_CHUNK){
+            neighbours(chunk, result);
+            chunk.clear();
+         }//end if
+      }//end for
+      if (!chunk.isEmpty())
+         neighbours(chunk, result);
+      return result;
+   }//end neighbours
+
+   private void neighbours (List<String> chunk, List<String> result) throws SQLException {
+      int size = 1;
+      while (size < chunk.size())
+         size <<= 1;
+      StringBuilder in = new StringBuilder();
+      Object[] params = new Object[2 * size];
+      for (int i = 0; i < size; ++i){
+         in.append(i == 0 ? "?::bpchar" : ", ?::bpchar");
+         // pad with the last id, duplicates do not change the result.
+         String id = chunk.get(Math.min(i, chunk.size() - 1));
+         params[i] = id;
+         params[size + i] = id;
+      }//end for
+      String sql = "SELECT connectionId FROM connection_usr WHERE status = 'Accept' AND userId IN (" + in + ")"
+                   + " UNION ALL SELECT userId FROM connection_usr WHERE status = 'Accept' AND connectionId IN (" + in + ")";
+      ResultTable rows = this._esql.executeQueryAndReturnTable(sql, params);
+      for (int i = 0; i < rows.getRowCount(); ++i)
+         result.add(rows.getString(i, 0));
+   }//end neighbours
+
+}//end ConnectionReach
@@ -0,0 +1,408 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes a synthetic dataset as the CSV files BulkLoader reads:
+ * usr, work_expr, educational_details, connection_usr and message, with
+ * the columns of create_tables.sql.
+ *
+ * Everything about a user is drawn from a random generator seeded by the
+ * seed, the file and the user's number.  Files are therefore the same for
+ * a seed whatever the thread count.  Users are generated in blocks by a
+ * thread pool; the blocks are written in order with a bounded number in
+ * flight, so memory does not grow with the dataset.
+ *
+ * Connections follow a power law: out-degrees are Pareto distributed and
+ * targets are drawn with a skew towards a few hub users, who also send
+ * and receive most of the messages.
+ *
+ * msgIds only number the messages of the file.  BulkLoader draws new
+ * ones from the message shard each message goes to, and a shard holds
+ * at most 1 &lt;&lt; MessageShards.ID_BITS (134 million) messages, so 500
+ * million messages need at least four shards, better five since the
+ * buckets do not fill evenly.
+ *
+ * Usage: java DataGenerator &lt;output dir&gt; [users] [seed]
+ * with the per user averages set by the profnetwork.gen.connections,
+ * .work, .education and .messages properties.
+ */
+public class DataGenerator {
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   static final int USR = 0;
+   static final int WORK = 1;
+   static final int EDUCATION = 2;
+   static final int CONNECTION = 3;
+   static final int MESSAGE = 4;
+   static final int MESSAGE_COUNT = 5;
+   static final String[] FILES = { "usr.csv", "work_expr.csv", "educational_details.csv", "connection_usr.csv", "message.csv" };
+
+   // users per generated block.
+   static final int BLOCK = 1024;
+   // Pareto exponent of the out-degrees, and how strongly targets favour hubs.
+   static final double DEGREE_ALPHA = 2.5;
+   static final double HUB_SKEW = 3.0;
+   static final int MAX_DEGREE = 5000;
+   static final int FIRST_MSG_ID = 50000;
+   // 2015-01-01 and the two years messages are spread over.
+   static final long EPOCH_SECONDS = 1420070400L;
+   static final long SPAN_SECONDS = 2L * 365 * 86400;
+
+   static final String[] FIRST = { "Kallie", "Magnus", "Jordane", "Giovani", "Amya", "Lorine", "Susie", "Makenna",
+      "Aida", "Lora", "Krystina", "Forrest", "Gail", "Morgan", "Luis", "Jazmyn", "Arjun", "Pearline", "Vincenza",
+      "Harrison", "Ayden", "Alden", "Dorothea", "Emmett", "Felicia", "Gunnar", "Hilda", "Isaac", "Jettie", "Keon",
+      "Lempi", "Marlon", "Nadia", "Otho", "Priscilla", "Quentin", "Rosalind", "Sylvester", "Tressa", "Ulises" };
+   static final String[] LAST = { "Johns", "Klein", "Schumm", "Terry", "Rempel", "Hickle", "Ebert", "Zboncak",
+      "Ortiz", "Heathcote", "Weimann", "Feil", "Mitchell", "Toy", "Abbott", "Bashirian", "Collier", "Dach",
+      "Emard", "Fadel", "Gislason", "Hoppe", "Jast", "Kuhn", "Lakin", "Mraz", "Nolan", "Okuneva", "Pagac", "Quigley" };
+   static final String[] COMPANIES = { "Babbleopia", "Kwinu", "Jaxspan", "Twitterbridge", "Oba", "Twimm", "Skyble",
+      "Quatz", "Yodel", "Zoomzone", "Feedfire", "Linktype", "Brightdog", "Voonyx", "Rhynoodle", "Tagtune" };
+   static final String[] ROLES = { "Financial Advisor", "Senior Developer", "Account Executive", "Data Analyst",
+      "Product Manager", "Software Engineer", "Designer", "Recruiter", "Sales Associate", "Director" };
+   static final String[] LOCATIONS = { "Tyoply Stan", "Xishaqiao", "Riverside", "Lisbon", "Osaka", "Nairobi",
+      "Toronto", "Lima", "Oslo", "Perth" };
+   static final String[] INSTITUTIONS = { "Twitterbridge", "Oba", "Twimm", "Realcube", "Meevee", "Trudeo",
+      "Quire", "Buzzdog", "Skiba", "Jabberstorm", "Wikizz", "Layo" };
+   static final String[] MAJORS = { "mbbs", "history", "eletrical", "mechanical", "computer science", "physics",
+      "chemistry", "economics", "biology", "mathematics", "law", "music", "art", "nursing", "civil", "finance" };
+   static final String[] DEGREES = { "bachelor", "master", "doctrate" };
+   static final String[] WORDS = { "hello", "meeting", "tomorrow", "project", "thanks", "great", "job", "see",
+      "you", "soon", "call", "me", "when", "free", "review", "the", "draft", "lunch", "next", "week", "congrats",
+      "on", "new", "role", "let", "us", "catch", "up", "sure", "sounds", "good" };
+
+   final long _seed;
+   final int _users;
+   final double _connections;
+   final double _work;
+   final double _education;
+   final double _messages;
+   // multiplier of the bijection spreading hub ranks over user numbers,
+   // and its inverse.
+   final long _spread;
+   final long _unspread;
+
+   DataGenerator (long seed, int users, double connections, double work, double education, double messages) {
+      this._seed = seed;
+      this._users = users;
+      this._connections = connections;
+      this._work = work;
+      this._education = education;
+      this._messages = messages;
+      // one or two users have only the identity to spread with.
+      long a = 1;
+      if (users > 2){
+         a = 2654435761L % users;
+         while (a <= 1 || gcd(a, users) != 1)
+            a = (a + 1) % users;
+      }//end if
+      this._spread = a;
+      this._unspread = inverse(this._spread, users);
+   }//end DataGenerator
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1){
+         System.err.println("Usage: java " + DataGenerator.class.getName() + " <output dir> [users] [seed]");
+         return;
+      }//end if
+      File dir = new File(args[0]);
+      int users = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+      if (users < 1){
+         System.err.println("users must be at least 1");
+         return;
+      }//end if
+      DataGenerator generator = new DataGenerator(seed, users,
+         Double.parseDouble(System.getProperty("profnetwork.gen.connections", "10")),
+         Double.parseDouble(System.getProperty("profnetwork.gen.work", "1.5")),
+         Double.parseDouble(System.getProperty("profnetwork.gen.education", "1.3")),
+         Double.parseDouble(System.getProperty("profnetwork.gen.messages", "50")));
+      int threads = Integer.getInteger("profnetwork.gen.threads", Runtime.getRuntime().availableProcessors());
+      dir.mkdirs();
+      long start = System.nanoTime();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         long[] firstIds = generator.messageIds();
+         for (int file = USR; file <= MESSAGE; ++file){
+            long fileStart = System.nanoTime();
+            long rows = generator.write(pool, threads, file, new File(dir, FILES[file]), firstIds);
+            double seconds = Math.max(1e-9, (System.nanoTime() - fileStart) / 1e9);
+            System.out.println(String.format("%-24s %,14d rows in %8.2f s (%,12.0f rows/s)", FILES[file], rows, seconds, rows / seconds));
+         }//end for
+      }finally{
+         pool.shutdownNow();
+      }//end try
+      System.out.println(String.format("done in %.2f s", (System.nanoTime() - start) / 1e9));
+   }//end main
+
+   /**
+    * Generates one file, BLOCK users per task, and writes the blocks in
+    * order keeping at most 2 * threads of them in memory.
+    *
+    * @return the number of rows written
+    */
+   long write (ExecutorService pool, int threads, final int file, File out, final long[] firstIds)
+         throws IOException, InterruptedException, ExecutionException {
+      int blocks = (this._users + BLOCK - 1) / BLOCK;
+      List<Future<byte[]>> inFlight = new ArrayList<Future<byte[]>>();
+      final long[] rows = new long[blocks];
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 1 << 20);
+      try{
+         int next = 0;
+         for (int written = 0; written < blocks; ++written){
+            while (next < blocks && inFlight.size() < 2 * threads){
+               final int block = next++;
+               inFlight.add(pool.submit(new Callable<byte[]>(){
+                  public byte[] call (){
+                     StringBuilder sb = new StringBuilder(BLOCK * 64);
+                     rows[block] = block(file, block, firstIds, sb);
+                     return sb.toString().getBytes(UTF8);
+                  }
+               }));
+            }//end while
+            os.write(inFlight.remove(0).get());
+         }//end for
+      }finally{
+         os.close();
+      }//end try
+      long total = 0;
+      for (long r : rows)
+         total += r;
+      return total;
+   }//end write
+
+   /**
+    * Counts the messages of every block and returns the msgId each block
+    * starts at, so message blocks can be generated independently.
+    */
+   long[] messageIds () {
+      int blocks = (this._users + BLOCK - 1) / BLOCK;
+      long[] first = new long[blocks + 1];
+      first[0] = FIRST_MSG_ID;
+      for (int b = 0; b < blocks; ++b){
+         long count = 0;
+         for (int u = b * BLOCK; u < Math.min(this._users, (b + 1) * BLOCK); ++u)
+            count += messageCount(u);
+         first[b + 1] = first[b] + count;
+      }//end for
+      if (first[blocks] > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("too many messages for integer msgIds: " + (first[blocks] - FIRST_MSG_ID));
+      return first;
+   }//end messageIds
+
+   // writes the rows of one file for one block of users, returns the row count.
+   long block (int file, int block, long[] firstIds, StringBuilder out) {
+      long rows = 0;
+      long msgId = firstIds[block];
+      for (int u = block * BLOCK; u < Math.min(this._users, (block + 1) * BLOCK); ++u){
+         Random r = random(file, u);
+         switch (file){
+            case USR: rows += user(u, r, out); break;
+            case WORK: rows += work(u, r, out); break;
+            case EDUCATION: rows += education(u, r, out); break;
+            case CONNECTION: rows += connections(u, r, out); break;
+            default:
+               int n = messageCount(u);
+               for (int i = 0; i < n; ++i)
+                  message((int) msgId++, u, r, out);
+               rows += n;
+         }//end switch
+      }//end for
+      return rows;
+   }//end block
+
+   int user (int u, Random r, StringBuilder out) {
+      String id = userId(u);
+      out.append(id).append(',').append(word(LAST, r)).append(Integer.toHexString(r.nextInt(0x10000))).append(',')
+         .append(id).append('@').append(word(COMPANIES, r).toLowerCase()).append(".com,")
+         .append(word(FIRST, r)).append(' ').append(word(LAST, r)).append(',');
+      date(-2208988800L + (long) (r.nextDouble() * 3155760000L), out);
+      out.append('\n');
+      return 1;
+   }//end user
+
+   int work (int u, Random r, StringBuilder out) {
+      int n = count(this._work, r);
+      // distinct companies keep (userId, company, role, startDate) unique.
+      int company = r.nextInt(COMPANIES.length);
+      for (int i = 0; i < n && i < COMPANIES.length; ++i){
+         long startDate = 631152000L + (long) (r.nextDouble() * 788400000L);
+         out.append(userId(u)).append(',').append(COMPANIES[(company + i) % COMPANIES.length]).append(',')
+            .append(word(ROLES, r)).append(',').append(word(LOCATIONS, r)).append(',');
+         date(startDate, out);
+         out.append(',');
+         if (r.nextInt(3) > 0)
+            date(startDate + 86400L * (30 + r.nextInt(3000)), out);
+         out.append('\n');
+      }//end for
+      return Math.min(n, COMPANIES.length);
+   }//end work
+
+   int education (int u, Random r, StringBuilder out) {
+      int n = Math.min(DEGREES.length, count(this._education, r));
+      // one row per degree keeps (userId, major, degree) unique.
+      for (int i = 0; i < n; ++i){
+         long startDate = 315532800L + i * 4L * 365 * 86400 + (long) (r.nextDouble() * 157680000L);
+         out.append(userId(u)).append(',').append(word(INSTITUTIONS, r)).append(',').append(word(MAJORS, r))
+            .append(',').append(DEGREES[i]).append(',');
+         date(startDate, out);
+         out.append(',');
+         date(startDate + 86400L * (365 + r.nextInt(1500)), out);
+         out.append('\n');
+      }//end for
+      return n;
+   }//end education
+
+   int connections (int u, Random r, StringBuilder out) {
+      if (this._users < 2)
+         return 0;
+      // Pareto out-degree with the configured mean.
+      double min = this._connections * (DEGREE_ALPHA - 2) / (DEGREE_ALPHA - 1);
+      int degree = (int) Math.min(Math.min(MAX_DEGREE, this._users - 1),
+                                  Math.floor(min * Math.pow(1 - r.nextDouble(), -1 / (DEGREE_ALPHA - 1)) + r.nextDouble()));
+      Set<Integer> targets = new HashSet<Integer>();
+      int attempts = 0;
+      while (targets.size() < degree && attempts++ < 4 * degree){
+         int v = hub(r);
+         if (v == u || !targets.add(Integer.valueOf(v)))
+            continue;
+         int p = r.nextInt(100);
+         out.append(userId(u)).append(',').append(userId(v)).append(',')
+            .append(p < 60 ? "Accept" : p < 85 ? "Request" : "Reject").append('\n');
+      }//end while
+      return targets.size();
+   }//end connections
+
+   void message (int msgId, int u, Random r, StringBuilder out) {
+      int v = hub(r);
+      out.append(msgId).append(',').append(userId(u)).append(',').append(userId(v)).append(',');
+      int words = 3 + r.nextInt(18);
+      for (int i = 0; i < words; ++i)
+         out.append(i == 0 ? "" : " ").append(word(WORDS, r));
+      out.append(',');
+      timestamp(EPOCH_SECONDS + (long) (r.nextDouble() * SPAN_SECONDS), out);
+      int p = r.nextInt(100);
+      out.append(',').append(p < 85 ? 0 : p < 90 ? 1 : p < 95 ? 2 : 3).append(',')
+         .append(p < 40 ? "Sent" : p < 70 ? "Delivered" : "Read").append('\n');
+   }//end message
+
+   /**
+    * Messages sent by a user: hubs send more, the mean over all users is
+    * the configured average.
+    */
+   int messageCount (int u) {
+      Random r = random(MESSAGE_COUNT, u);
+      double rank = (rank(u) + 0.5) / this._users;
+      // density of rank under the hub draw, which averages to 1.
+      double weight = Math.pow(rank, 1 / HUB_SKEW - 1) / HUB_SKEW;
+      return (int) Math.floor(Math.min(this._messages * weight, 1000 * this._messages) + r.nextDouble());
+   }//end messageCount
+
+   // a user drawn with a skew towards the low hub ranks.
+   int hub (Random r) {
+      long rank = (long) (this._users * Math.pow(r.nextDouble(), HUB_SKEW));
+      return (int) ((rank * this._spread) % this._users);
+   }//end hub
+
+   // the hub rank of a user, the inverse of the spreading bijection.
+   long rank (int u) {
+      return (u * this._unspread) % this._users;
+   }//end rank
+
+   // unique per number: first name, separator, last name, then a counter.
+   static String userId (int u) {
+      int f = u % FIRST.length;
+      int l = (u / FIRST.length) % LAST.length;
+      int n = u / (FIRST.length * LAST.length);
+      return FIRST[f] + ((u & 1) == 0 ? "_" : ".") + LAST[l] + (n == 0 ? "" : Integer.toString(n));
+   }//end userId
+
+   Random random (int file, int u) {
+      long x = this._seed * 0x9E3779B97F4A7C15L + file * 0xC2B2AE3D27D4EB4FL + u;
+      x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+      x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+      return new Random(x ^ (x >>> 33));
+   }//end random
+
+   // a count spread evenly over 0 .. 2 * mean.
+   static int count (double mean, Random r) {
+      return (int) Math.floor(2 * mean * r.nextDouble() + r.nextDouble());
+   }//end count
+
+   static String word (String[] words, Random r) {
+      return words[r.nextInt(words.length)];
+   }//end word
+
+   // yyyy-mm-dd of a UTC epoch second.
+   static void date (long seconds, StringBuilder out) {
+      long days = floorDiv(seconds, 86400L);
+      // civil from days, Howard Hinnant's algorithm.
+      long z = days + 719468;
+      long era = floorDiv(z, 146097L);
+      long doe = z - era * 146097;
+      long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+      long y = yoe + era * 400;
+      long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+      long mp = (5 * doy + 2) / 153;
+      long d = doy - (153 * mp + 2) / 5 + 1;
+      long m = mp < 10 ? mp + 3 : mp - 9;
+      if (m <= 2)
+         ++y;
+      out.append(y).append('-');
+      two(m, out);
+      out.append('-');
+      two(d, out);
+   }//end date
+
+   static void timestamp (long seconds, StringBuilder out) {
+      date(seconds, out);
+      long s = seconds - floorDiv(seconds, 86400L) * 86400L;
+      out.append(' ');
+      two(s / 3600, out);
+      out.append(':');
+      two(s / 60 % 60, out);
+      out.append(':');
+      two(s % 60, out);
+   }//end timestamp
+
+   static void two (long n, StringBuilder out) {
+      if (n < 10)
+         out.append('0');
+      out.append(n);
+   }//end two
+
+   static long floorDiv (long a, long b) {
+      long q = a / b;
+      return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+   }//end floorDiv
+
+   static long gcd (long a, long b) {
+      return b == 0 ? a : gcd(b, a % b);
+   }//end gcd
+
+   // inverse of a modulo m, for a coprime to m.
+   static long inverse (long a, long m) {
+      long t = 0, newT = 1, r = m, newR = a % m;
+      while (newR != 0){
+         long q = r / newR;
+         long tmp = t - q * newT; t = newT; newT = tmp;
+         tmp = r - q * newR; r = newR; newR = tmp;
+      }//end while
+      return t < 0 ? t + m : t;
+   }//end inverse
+
+}//end DataGenerator
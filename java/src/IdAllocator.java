@@ -0,0 +1,111 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class hands out ids from a database sequence in blocks.  One query
+ * reserves blockSize values of the sequence at once, and concurrent
+ * callers take ids from the current block with a single atomic
+ * increment.  Only the caller that finds the block used up goes back to
+ * the database, so ids are known before the rows using them are written
+ * and the sequence stays out of the per-row insert path.
+ *
+ * Reserved ids that are not used, e.g. when the process exits, are lost
+ * the same way rolled back nextval calls are; ids stay unique but are not
+ * gap free or ordered across processes.
+ *
+ */
+public class IdAllocator {
+
+   public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+   static final String RESERVE_SQL = "SELECT nextval(?::regclass) FROM generate_series(1, ?)";
+
+   /**
+    * Ids reserved by one query and the position of the next free one.
+    */
+   static final class Block {
+      final int[] ids;
+      final AtomicInteger next = new AtomicInteger(0);
+
+      Block (int[] ids) {
+         this.ids = ids;
+      }
+   }//end Block
+
+   private final ProfNetwork _esql;
+   // the message shard the sequence is on, when not in the main database.
+   private final MessageShards _shards;
+   private final int _shard;
+   private final String _sequence;
+   private final int _blockSize;
+   private volatile Block _block = new Block(new int[0]);
+   private volatile long _reserved = 0;
+
+   /**
+    * Creates a new allocator, reserving its first block on first use
+    *
+    * @param esql the database access object
+    * @param sequence the name of the sequence, e.g. message_id_seq
+    * @param blockSize ids reserved per query
+    */
+   public IdAllocator (ProfNetwork esql, String sequence, int blockSize) {
+      this._esql = esql;
+      this._shards = null;
+      this._shard = 0;
+      this._sequence = sequence;
+      this._blockSize = Math.max(1, blockSize);
+   }//end IdAllocator
+
+   /**
+    * Creates a new allocator of a sequence on a message shard
+    *
+    * @param shards the message shards
+    * @param shard the shard the sequence is on
+    * @param sequence the name of the sequence, e.g. message_id_seq
+    * @param blockSize ids reserved per query
+    */
+   public IdAllocator (MessageShards shards, int shard, String sequence, int blockSize) {
+      this._esql = null;
+      this._shards = shards;
+      this._shard = shard;
+      this._sequence = sequence;
+      this._blockSize = Math.max(1, blockSize);
+   }//end IdAllocator
+
+   /**
+    * Method to take the next id.
+    *
+    * @return an id no other caller got
+    * @throws java.sql.SQLException when failed to reserve a new block
+    */
+   public int next () throws SQLException {
+      while (true){
+         Block block = this._block;
+         int i = block.next.getAndIncrement();
+         if (i < block.ids.length)
+            return block.ids[i];
+         refill(block);
+      }//end while
+   }//end next
+
+   public String toString () {
+      return String.format("%s: %d ids reserved in blocks of %d", this._sequence, this._reserved, this._blockSize);
+   }//end toString
+
+   // replaces a used up block, unless another caller already did.
+   private synchronized void refill (Block used) throws SQLException {
+      if (this._block != used)
+         return;
+      ResultTable rows = this._shards == null
+         ? this._esql.executeQueryAndReturnTable(RESERVE_SQL, this._sequence, this._blockSize)
+         : this._shards.query(this._shard, RESERVE_SQL, this._sequence, this._blockSize);
+      if (rows.isEmpty())
+         throw new SQLException("could not reserve ids from " + this._sequence);
+      int[] ids = new int[rows.getRowCount()];
+      for (int i = 0; i < ids.length; ++i)
+         ids[i] = (int) rows.getLong(i, 0);
+      this._reserved += ids.length;
+      this._block = new Block(ids);
+   }//end refill
+
+}//end IdAllocator
@@ -0,0 +1,217 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class pages through the messages a user sent and received, newest
+ * first, with keyset pagination on (sendTime, msgId).  Received and sent
+ * messages are read as two streams, each an index range scan starting
+ * right after the last message shown, in one statement run on every
+ * message shard at once (MessageShards), and the streams of all shards
+ * are merged in order.  A page therefore costs the same however many
+ * messages the user has.
+ *
+ * Previous pages are reached again from the keys their first message had,
+ * kept on a stack while paging forward.
+ *
+ */
+public class Inbox {
+
+   /**
+    * One message as shown in the inbox.
+    */
+   public static class Message {
+      public final int msgId;
+      public final String senderId;
+      public final String receiverId;
+      public final String contents;
+      public final Timestamp sendTime;
+      public final String status;
+
+      Message (int msgId, String senderId, String receiverId, String contents, Timestamp sendTime, String status) {
+         this.msgId = msgId;
+         this.senderId = senderId;
+         this.receiverId = receiverId;
+         this.contents = contents;
+         this.sendTime = sendTime;
+         this.status = status;
+      }
+
+      // true if this message comes after (is older than) the other.
+      boolean after (Message other) {
+         int c = this.sendTime.compareTo(other.sendTime);
+         return c < 0 || c == 0 && this.msgId < other.msgId;
+      }
+   }//end Message
+
+   // the deleteStatus filters match the partial indexes in create_index.sql.
+   static final String RECEIVED_SQL =
+      "SELECT msgId, senderId, receiverId, contents, sendTime, status FROM message"
+      + " WHERE receiverId = ?::bpchar AND deleteStatus IN (0, 2) AND (sendTime, msgId) < (?, ?)"
+      + " ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+   static final String SENT_SQL =
+      "SELECT msgId, senderId, receiverId, contents, sendTime, status FROM message"
+      + " WHERE senderId = ?::bpchar AND deleteStatus IN (0, 1) AND (sendTime, msgId) < (?, ?)"
+      + " ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+   static final String INBOX_SQL = "(" + RECEIVED_SQL + ") UNION ALL (" + SENT_SQL + ")";
+   static final String MARK_READ_SQL =
+      "UPDATE message SET status = 'Read' WHERE receiverId = ?::bpchar AND status = 'Sent' AND msgId IN (";
+
+   // newest first, as the pages are shown.
+   static final Comparator<Message> NEWEST_FIRST = new Comparator<Message>(){
+      public int compare (Message a, Message b) {
+         return a.after(b) ? 1 : b.after(a) ? -1 : 0;
+      }
+   };
+
+   // key before every message, so the first page uses the same statements.
+   static final Timestamp END_OF_TIME = Timestamp.valueOf("9999-12-31 23:59:59");
+
+   private final ProfNetwork _esql;
+   private final String _userId;
+   private final int _pageSize;
+   // keys the shown pages started after, the current page's on top.
+   private final List<Message> _starts = new ArrayList<Message>();
+   private List<Message> _page = new ArrayList<Message>();
+   private boolean _hasNext = false;
+
+   /**
+    * Creates a new inbox positioned before the newest message
+    *
+    * @param esql the database access object
+    * @param userId the user whose messages are shown
+    * @param pageSize messages per page
+    */
+   public Inbox (ProfNetwork esql, String userId, int pageSize) {
+      this._esql = esql;
+      this._userId = userId;
+      this._pageSize = pageSize;
+   }//end Inbox
+
+   /**
+    * Method to read the newest page.
+    *
+    * @return the messages on the page, newest first
+    * @throws java.sql.SQLException when failed to read the messages
+    */
+   public List<Message> first () throws SQLException {
+      this._starts.clear();
+      this._starts.add(null);
+      return read(null);
+   }//end first
+
+   /**
+    * Method to read the page after the current one.
+    *
+    * @return the messages on the page, or the current page if it is the last
+    * @throws java.sql.SQLException when failed to read the messages
+    */
+   public List<Message> next () throws SQLException {
+      if (!this._hasNext)
+         return this._page;
+      Message last = this._page.get(this._page.size() - 1);
+      this._starts.add(last);
+      return read(last);
+   }//end next
+
+   /**
+    * Method to read the page before the current one.
+    *
+    * @return the messages on the page, or the current page if it is the first
+    * @throws java.sql.SQLException when failed to read the messages
+    */
+   public List<Message> previous () throws SQLException {
+      if (this._starts.size() <= 1)
+         return this._page;
+      this._starts.remove(this._starts.size() - 1);
+      return read(this._starts.get(this._starts.size() - 1));
+   }//end previous
+
+   /**
+    * Method to read the current page again, e.g. after a delete.
+    *
+    * @return the messages on the page
+    * @throws java.sql.SQLException when failed to read the messages
+    */
+   public List<Message> refresh () throws SQLException {
+      if (this._starts.isEmpty())
+         return first();
+      return read(this._starts.get(this._starts.size() - 1));
+   }//end refresh
+
+   /**
+    * Method to mark the received messages on the current page read, one
+    * statement per message shard holding any of them.
+    *
+    * @return the number of messages marked read
+    * @throws java.sql.SQLException when failed to mark the messages
+    */
+   public int markRead () throws SQLException {
+      MessageShards shards = this._esql.getMessageShards();
+      List<List<Object>> unread = new ArrayList<List<Object>>();
+      for (int shard = 0; shard < shards.size(); ++shard)
+         unread.add(new ArrayList<Object>());
+      for (Message m : this._page){
+         if ("Sent".equals(m.status.trim()) && this._userId.trim().equals(m.receiverId.trim()))
+            unread.get(shards.shardOf(m.senderId, m.receiverId)).add(Integer.valueOf(m.msgId));
+      }//end for
+      int marked = 0;
+      for (int shard = 0; shard < shards.size(); ++shard){
+         List<Object> ids = unread.get(shard);
+         if (ids.isEmpty())
+            continue;
+         // padded to a power of two with the last id, so few distinct
+         // statements are prepared.
+         int size = Integer.highestOneBit(ids.size());
+         if (size < ids.size())
+            size <<= 1;
+         StringBuilder sql = new StringBuilder(MARK_READ_SQL);
+         Object[] params = new Object[size + 1];
+         params[0] = this._userId;
+         for (int i = 0; i < size; ++i){
+            sql.append(i == 0 ? "?" : ", ?");
+            params[i + 1] = ids.get(Math.min(i, ids.size() - 1));
+         }//end for
+         marked += shards.update(shard, sql.append(')').toString(), params);
+      }//end for
+      return marked;
+   }//end markRead
+
+   public boolean hasNext () { return this._hasNext; }
+   public boolean hasPrevious () { return this._starts.size() > 1; }
+
+   // reads one page of messages older than after, null for the newest.
+   private List<Message> read (Message after) throws SQLException {
+      Timestamp time = after == null ? END_OF_TIME : after.sendTime;
+      int msgId = after == null ? Integer.MAX_VALUE : after.msgId;
+      // one extra row per stream tells whether there is a next page.
+      List<ResultTable> shards = this._esql.getMessageShards().queryAll(INBOX_SQL,
+         this._userId, time, msgId, this._pageSize + 1, this._userId, time, msgId, this._pageSize + 1);
+      List<Message> streams = new ArrayList<Message>();
+      for (ResultTable rows : shards){
+         for (int i = 0; i < rows.getRowCount(); ++i){
+            ResultTable.Row row = rows.row(i);
+            streams.add(new Message(row.getInt(0), row.getString(1), row.getString(2), row.getString(3),
+                                    ResultTable.toTimestamp(row.getLong(4)), row.getString(5)));
+         }//end for
+      }//end for
+      Collections.sort(streams, NEWEST_FIRST);
+
+      List<Message> merged = new ArrayList<Message>(this._pageSize + 1);
+      for (int i = 0; i < streams.size() && merged.size() <= this._pageSize; ++i){
+         Message m = streams.get(i);
+         // a message to oneself is in both streams.
+         if (merged.isEmpty() || merged.get(merged.size() - 1).msgId != m.msgId)
+            merged.add(m);
+      }//end for
+      this._hasNext = merged.size() > this._pageSize;
+      if (this._hasNext)
+         merged.remove(this._pageSize);
+      this._page = merged;
+      return merged;
+   }//end read
+
+}//end Inbox
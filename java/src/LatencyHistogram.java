@@ -0,0 +1,120 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets, the way HDR
+ * histograms do: values below 128 get a bucket each, larger ones share
+ * buckets 1/64th of their power of two wide.  Every value is therefore
+ * kept within 1.6% of its size, from nanoseconds up to hours, in a fixed
+ * array of counters.
+ *
+ * Recording is lock free, an atomic increment of one bucket, so any
+ * number of threads can record into one histogram while another reads
+ * percentiles from it.
+ *
+ */
+public class LatencyHistogram {
+
+   // values in [64 << e, 128 << e) share a bucket 1 << e wide.
+   static final int SUB_BUCKETS = 64;
+   static final int BUCKETS = (64 - 6) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Method to record one value, e.g. a latency in nanoseconds.
+    *
+    * @param value the value, negative ones count as 0
+    */
+   public void record (long value) {
+      if (value < 0)
+         value = 0;
+      this._counts.incrementAndGet(bucket(value));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(value);
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end record
+
+   /**
+    * Method to add the values of another histogram to this one.
+    *
+    * @param other the histogram to add
+    */
+   public void add (LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long n = other._counts.get(i);
+         if (n != 0)
+            this._counts.addAndGet(i, n);
+      }//end for
+      this._count.addAndGet(other._count.get());
+      this._sum.addAndGet(other._sum.get());
+      long max = this._max.get();
+      long value = other._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end add
+
+   /**
+    * Method to forget every recorded value.  Values recorded meanwhile may
+    * be lost or kept.
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set(i, 0);
+      this._count.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }//end reset
+
+   public long count () { return this._count.get(); }
+   public long max () { return this._max.get(); }
+
+   public double mean () {
+      long count = this._count.get();
+      return count == 0 ? 0.0 : (double) this._sum.get() / count;
+   }//end mean
+
+   /**
+    * Method to estimate a percentile.
+    *
+    * @param fraction the percentile as a fraction, e.g. 0.99
+    * @return the largest value of the bucket holding the percentile, at
+    *         most the largest value recorded, 0 if nothing was recorded
+    */
+   public long percentile (double fraction) {
+      long count = this._count.get();
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(highest(i), this._max.get());
+      }//end for
+      return this._max.get();
+   }//end percentile
+
+   // the bucket of a value: linear below 128, then 64 per power of two.
+   static int bucket (long value) {
+      if (value < 2 * SUB_BUCKETS)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+      return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+   }//end bucket
+
+   // the largest value falling into a bucket.
+   static long highest (int bucket) {
+      if (bucket < 2 * SUB_BUCKETS)
+         return bucket;
+      int shift = bucket / SUB_BUCKETS - 1;
+      long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+      return ((sub + 1) << shift) - 1;
+   }//end highest
+
+}//end LatencyHistogram
@@ -0,0 +1,417 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class keeps months of messages moved out of the database in
+ * compressed columnar files, one per message shard and month, named
+ * message-&lt;shard&gt;-&lt;yyyy-MM&gt;.msgcol, and pages through a user's
+ * archived messages newest first.
+ *
+ * A file is a series of row groups of up to a few thousand messages in
+ * msgId order, written as they are read from the partition so a month
+ * never has to fit in memory.  Each column of a group is deflated on its
+ * own, and a footer at the end locates every column block.  The sender,
+ * receiver and status columns are dictionary encoded with the dictionary
+ * first, so reading a user's messages inflates the two small id
+ * dictionaries of each group, skips groups not naming the user, and only
+ * inflates the contents of groups that do.
+ *
+ * Archived messages are read only: they show the side of a message the
+ * user had not deleted when it was archived, and cannot be deleted.
+ *
+ */
+public class MessageArchive {
+
+   static final byte[] MAGIC = { 'M', 'S', 'G', 'C', 'O', 'L', '1', '\n' };
+   static final String SUFFIX = ".msgcol";
+
+   static final int MSG_ID = 0;
+   static final int SENDER = 1;
+   static final int RECEIVER = 2;
+   static final int CONTENTS = 3;
+   static final int SEND_TIME = 4;
+   static final int DELETE_STATUS = 5;
+   static final int STATUS = 6;
+   static final int COLUMNS = 7;
+
+   /**
+    * Writes one archive file a row group at a time.  Rows are added with
+    * add and written out every groupSize rows and on close.
+    */
+   public static class Writer {
+      private final RandomAccessFile _file;
+      private final int _groupSize;
+      private final List<long[]> _footer = new ArrayList<long[]>();
+      private final Deflater _deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      private final byte[] _buffer = new byte[64 * 1024];
+      private int[] _msgIds;
+      private String[] _senders, _receivers, _contents, _statuses;
+      private long[] _sendTimes;
+      private int[] _deleteStatus;
+      private int _rows = 0;
+      private long _total = 0;
+
+      /**
+       * Creates the file, replacing an existing one
+       *
+       * @param file the file to write
+       * @param groupSize rows per row group
+       * @throws java.io.IOException when the file cannot be created
+       */
+      public Writer (File file, int groupSize) throws IOException {
+         file.delete();
+         this._file = new RandomAccessFile(file, "rw");
+         this._file.write(MAGIC);
+         this._groupSize = Math.max(1, groupSize);
+         this._msgIds = new int[this._groupSize];
+         this._senders = new String[this._groupSize];
+         this._receivers = new String[this._groupSize];
+         this._contents = new String[this._groupSize];
+         this._statuses = new String[this._groupSize];
+         this._sendTimes = new long[this._groupSize];
+         this._deleteStatus = new int[this._groupSize];
+      }//end Writer
+
+      /**
+       * Method to add a message, in msgId order.
+       *
+       * @param sendTime the send time in microseconds since the epoch
+       */
+      public void add (int msgId, String senderId, String receiverId, String contents, long sendTime, int deleteStatus, String status) throws IOException {
+         this._msgIds[this._rows] = msgId;
+         this._senders[this._rows] = ResultTable.trimTrailing(senderId);
+         this._receivers[this._rows] = ResultTable.trimTrailing(receiverId);
+         this._contents[this._rows] = ResultTable.trimTrailing(contents);
+         this._sendTimes[this._rows] = sendTime;
+         this._deleteStatus[this._rows] = deleteStatus;
+         this._statuses[this._rows] = status == null ? "" : ResultTable.trimTrailing(status);
+         if (++this._rows == this._groupSize)
+            flush();
+      }//end add
+
+      public long rows () { return this._total + this._rows; }
+
+      /**
+       * Method to write the last row group and the footer, and sync the
+       * file to disk.
+       */
+      public void close () throws IOException {
+         try{
+            flush();
+            long footer = this._file.getFilePointer();
+            this._file.writeInt(this._footer.size());
+            for (long[] group : this._footer)
+               for (long value : group)
+                  this._file.writeLong(value);
+            this._file.writeLong(footer);
+            this._file.getFD().sync();
+         }finally{
+            this._file.close();
+            this._deflater.end();
+         }//end try
+      }//end close
+
+      // writes the buffered rows as one row group.
+      private void flush () throws IOException {
+         int n = this._rows;
+         if (n == 0)
+            return;
+         long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+         for (int i = 0; i < n; ++i){
+            minTime = Math.min(minTime, this._sendTimes[i]);
+            maxTime = Math.max(maxTime, this._sendTimes[i]);
+         }//end for
+         // rows, min and max time, then offset and length of each column.
+         long[] group = new long[3 + 2 * COLUMNS];
+         group[0] = n;
+         group[1] = minTime;
+         group[2] = maxTime;
+         for (int column = 0; column < COLUMNS; ++column){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            switch (column){
+               case MSG_ID:
+                  for (int i = 0, last = 0; i < n; last = this._msgIds[i++])
+                     out.writeInt(this._msgIds[i] - last);
+                  break;
+               case SENDER: dictionary(this._senders, n, out); break;
+               case RECEIVER: dictionary(this._receivers, n, out); break;
+               case STATUS: dictionary(this._statuses, n, out); break;
+               case CONTENTS:
+                  for (int i = 0; i < n; ++i)
+                     out.writeUTF(this._contents[i]);
+                  break;
+               case SEND_TIME:
+                  for (int i = 0; i < n; ++i)
+                     out.writeLong(this._sendTimes[i] - (i == 0 ? 0 : this._sendTimes[i - 1]));
+                  break;
+               case DELETE_STATUS:
+                  for (int i = 0; i < n; ++i)
+                     out.writeByte(this._deleteStatus[i]);
+                  break;
+            }//end switch
+            out.flush();
+            group[3 + 2 * column] = this._file.getFilePointer();
+            group[4 + 2 * column] = deflate(bytes.toByteArray());
+         }//end for
+         this._footer.add(group);
+         this._total += n;
+         this._rows = 0;
+      }//end flush
+
+      // the distinct values sorted, then each row's index among them.
+      private static void dictionary (String[] values, int n, DataOutputStream out) throws IOException {
+         String[] distinct = Arrays.copyOf(values, n);
+         Arrays.sort(distinct);
+         int size = 0;
+         for (int i = 0; i < n; ++i)
+            if (size == 0 || !distinct[size - 1].equals(distinct[i]))
+               distinct[size++] = distinct[i];
+         out.writeInt(size);
+         for (int i = 0; i < size; ++i)
+            out.writeUTF(distinct[i]);
+         for (int i = 0; i < n; ++i)
+            out.writeInt(Arrays.binarySearch(distinct, 0, size, values[i]));
+      }//end dictionary
+
+      private long deflate (byte[] data) throws IOException {
+         this._deflater.reset();
+         this._deflater.setInput(data);
+         this._deflater.finish();
+         long length = 0;
+         while (!this._deflater.finished()){
+            int count = this._deflater.deflate(this._buffer);
+            this._file.write(this._buffer, 0, count);
+            length += count;
+         }//end while
+         return length;
+      }//end deflate
+   }//end Writer
+
+   private final File _dir;
+   private final String _userId;
+   private final int _pageSize;
+   // the months not read yet, newest first, each with its shards' files.
+   private final List<List<File>> _months = new ArrayList<List<File>>();
+   // the user's archived messages read so far, newest first.
+   private final List<Inbox.Message> _read = new ArrayList<Inbox.Message>();
+   private int _page = 0;
+
+   /**
+    * Opens the archived messages of a user, reading no file yet
+    *
+    * @param dir the archive directory
+    * @param userId the user whose messages are shown
+    * @param pageSize messages per page
+    */
+   public MessageArchive (File dir, String userId, int pageSize) {
+      this._dir = dir;
+      this._userId = userId.trim();
+      this._pageSize = pageSize;
+      Map<String, List<File>> months = new HashMap<String, List<File>>();
+      for (File file : files(dir)){
+         String name = file.getName();
+         String month = name.substring(name.length() - SUFFIX.length() - 7, name.length() - SUFFIX.length());
+         if (!months.containsKey(month))
+            months.put(month, new ArrayList<File>());
+         months.get(month).add(file);
+      }//end for
+      List<String> newest = new ArrayList<String>(months.keySet());
+      Collections.sort(newest, Collections.reverseOrder());
+      for (String month : newest)
+         this._months.add(months.get(month));
+   }//end MessageArchive
+
+   /**
+    * Lists the archive files of a directory.
+    */
+   static File[] files (File dir) {
+      File[] files = dir.listFiles(new FilenameFilter(){
+         public boolean accept (File d, String name) {
+            return name.startsWith("message-") && name.endsWith(SUFFIX);
+         }
+      });
+      return files == null ? new File[0] : files;
+   }//end files
+
+   /**
+    * Tells whether a directory holds any archived months.
+    */
+   public static boolean exists (File dir) {
+      return files(dir).length > 0;
+   }//end exists
+
+   public List<Inbox.Message> first () throws IOException {
+      this._page = 0;
+      return page();
+   }//end first
+
+   public List<Inbox.Message> next () throws IOException {
+      if (hasNext())
+         ++this._page;
+      return page();
+   }//end next
+
+   public List<Inbox.Message> previous () throws IOException {
+      if (this._page > 0)
+         --this._page;
+      return page();
+   }//end previous
+
+   public boolean hasPrevious () { return this._page > 0; }
+
+   public boolean hasNext () throws IOException {
+      fill((this._page + 1) * this._pageSize + 1);
+      return this._read.size() > (this._page + 1) * this._pageSize;
+   }//end hasNext
+
+   private List<Inbox.Message> page () throws IOException {
+      int from = this._page * this._pageSize;
+      fill(from + this._pageSize);
+      return new ArrayList<Inbox.Message>(this._read.subList(Math.min(from, this._read.size()),
+                                                           Math.min(from + this._pageSize, this._read.size())));
+   }//end page
+
+   // reads months until count messages are known or none are left.
+   private void fill (int count) throws IOException {
+      while (this._read.size() < count && !this._months.isEmpty()){
+         List<Inbox.Message> month = new ArrayList<Inbox.Message>();
+         for (File file : this._months.remove(0))
+            read(file, this._userId, month);
+         Collections.sort(month, Inbox.NEWEST_FIRST);
+         this._read.addAll(month);
+      }//end while
+   }//end fill
+
+   /**
+    * Reads the messages of a user still visible to the user from one
+    * archive file, skipping the row groups that do not name the user.
+    *
+    * @param file the archive file
+    * @param userId the user, without padding
+    * @param out where the messages are added
+    * @throws java.io.IOException when the file cannot be read
+    */
+   static void read (File file, String userId, List<Inbox.Message> out) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try{
+         byte[] magic = new byte[MAGIC.length];
+         in.readFully(magic);
+         if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(file + " is not a message archive");
+         in.seek(in.length() - 8);
+         in.seek(in.readLong());
+         long[][] groups = new long[in.readInt()][3 + 2 * COLUMNS];
+         for (long[] group : groups)
+            for (int i = 0; i < group.length; ++i)
+               group[i] = in.readLong();
+         for (long[] group : groups){
+            int n = (int) group[0];
+            String[][] senders = new String[1][], receivers = new String[1][];
+            DataInputStream sender = column(in, group, SENDER);
+            int senderCode = lookup(sender, userId, senders);
+            DataInputStream receiver = column(in, group, RECEIVER);
+            int receiverCode = lookup(receiver, userId, receivers);
+            if (senderCode < 0 && receiverCode < 0)
+               continue;
+            int[] senderCodes = codes(sender, n);
+            int[] receiverCodes = codes(receiver, n);
+            DataInputStream deleted = column(in, group, DELETE_STATUS);
+            boolean[] visible = new boolean[n];
+            boolean any = false;
+            for (int i = 0; i < n; ++i){
+               int status = deleted.readByte();
+               visible[i] = receiverCodes[i] == receiverCode && (status == 0 || status == 2)
+                  || senderCodes[i] == senderCode && (status == 0 || status == 1);
+               any |= visible[i];
+            }//end for
+            if (!any)
+               continue;
+            DataInputStream ids = column(in, group, MSG_ID);
+            DataInputStream contents = column(in, group, CONTENTS);
+            DataInputStream times = column(in, group, SEND_TIME);
+            DataInputStream status = column(in, group, STATUS);
+            String[][] statuses = new String[1][];
+            lookup(status, null, statuses);
+            int[] statusCodes = codes(status, n);
+            int msgId = 0;
+            long time = 0;
+            for (int i = 0; i < n; ++i){
+               msgId += ids.readInt();
+               time += times.readLong();
+               String text = contents.readUTF();
+               if (visible[i])
+                  out.add(new Inbox.Message(msgId, senders[0][senderCodes[i]], receivers[0][receiverCodes[i]], text,
+                                            ResultTable.toTimestamp(time), statuses[0][statusCodes[i]]));
+            }//end for
+         }//end for
+      }finally{
+         in.close();
+      }//end try
+   }//end read
+
+   // inflates one column block of a row group.
+   private static DataInputStream column (RandomAccessFile in, long[] group, int column) throws IOException {
+      byte[] deflated = new byte[(int) group[4 + 2 * column]];
+      in.seek(group[3 + 2 * column]);
+      in.readFully(deflated);
+      Inflater inflater = new Inflater();
+      try{
+         inflater.setInput(deflated);
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(deflated.length * 4);
+         byte[] buffer = new byte[64 * 1024];
+         while (!inflater.finished()){
+            int count = inflater.inflate(buffer);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+               throw new IOException("truncated column block");
+            bytes.write(buffer, 0, count);
+         }//end while
+         return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      }catch (DataFormatException e){
+         throw new IOException("corrupt column block: " + e.getMessage());
+      }finally{
+         inflater.end();
+      }//end try
+   }//end column
+
+   // reads a dictionary, returning the code of value or -1.
+   private static int lookup (DataInputStream in, String value, String[][] dictionary) throws IOException {
+      String[] values = new String[in.readInt()];
+      for (int i = 0; i < values.length; ++i)
+         values[i] = in.readUTF();
+      dictionary[0] = values;
+      return value == null ? -1 : Math.max(-1, Arrays.binarySearch(values, value));
+   }//end lookup
+
+   private static int[] codes (DataInputStream in, int n) throws IOException {
+      int[] codes = new int[n];
+      for (int i = 0; i < n; ++i)
+         codes[i] = in.readInt();
+      return codes;
+   }//end codes
+
+   /**
+    * The archive file of a shard's month.
+    *
+    * @param month the month as yyyy-MM
+    */
+   static File file (File dir, int shard, String month) {
+      return new File(dir, "message-" + shard + "-" + month + SUFFIX);
+   }//end file
+
+}//end MessageArchive
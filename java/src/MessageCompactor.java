@@ -0,0 +1,320 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class removes the messages both sides deleted (deleteStatus 3),
+ * which displayMessage only marks, so MESSAGE and its indexes stop
+ * growing with dead rows.  A pass walks every message shard in msgId
+ * order, deleting batchSize marked messages per transaction through the
+ * partial index message_deleted_idx, so each transaction holds its row
+ * locks only briefly and the keyset never rescans what it passed.
+ *
+ * With an archive directory the deleted rows are first appended, in the
+ * message.csv format BulkLoader reads, to a gzip file per shard and day,
+ * synced before the delete commits.  A failed archive write rolls the
+ * batch back.
+ *
+ * Batches are paced by a pause that adapts to the foreground: when the
+ * mean latency of the other operations in QueryStats during a pause
+ * rises over slowdown times its usual value, the pause doubles up to
+ * maxPause, and it shrinks back once latency recovers.
+ *
+ * Usage: java MessageCompactor &lt;dbname&gt; &lt;port&gt; &lt;user&gt; for one pass
+ * offline, e.g. from cron; ProfNetworkServer runs it every
+ * profnetwork.compact.period ms when that is set.  Only one process
+ * should compact: passes of several would wait on each other's row
+ * locks and append to the same archive files.  Failed passes are counted
+ * in toString and logged to the server's standard error.
+ */
+public class MessageCompactor {
+
+   public static final int DEFAULT_BATCH = 500;
+   public static final long DEFAULT_PAUSE_MILLIS = 100;
+   public static final long DEFAULT_MAX_PAUSE_MILLIS = 10000;
+   public static final double DEFAULT_SLOWDOWN = 2.0;
+
+   // the operation the compactor's statements are counted under.
+   static final String OPERATION = "MessageCompactor";
+   // foreground calls needed during a pause to judge the latency.
+   static final int MIN_CALLS = 20;
+
+   static final String DELETE_SQL =
+      "DELETE FROM message WHERE msgId IN"
+      + " (SELECT msgId FROM message WHERE deleteStatus = 3 AND msgId > ? ORDER BY msgId LIMIT ?)"
+      + " RETURNING msgId, senderId, receiverId, contents, sendTime, deleteStatus, status";
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final ProfNetwork _esql;
+   private final int _batchSize;
+   private final long _minPause;
+   private final long _maxPause;
+   private final double _slowdown;
+   private final File _archive;
+   private ScheduledExecutorService _scheduler = null;
+   private volatile boolean _running = true;
+
+   // adapted by the pass running, read by toString.
+   private volatile long _pause;
+   private double _baseline = -1;
+   private volatile long _passes = 0;
+   private volatile long _batches = 0;
+   private volatile long _reclaimed = 0;
+   private volatile long _archived = 0;
+   private volatile long _throttled = 0;
+   private volatile long _failed = 0;
+
+   /**
+    * Creates a new compactor
+    *
+    * @param esql the database access object
+    * @param batchSize messages deleted per transaction
+    * @param pauseMillis pause between two batches
+    * @param maxPauseMillis longest pause while the foreground is slow
+    * @param slowdown foreground latency over this times its usual value
+    *                 is slow
+    * @param archive the directory deleted messages are archived to, null
+    *                for none
+    */
+   public MessageCompactor (ProfNetwork esql, int batchSize, long pauseMillis, long maxPauseMillis, double slowdown, File archive) {
+      this._esql = esql;
+      this._batchSize = Math.max(1, batchSize);
+      this._minPause = Math.max(0, pauseMillis);
+      this._maxPause = Math.max(this._minPause, maxPauseMillis);
+      this._slowdown = slowdown;
+      this._archive = archive;
+      this._pause = this._minPause;
+   }//end MessageCompactor
+
+   /**
+    * Method to run a pass periodically in the background.
+    *
+    * @param periodMillis time between the end of a pass and the next
+    */
+   public synchronized void start (long periodMillis) {
+      if (this._scheduler != null || periodMillis <= 0)
+         return;
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+         public Thread newThread (Runnable r){
+            Thread t = new Thread(r, "MessageCompactor");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._scheduler.scheduleWithFixedDelay(new Runnable(){
+         public void run (){
+            try{
+               compact();
+            }catch (SQLException e){
+               // the next pass starts over, nothing was lost.
+               ++MessageCompactor.this._failed;
+               System.err.println("MessageCompactor pass failed: " + e.getMessage());
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+            }//end try
+         }
+      }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Method to stop the background passes, the current one after its
+    * batch.
+    */
+   public synchronized void close () {
+      this._running = false;
+      if (this._scheduler != null){
+         this._scheduler.shutdownNow();
+         try{
+            this._scheduler.awaitTermination(5, TimeUnit.SECONDS);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+         this._scheduler = null;
+      }//end if
+   }//end close
+
+   /**
+    * Method to remove every message marked deleted by both sides, one
+    * shard after the other.
+    *
+    * @return the number of messages removed
+    * @throws java.sql.SQLException when a batch failed
+    * @throws java.lang.InterruptedException when stopped while pausing
+    */
+   public long compact () throws SQLException, InterruptedException {
+      String previous = QueryStats.enter(OPERATION);
+      try{
+         MessageShards shards = this._esql.getMessageShards();
+         long removed = 0;
+         for (int shard = 0; shard < shards.size() && this._running; ++shard)
+            removed += compact(shards, shard);
+         ++this._passes;
+         return removed;
+      }finally{
+         QueryStats.exit(previous);
+      }//end try
+   }//end compact
+
+   private long compact (MessageShards shards, final int shard) throws SQLException, InterruptedException {
+      long removed = 0;
+      int after = -1;
+      while (this._running){
+         final int from = after;
+         int[] batch = shards.executeInTransaction(shard, new ProfNetwork.Transaction<int[]>(){
+            public int[] run (ConnectionPool.PooledConnection pc) throws SQLException {
+               return deleteBatch(pc, shard, from);
+            }
+         });
+         if (batch[1] == 0)
+            break;
+         ++this._batches;
+         this._reclaimed += batch[1];
+         if (this._archive != null)
+            this._archived += batch[1];
+         removed += batch[1];
+         after = batch[0];
+         pause();
+      }//end while
+      return removed;
+   }//end compact
+
+   // deletes one batch after a msgId, archiving it before the commit;
+   // returns the last msgId deleted and the number of messages.
+   private int[] deleteBatch (ConnectionPool.PooledConnection pc, int shard, int after) throws SQLException {
+      Object[] params = { Integer.valueOf(after), Integer.valueOf(this._batchSize) };
+      PreparedStatement stmt = ProfNetwork.prepare(pc, DELETE_SQL, params);
+      StringBuilder csv = this._archive == null ? null : new StringBuilder();
+      int last = -1, rows = 0;
+      try{
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()){
+            last = Math.max(last, rs.getInt(1));
+            ++rows;
+            if (csv != null){
+               csv.append(rs.getInt(1)).append(',');
+               quote(rs.getString(2), csv).append(',');
+               quote(rs.getString(3), csv).append(',');
+               quote(rs.getString(4), csv).append(',');
+               String sendTime = rs.getString(5);
+               csv.append(sendTime == null ? "" : sendTime).append(',');
+               csv.append(rs.getInt(6)).append(',');
+               quote(rs.getString(7), csv).append('\n');
+            }//end if
+         }//end while
+         rs.close();
+      }finally{
+         pc.getStatements().release(DELETE_SQL, stmt);
+      }//end try
+      if (csv != null && rows > 0)
+         archive(shard, csv);
+      return new int[]{ last, rows };
+   }//end deleteBatch
+
+   // appends a batch as one more gzip member, synced to disk.
+   private void archive (int shard, CharSequence csv) throws SQLException {
+      String day = new SimpleDateFormat("yyyyMMdd").format(new Date());
+      File file = new File(this._archive, "message-" + shard + "-" + day + ".csv.gz");
+      try{
+         this._archive.mkdirs();
+         FileOutputStream out = new FileOutputStream(file, true);
+         try{
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            Writer writer = new OutputStreamWriter(gzip, UTF8);
+            writer.append(csv);
+            writer.flush();
+            gzip.finish();
+            out.getFD().sync();
+         }finally{
+            out.close();
+         }//end try
+      }catch (IOException e){
+         throw new SQLException("could not archive deleted messages to " + file + ": " + e.getMessage());
+      }//end try
+   }//end archive
+
+   // quotes a CSV field, trimming the padding of char columns.
+   static StringBuilder quote (String value, StringBuilder out) {
+      if (value == null)
+         return out;
+      value = ResultTable.trimTrailing(value);
+      out.append('"');
+      for (int i = 0; i < value.length(); ++i){
+         char c = value.charAt(i);
+         if (c == '"')
+            out.append('"');
+         out.append(c);
+      }//end for
+      return out.append('"');
+   }//end quote
+
+   /**
+    * Waits between two batches, longer while the foreground operations
+    * are slower than usual.
+    */
+   private void pause () throws InterruptedException {
+      QueryStats stats = this._esql.getQueryStats();
+      long[] before = stats == null ? null : stats.totals(OPERATION);
+      if (this._pause > 0)
+         Thread.sleep(this._pause);
+      if (stats == null)
+         return;
+      long[] after = stats.totals(OPERATION);
+      long calls = after[0] - before[0];
+      if (calls < MIN_CALLS)
+         return;
+      double mean = (double) (after[1] - before[1]) / calls;
+      if (this._baseline < 0)
+         this._baseline = mean;
+      if (mean > this._slowdown * this._baseline){
+         ++this._throttled;
+         this._pause = Math.min(this._maxPause, Math.max(1, this._pause * 2));
+      }else{
+         this._pause = Math.max(this._minPause, this._pause / 2);
+         // follows the usual latency slowly, and only while not slowed.
+         this._baseline = 0.95 * this._baseline + 0.05 * mean;
+      }//end if
+   }//end pause
+
+   public String toString () {
+      return String.format("compactor: %d deleted messages removed in %d batches over %d passes, %d archived,"
+                           + " throttled %d times, pause %d ms, %d passes failed",
+                           this._reclaimed, this._batches, this._passes, this._archived, this._throttled, this._pause,
+                           this._failed);
+   }//end toString
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " +
+            MessageCompactor.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try{
+         MessageCompactor compactor = esql.newCompactor();
+         long start = System.nanoTime();
+         long removed = compactor.compact();
+         System.out.println(String.format("%d messages removed in %.1f s", removed, (System.nanoTime() - start) / 1e9));
+         System.out.println(compactor);
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end MessageCompactor
@@ -0,0 +1,168 @@
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the counts shown on the login banner: a user's unread
+ * and received messages, sent messages and connection requests waiting
+ * for an answer.  The triggers in triggers.sql keep them in
+ * MESSAGE_COUNTERS and CONNECTION_COUNTERS in the same transaction as the
+ * rows they count, so reading them is a primary key lookup per message
+ * shard instead of a COUNT over MESSAGE, and the Cache serves repeated
+ * reads without a query.
+ *
+ */
+public class MessageCounters {
+
+   static final String MESSAGES_SQL =
+      "SELECT unread, received, sent FROM message_counters WHERE userId = ?::bpchar";
+   static final String PENDING_SQL =
+      "SELECT pending FROM connection_counters WHERE userId = ?::bpchar";
+
+   // the counts of the messages a month table holds, taken off when it is dropped.
+   static final String SUBTRACT_SQL =
+      "UPDATE message_counters c SET unread = c.unread - d.unread, received = c.received - d.received, sent = c.sent - d.sent"
+      + " FROM (SELECT userId, sum(unread) AS unread, sum(received) AS received, sum(sent) AS sent FROM ("
+      + " SELECT receiverId AS userId, count(*) FILTER (WHERE status = 'Sent') AS unread, count(*) AS received, 0 AS sent"
+      + " FROM %1$s WHERE deleteStatus IS NULL OR deleteStatus IN (0, 2) GROUP BY receiverId"
+      + " UNION ALL"
+      + " SELECT senderId, 0, 0, count(*) FROM %1$s WHERE deleteStatus IS NULL OR deleteStatus IN (0, 1) GROUP BY senderId"
+      + ") counts GROUP BY userId) d WHERE c.userId = d.userId";
+
+   public final long unread;
+   public final long received;
+   public final long sent;
+   public final long pending;
+   final long loadedAt;
+
+   MessageCounters (long unread, long received, long sent, long pending) {
+      this.unread = unread;
+      this.received = received;
+      this.sent = sent;
+      this.pending = pending;
+      this.loadedAt = System.currentTimeMillis();
+   }//end MessageCounters
+
+   /**
+    * Method to read a user's counts, summing the message shards.
+    *
+    * @param esql the database access object
+    * @param userId the user
+    * @return the counts, zero for a user without any
+    * @throws java.sql.SQLException when failed to read the counts
+    */
+   public static MessageCounters load (ProfNetwork esql, String userId) throws SQLException {
+      long unread = 0, received = 0, sent = 0, pending = 0;
+      List<ResultTable> shards = esql.getMessageShards().queryAllPrimary(MESSAGES_SQL, userId);
+      for (ResultTable counts : shards){
+         if (counts.isEmpty())
+            continue;
+         unread += counts.getLong(0, 0);
+         received += counts.getLong(0, 1);
+         sent += counts.getLong(0, 2);
+      }//end for
+      ResultTable requests = esql.executePrimaryQueryAndReturnTable(PENDING_SQL, userId);
+      if (!requests.isEmpty())
+         pending = requests.getLong(0, 0);
+      return new MessageCounters(unread, received, sent, pending);
+   }//end load
+
+   /**
+    * Method to drop a month table detached from MESSAGE, which fires no
+    * trigger, taking its messages off the counts in the same transaction.
+    * Nothing writes a detached table, so no lock is needed.
+    *
+    * @param shards the message shards
+    * @param shard the shard holding the table
+    * @param table the detached table
+    * @throws java.sql.SQLException when failed to drop the table
+    */
+   public static void drop (MessageShards shards, int shard, final String table) throws SQLException {
+      shards.executeInTransaction(shard, new ProfNetwork.Transaction<Void>(){
+         public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+            Statement stmt = pc.getConnection().createStatement();
+            try{
+               stmt.executeUpdate(String.format(SUBTRACT_SQL, table));
+               stmt.executeUpdate("DROP TABLE " + table);
+            }finally{
+               stmt.close();
+            }//end try
+            return null;
+         }
+      });
+   }//end drop
+
+   public String toString () {
+      return String.format("%d unread of %d messages received, %d sent, %d connection requests waiting",
+                           this.unread, this.received, this.sent, this.pending);
+   }//end toString
+
+   /**
+    * Least recently used cache of counts with a time to live, so changes
+    * made by other processes show up within one interval.  Changes made
+    * through this process invalidate the users they count for.
+    */
+   public static class Cache {
+      private final Map<String, MessageCounters> _counts;
+      private final long _ttlMillis;
+      private long _hits = 0;
+      private long _misses = 0;
+      // bumped by every invalidation, so a read racing one is not kept.
+      private long _generation = 0;
+
+      /**
+       * Creates a new cache
+       *
+       * @param capacity the number of users whose counts are kept
+       * @param ttlMillis how long counts are served, 0 for no limit
+       */
+      public Cache (final int capacity, long ttlMillis) {
+         this._ttlMillis = ttlMillis;
+         this._counts = new LinkedHashMap<String, MessageCounters>(16, 0.75f, true){
+            protected boolean removeEldestEntry (Map.Entry<String, MessageCounters> eldest){
+               return size() > capacity;
+            }
+         };
+      }//end Cache
+
+      /**
+       * Method to fetch a user's counts, reading them on a miss.
+       *
+       * @param esql the database access object
+       * @param userId the user
+       * @return the counts
+       * @throws java.sql.SQLException when failed to read the counts
+       */
+      public MessageCounters get (ProfNetwork esql, String userId) throws SQLException {
+         String key = userId.trim();
+         long generation;
+         synchronized (this){
+            MessageCounters counts = this._counts.get(key);
+            if (counts != null && (this._ttlMillis <= 0 || System.currentTimeMillis() - counts.loadedAt < this._ttlMillis)){
+               ++this._hits;
+               return counts;
+            }//end if
+            ++this._misses;
+            generation = this._generation;
+         }//end synchronized
+         MessageCounters counts = MessageCounters.load(esql, key);
+         synchronized (this){
+            if (generation == this._generation)
+               this._counts.put(key, counts);
+         }//end synchronized
+         return counts;
+      }//end get
+
+      public synchronized void invalidate (String userId) {
+         ++this._generation;
+         this._counts.remove(userId.trim());
+      }//end invalidate
+
+      public synchronized String toString () {
+         return String.format("counters: %d cached, %d hits, %d misses", this._counts.size(), this._hits, this._misses);
+      }//end toString
+   }//end Cache
+
+}//end MessageCounters
@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Calendar;
+
+/**
+ * This class partitions MESSAGE by month of sendTime on every message
+ * shard and moves old months to the cold archive, so the partitions
+ * inbox pages read, and their indexes, hold only recent messages however
+ * long the history grows.  It needs PostgreSQL 11 or later.
+ *
+ * Usage: java MessagePartitions &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;command&gt;
+ * with the commands
+ *
+ *  setup     turns MESSAGE into a table partitioned by month, from the
+ *            month of its oldest message to profnetwork.partitions.ahead
+ *            months from now, with a default partition for the rest;
+ *  ahead     creates the partitions of the next months, moving their
+ *            rows out of the default partition, e.g. monthly from cron;
+ *  archive   detaches the partition of every month older than
+ *            profnetwork.partitions.retain months, so its rows cannot
+ *            change any more, writes it to a MessageArchive file in
+ *            profnetwork.archive and drops it, taking its messages off
+ *            the counts (MessageCounters);
+ *  list      prints the partitions and their rows.
+ *
+ * Every command can be run again after a failure.  The defaults the
+ * incr_message_num trigger filled in become column defaults, so rows
+ * are routed by the sendTime they are inserted with.  A column default
+ * does not replace an explicit NULL, so BulkLoader and MessageRebalancer
+ * fill those in themselves.
+ */
+public class MessagePartitions {
+
+   public static final int DEFAULT_AHEAD = 3;
+   public static final int DEFAULT_RETAIN = 12;
+   public static final String DEFAULT_ARCHIVE = "archive";
+
+   // rows read from a partition per query while archiving it.
+   static final int PAGE = 5000;
+
+   static final String PARTITIONS_SQL =
+      "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+      + " JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = 'message' ORDER BY c.relname";
+   // the month tables, attached or left detached by an interrupted archive.
+   static final String MONTHS_SQL =
+      "SELECT relname, relispartition::int FROM pg_class WHERE relkind = 'r'"
+      + " AND relname ~ '^message_y[0-9]{4}m[0-9]{2}$' ORDER BY relname";
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " +
+            MessagePartitions.class.getName () +
+            " <dbname> <port> <user> setup|ahead|archive|list");
+         return;
+      }//end if
+      int ahead = Integer.getInteger("profnetwork.partitions.ahead", DEFAULT_AHEAD);
+      int retain = Integer.getInteger("profnetwork.partitions.retain", DEFAULT_RETAIN);
+      File archive = new File(System.getProperty("profnetwork.archive", DEFAULT_ARCHIVE));
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try{
+         esql.setPrimaryOnly(true);
+         MessageShards shards = esql.getMessageShards();
+         for (int shard = 0; shard < shards.size(); ++shard){
+            System.out.println(String.format("shard %d %s:", shard, shards.name(shard)));
+            if ("setup".equals(args[3]))
+               setup(shards, shard, ahead);
+            else if ("ahead".equals(args[3]))
+               ahead(shards, shard, ahead);
+            else if ("archive".equals(args[3]))
+               archive(shards, shard, retain, archive);
+            else if ("list".equals(args[3]))
+               list(shards, shard);
+            else{
+               System.err.println("unknown command " + args[3]);
+               return;
+            }//end if
+         }//end for
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Replaces a shard's MESSAGE by a table partitioned by month holding
+    * the same rows, in one transaction.
+    */
+   static void setup (MessageShards shards, final int shard, final int ahead) throws SQLException {
+      if (!shards.query(shard, "SELECT relname FROM pg_class WHERE relname = 'message' AND relkind = 'p'").isEmpty()){
+         System.out.println("\talready partitioned");
+         return;
+      }//end if
+      int months = shards.executeInTransaction(shard, new ProfNetwork.Transaction<Integer>(){
+         public Integer run (ConnectionPool.PooledConnection pc) throws SQLException {
+            Connection conn = pc.getConnection();
+            execute(conn, "LOCK TABLE message IN ACCESS EXCLUSIVE MODE");
+            Calendar first = month(System.currentTimeMillis());
+            Statement stmt = conn.createStatement();
+            try{
+               ResultSet rs = stmt.executeQuery("SELECT min(sendTime) FROM message");
+               if (rs.next() && rs.getTimestamp(1) != null)
+                  first = month(rs.getTimestamp(1).getTime());
+               rs.close();
+            }finally{
+               stmt.close();
+            }//end try
+            Calendar last = month(System.currentTimeMillis());
+            last.add(Calendar.MONTH, ahead);
+
+            execute(conn, "ALTER TABLE message RENAME TO message_unpartitioned");
+            execute(conn, "ALTER TABLE message_unpartitioned DROP CONSTRAINT IF EXISTS message_pkey");
+            execute(conn, "ALTER TABLE message_unpartitioned DROP CONSTRAINT IF EXISTS message_msgid_key");
+            execute(conn, "DROP INDEX IF EXISTS message_receiver_time_idx");
+            execute(conn, "DROP INDEX IF EXISTS message_sender_time_idx");
+            execute(conn, "DROP INDEX IF EXISTS message_deleted_idx");
+            execute(conn, "DROP INDEX IF EXISTS message_contents_idx");
+            // the users are only in the main database.
+            String users = shard == 0 ? ", FOREIGN KEY(senderId) REFERENCES USR(userId), FOREIGN KEY(receiverId) REFERENCES USR(userId)" : "";
+            execute(conn, "CREATE TABLE message("
+                    + "msgId integer NOT NULL DEFAULT nextval('message_id_seq'), senderId char(50) NOT NULL,"
+                    + " receiverId char(50) NOT NULL, contents char(500) NOT NULL,"
+                    + " sendTime timestamp NOT NULL DEFAULT current_timestamp, deleteStatus integer NOT NULL DEFAULT 0,"
+                    + " status char(30) NOT NULL DEFAULT 'Sent', PRIMARY KEY(msgId, sendTime)" + users
+                    + ") PARTITION BY RANGE (sendTime)");
+            execute(conn, "CREATE TABLE message_default PARTITION OF message DEFAULT");
+            int created = 0;
+            for (Calendar m = first; !m.after(last); m.add(Calendar.MONTH, 1), ++created)
+               execute(conn, "CREATE TABLE " + name(m) + " PARTITION OF message FOR VALUES FROM (" + bounds(m) + ")");
+            execute(conn, "INSERT INTO message(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status)"
+                    + " SELECT msgId, senderId, receiverId, contents, COALESCE(sendTime, current_timestamp),"
+                    + " COALESCE(deleteStatus, 0), status FROM message_unpartitioned");
+            // the defaults of incr_message_num are column defaults now.
+            execute(conn, "DROP TABLE message_unpartitioned");
+            execute(conn, "CREATE INDEX message_receiver_time_idx ON message(receiverId, sendTime, msgId) WHERE deleteStatus IN (0, 2)");
+            execute(conn, "CREATE INDEX message_sender_time_idx ON message(senderId, sendTime, msgId) WHERE deleteStatus IN (0, 1)");
+            execute(conn, "CREATE INDEX message_deleted_idx ON message(msgId) WHERE deleteStatus = 3");
+            execute(conn, "CREATE INDEX message_contents_idx ON message USING gin (to_tsvector('english', contents))");
+            // created after the copy, which the counters already hold, and
+            // per statement, so they are not cloned onto the partitions.
+            execute(conn, "CREATE TRIGGER message_counters_insert AFTER INSERT ON message"
+                    + " REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_messages()");
+            execute(conn, "CREATE TRIGGER message_counters_update AFTER UPDATE ON message"
+                    + " REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_messages()");
+            execute(conn, "CREATE TRIGGER message_counters_delete AFTER DELETE ON message"
+                    + " REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_messages()");
+            return Integer.valueOf(created);
+         }
+      });
+      System.out.println("\tpartitioned into " + months + " months");
+   }//end setup
+
+   /**
+    * Creates the missing partitions from this month to ahead months from
+    * now, each in one transaction moving its rows out of the default
+    * partition in one statement, while writes to it wait.  The counter
+    * triggers are on MESSAGE only, so the move leaves the counts alone.
+    */
+   static void ahead (MessageShards shards, int shard, int ahead) throws SQLException {
+      Calendar m = month(System.currentTimeMillis());
+      for (int i = 0; i <= ahead; ++i, m.add(Calendar.MONTH, 1)){
+         final String name = name(m);
+         final String bounds = bounds(m);
+         final String range = range(m);
+         if (!shards.query(shard, "SELECT relname FROM pg_class WHERE relname = ?", name).isEmpty())
+            continue;
+         int moved = shards.executeInTransaction(shard, new ProfNetwork.Transaction<Integer>(){
+            public Integer run (ConnectionPool.PooledConnection pc) throws SQLException {
+               Connection conn = pc.getConnection();
+               // no message can arrive in message_default until the new
+               // partition is attached, so none is left behind.
+               execute(conn, "LOCK TABLE message_default IN SHARE ROW EXCLUSIVE MODE");
+               execute(conn, "CREATE TABLE " + name + " (LIKE message INCLUDING DEFAULTS)");
+               int rows = execute(conn, "WITH moved AS (DELETE FROM message_default WHERE " + range + " RETURNING *)"
+                                  + " INSERT INTO " + name + " SELECT * FROM moved");
+               execute(conn, "ALTER TABLE message ATTACH PARTITION " + name + " FOR VALUES FROM (" + bounds + ")");
+               return Integer.valueOf(rows);
+            }
+         });
+         System.out.println("\tcreated " + name + (moved > 0 ? ", " + moved + " rows moved from message_default" : ""));
+      }//end for
+   }//end ahead
+
+   /**
+    * Moves the months older than retain months to archive files, one
+    * partition at a time: the partition is detached, its file written and
+    * synced, then the table dropped with its counts.  A table left
+    * detached by an earlier run is archived again; until it is dropped the
+    * counts still include its messages.
+    */
+   static void archive (MessageShards shards, int shard, int retain, File dir) throws SQLException, IOException {
+      Calendar cutoff = month(System.currentTimeMillis());
+      cutoff.add(Calendar.MONTH, -retain);
+      String oldest = name(cutoff);
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+      ResultTable months = shards.query(shard, MONTHS_SQL);
+      for (int i = 0; i < months.getRowCount(); ++i){
+         String name = months.getString(i, 0);
+         // message_yYYYYmMM sorts by month.
+         if (name.compareTo(oldest) >= 0)
+            continue;
+         // detached first, so no status change or delete made while the
+         // file is written is lost with the table; the messages are in
+         // neither MESSAGE nor the archive until the file is renamed.
+         if (months.getInt(i, 1) == 1)
+            shards.update(shard, "ALTER TABLE message DETACH PARTITION " + name);
+         String month = name.substring(9, 13) + "-" + name.substring(14, 16);
+         File file = MessageArchive.file(dir, shard, month);
+         File partial = new File(file.getPath() + ".partial");
+         MessageArchive.Writer writer = new MessageArchive.Writer(partial, PAGE);
+         try{
+            int after = -1;
+            while (true){
+               ResultTable page = shards.query(shard, "SELECT msgId, senderId, receiverId, contents, sendTime, deleteStatus, status FROM "
+                                               + name + " WHERE msgId > ? ORDER BY msgId LIMIT ?", after, PAGE);
+               if (page.isEmpty())
+                  break;
+               for (int r = 0; r < page.getRowCount(); ++r){
+                  ResultTable.Row row = page.row(r);
+                  writer.add(row.getInt(0), row.getString(1), row.getString(2), row.getString(3),
+                             row.getLong(4), row.isNull(5) ? 0 : row.getInt(5), row.getString(6));
+               }//end for
+               after = page.getInt(page.getRowCount() - 1, 0);
+            }//end while
+         }finally{
+            writer.close();
+         }//end try
+         if (!partial.renameTo(file))
+            throw new IOException("cannot rename " + partial + " to " + file);
+         MessageCounters.drop(shards, shard, name);
+         System.out.println(String.format("\t%s: %d messages archived to %s", name, writer.rows(), file));
+      }//end for
+   }//end archive
+
+   static void list (MessageShards shards, int shard) throws SQLException {
+      ResultTable partitions = shards.query(shard, PARTITIONS_SQL);
+      if (partitions.isEmpty())
+         System.out.println("\tnot partitioned, run setup");
+      for (int i = 0; i < partitions.getRowCount(); ++i){
+         String name = partitions.getString(i, 0);
+         ResultTable count = shards.query(shard, "SELECT count(*), pg_total_relation_size('" + name + "') FROM " + name);
+         System.out.println(String.format("\t%-20s %12d rows %12d kB", name, count.getLong(0, 0), count.getLong(0, 1) / 1024));
+      }//end for
+   }//end list
+
+   // the first instant of the month of a time, in the local time zone
+   // sendTime values are read and written in.
+   static Calendar month (long millis) {
+      Calendar m = Calendar.getInstance();
+      m.setTimeInMillis(millis);
+      m.set(m.get(Calendar.YEAR), m.get(Calendar.MONTH), 1, 0, 0, 0);
+      m.set(Calendar.MILLISECOND, 0);
+      return m;
+   }//end month
+
+   // the partition of a month, e.g. message_y2015m01.
+   static String name (Calendar m) {
+      return String.format("message_y%04dm%02d", m.get(Calendar.YEAR), m.get(Calendar.MONTH) + 1);
+   }//end name
+
+   // the bounds of a month's partition, e.g. '2015-01-01') TO ('2015-02-01'.
+   static String bounds (Calendar m) {
+      return String.format("'%s') TO ('%s'", day(m, 0), day(m, 1));
+   }//end bounds
+
+   // the condition selecting a month's rows.
+   static String range (Calendar m) {
+      return String.format("sendTime >= '%s' AND sendTime < '%s'", day(m, 0), day(m, 1));
+   }//end range
+
+   // the first day of the month months after m, as yyyy-mm-dd.
+   private static String day (Calendar m, int months) {
+      Calendar d = (Calendar) m.clone();
+      d.add(Calendar.MONTH, months);
+      return String.format("%04d-%02d-01", d.get(Calendar.YEAR), d.get(Calendar.MONTH) + 1);
+   }//end day
+
+   private static int execute (Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         return stmt.executeUpdate(sql);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end execute
+
+}//end MessagePartitions
@@ -0,0 +1,271 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class spreads the conversation buckets evenly over the message
+ * shards after shards were added to profnetwork.messageShards, moving as
+ * few buckets as it can.  It runs offline, while no ProfNetwork is
+ * sending or deleting messages, in three phases:
+ *
+ *  1. the messages of every moved bucket are copied to their new shard,
+ *     a page of msgIds at a time, replacing copies of an earlier run;
+ *  2. the new shard map is written to message_shard_map in one
+ *     transaction, from when on ProfNetwork reads the new shards;
+ *  3. every shard deletes the messages of buckets it no longer holds.
+ *
+ * Each phase can be run again, so an interrupted rebalance is finished
+ * by starting it again.  Between phases 2 and 3 a message may be on two
+ * shards; Inbox shows it once.
+ *
+ * Usage: java MessageRebalancer &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ * with the shards in -Dprofnetwork.messageShards as for ProfNetwork.
+ */
+public class MessageRebalancer {
+
+   // messages read per page of the keyset scan.
+   static final int PAGE = 5000;
+   // rows per INSERT or DELETE statement at most.
+   static final int CHUNK = 256;
+
+   // the defaults of incr_message_num filled in, since a partitioned
+   // MESSAGE refuses or miscounts the NULLs that trigger replaced.
+   static final String SCAN_SQL =
+      "SELECT msgId, senderId, receiverId, contents, COALESCE(sendTime, current_timestamp),"
+      + " COALESCE(deleteStatus, 0), status FROM message WHERE msgId > ? ORDER BY msgId LIMIT ?";
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " +
+            MessageRebalancer.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try{
+         esql.setPrimaryOnly(true);
+         MessageShards shards = esql.getMessageShards();
+         int[] current = readMap(esql);
+         int[] target = balance(current, shards.size());
+         int moved = 0;
+         for (int bucket = 0; bucket < MessageShards.BUCKETS; ++bucket)
+            if (current[bucket] != target[bucket])
+               ++moved;
+         System.out.println(String.format("%d shards, %d of %d buckets move", shards.size(), moved, MessageShards.BUCKETS));
+
+         for (int shard = 0; shard < shards.size(); ++shard)
+            System.out.println(String.format("shard %d %s: %d messages copied out", shard, shards.name(shard),
+                                             copy(shards, shard, current, target)));
+         writeMap(esql, target);
+         System.out.println("shard map written");
+         for (int shard = 0; shard < shards.size(); ++shard)
+            System.out.println(String.format("shard %d %s: %d messages purged", shard, shards.name(shard),
+                                             purge(shards, shard, target)));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Reads the shard of every bucket, 0 for buckets not in the map.
+    */
+   static int[] readMap (ProfNetwork esql) throws SQLException {
+      int[] map = new int[MessageShards.BUCKETS];
+      ResultTable rows = esql.executeQueryAndReturnTable(MessageShards.MAP_SQL);
+      for (int i = 0; i < rows.getRowCount(); ++i)
+         map[rows.getInt(i, 0)] = rows.getInt(i, 1);
+      return map;
+   }//end readMap
+
+   /**
+    * Computes a map giving every shard BUCKETS / shards buckets, the
+    * shards holding the most getting the remainder, by moving only the
+    * buckets of shards holding more than their share.
+    *
+    * @param current the shard of every bucket now
+    * @param shards the number of shards
+    * @return the shard of every bucket after the rebalance
+    */
+   static int[] balance (int[] current, int shards) {
+      int[] count = new int[shards];
+      for (int shard : current)
+         ++count[shard];
+      // the shards with the most buckets keep one more than the others.
+      Integer[] order = new Integer[shards];
+      for (int i = 0; i < shards; ++i)
+         order[i] = Integer.valueOf(i);
+      final int[] counted = count.clone();
+      Arrays.sort(order, new Comparator<Integer>(){
+         public int compare (Integer a, Integer b) {
+            return counted[b.intValue()] - counted[a.intValue()];
+         }
+      });
+      int[] share = new int[shards];
+      for (int i = 0; i < shards; ++i)
+         share[order[i].intValue()] = current.length / shards + (i < current.length % shards ? 1 : 0);
+
+      int[] target = current.clone();
+      int under = 0;
+      for (int bucket = 0; bucket < target.length; ++bucket){
+         int from = target[bucket];
+         if (count[from] <= share[from])
+            continue;
+         while (count[under] >= share[under])
+            ++under;
+         target[bucket] = under;
+         --count[from];
+         ++count[under];
+      }//end for
+      return target;
+   }//end balance
+
+   /**
+    * Phase 1: copies the messages of one shard whose bucket moves to
+    * their new shard, replacing what an earlier run copied.
+    *
+    * @return the number of messages copied
+    */
+   static long copy (MessageShards shards, int shard, int[] current, int[] target) throws SQLException {
+      long copied = 0;
+      int after = -1;
+      while (true){
+         ResultTable page = shards.query(shard, SCAN_SQL, after, PAGE);
+         if (page.isEmpty())
+            return copied;
+         List<List<Object[]>> moving = new ArrayList<List<Object[]>>();
+         for (int i = 0; i < shards.size(); ++i)
+            moving.add(new ArrayList<Object[]>());
+         for (int i = 0; i < page.getRowCount(); ++i){
+            ResultTable.Row row = page.row(i);
+            int bucket = MessageShards.bucket(row.getString(1), row.getString(2));
+            if (current[bucket] == target[bucket] || target[bucket] == shard)
+               continue;
+            moving.get(target[bucket]).add(new Object[]{
+               Integer.valueOf(row.getInt(0)), row.getString(1), row.getString(2), row.getString(3),
+               ResultTable.toTimestamp(row.getLong(4)), Integer.valueOf(row.getInt(5)), row.getString(6) });
+         }//end for
+         for (int to = 0; to < shards.size(); ++to){
+            final List<Object[]> rows = moving.get(to);
+            if (rows.isEmpty())
+               continue;
+            shards.executeInTransaction(to, new ProfNetwork.Transaction<Void>(){
+               public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+                  List<Object> ids = new ArrayList<Object>(rows.size());
+                  for (Object[] row : rows)
+                     ids.add(row[0]);
+                  delete(pc, ids);
+                  insert(pc, rows);
+                  return null;
+               }
+            });
+            copied += rows.size();
+         }//end for
+         after = page.getInt(page.getRowCount() - 1, 0);
+      }//end while
+   }//end copy
+
+   /**
+    * Phase 2: replaces the shard map.
+    */
+   static void writeMap (ProfNetwork esql, final int[] target) throws SQLException {
+      esql.executeInTransaction(new ProfNetwork.Transaction<Void>(){
+         public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+            execute(pc, "DELETE FROM message_shard_map", new Object[0]);
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (int bucket = 0; bucket < target.length; ++bucket){
+               if (target[bucket] != 0)
+                  rows.add(new Object[]{ Integer.valueOf(bucket), Integer.valueOf(target[bucket]) });
+            }//end for
+            insert(pc, "INSERT INTO message_shard_map(bucket, shard) VALUES ", rows);
+            return null;
+         }
+      });
+   }//end writeMap
+
+   /**
+    * Phase 3: deletes the messages of one shard whose bucket is on
+    * another shard.
+    *
+    * @return the number of messages deleted
+    */
+   static long purge (MessageShards shards, int shard, int[] target) throws SQLException {
+      long purged = 0;
+      int after = -1;
+      while (true){
+         ResultTable page = shards.query(shard, SCAN_SQL, after, PAGE);
+         if (page.isEmpty())
+            return purged;
+         final List<Object> ids = new ArrayList<Object>();
+         for (int i = 0; i < page.getRowCount(); ++i){
+            if (target[MessageShards.bucket(page.getString(i, 1), page.getString(i, 2))] != shard)
+               ids.add(Integer.valueOf(page.getInt(i, 0)));
+         }//end for
+         if (!ids.isEmpty()){
+            shards.executeInTransaction(shard, new ProfNetwork.Transaction<Void>(){
+               public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+                  delete(pc, ids);
+                  return null;
+               }
+            });
+            purged += ids.size();
+         }//end if
+         after = page.getInt(page.getRowCount() - 1, 0);
+      }//end while
+   }//end purge
+
+   // deletes messages by msgId, in statements of at most CHUNK ids.
+   static void delete (ConnectionPool.PooledConnection pc, List<Object> ids) throws SQLException {
+      int done = 0;
+      while (done < ids.size()){
+         int chunk = Math.min(CHUNK, Integer.highestOneBit(ids.size() - done));
+         StringBuilder sql = new StringBuilder("DELETE FROM message WHERE msgId IN (");
+         for (int i = 0; i < chunk; ++i)
+            sql.append(i == 0 ? "?" : ", ?");
+         execute(pc, sql.append(')').toString(), ids.subList(done, done + chunk).toArray());
+         done += chunk;
+      }//end while
+   }//end delete
+
+   // inserts whole MESSAGE rows.
+   static void insert (ConnectionPool.PooledConnection pc, List<Object[]> rows) throws SQLException {
+      insert(pc, "INSERT INTO message(msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES ", rows);
+   }//end insert
+
+   /**
+    * Inserts rows in power of two sized chunks of at most CHUNK rows, as
+    * MessageWriter.insert does.
+    */
+   static void insert (ConnectionPool.PooledConnection pc, String prefix, List<Object[]> rows) throws SQLException {
+      int done = 0;
+      while (done < rows.size()){
+         int chunk = Math.min(CHUNK, Integer.highestOneBit(rows.size() - done));
+         int width = rows.get(done).length;
+         StringBuilder sql = new StringBuilder(prefix);
+         Object[] params = new Object[width * chunk];
+         for (int i = 0; i < chunk; ++i){
+            sql.append(i == 0 ? "(" : ", (");
+            for (int j = 0; j < width; ++j)
+               sql.append(j == 0 ? "?" : ", ?");
+            sql.append(')');
+            System.arraycopy(rows.get(done + i), 0, params, width * i, width);
+         }//end for
+         execute(pc, sql.toString(), params);
+         done += chunk;
+      }//end while
+   }//end insert
+
+   private static void execute (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+      PreparedStatement stmt = ProfNetwork.prepare(pc, sql, params);
+      try{
+         stmt.executeUpdate();
+      }finally{
+         pc.getStatements().release(sql, stmt);
+      }//end try
+   }//end execute
+
+}//end MessageRebalancer
@@ -0,0 +1,136 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class finds the messages a user sent or received by the words in
+ * their contents, best match first.  The words are matched with Postgres
+ * full text search against the GIN index message_contents_idx in
+ * create_index.sql, which the planner combines with the partial sender
+ * and receiver indexes, so a search reads only the user's matching
+ * messages instead of scanning contents.  Every message shard is searched
+ * at once (MessageShards) and their best matches are merged by rank.
+ *
+ * Pages are reached by offset: a page costs the matches before it on
+ * every shard, which is little for the few pages a user reads.
+ *
+ * scan() is the same search as a substring match with ILIKE, which no
+ * index serves; ProfNetworkBench compares the two.
+ *
+ */
+public class MessageSearch {
+
+   /**
+    * One message found, with its rank, higher is better.
+    */
+   public static class Hit {
+      public final Inbox.Message message;
+      public final double rank;
+
+      Hit (Inbox.Message message, double rank) {
+         this.message = message;
+         this.rank = rank;
+      }
+   }//end Hit
+
+   // the expression must be the one message_contents_idx is built on.
+   static final String MATCH = "to_tsvector('english', contents) @@ plainto_tsquery('english', ?)";
+   // the deleteStatus filters match the partial indexes in create_index.sql.
+   static final String VISIBLE =
+      "(receiverId = ?::bpchar AND deleteStatus IN (0, 2) OR senderId = ?::bpchar AND deleteStatus IN (0, 1))";
+
+   static final String SEARCH_SQL =
+      "SELECT msgId, senderId, receiverId, contents, sendTime, status,"
+      + " ts_rank(to_tsvector('english', contents), plainto_tsquery('english', ?)) AS rank FROM message"
+      + " WHERE " + MATCH + " AND " + VISIBLE
+      + " ORDER BY rank DESC, sendTime DESC, msgId DESC LIMIT ?";
+   static final String SCAN_SQL =
+      "SELECT msgId, senderId, receiverId, contents, sendTime, status, 0 AS rank FROM message"
+      + " WHERE contents ILIKE ? AND " + VISIBLE
+      + " ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+
+   // best first, the newest of equal matches first.
+   static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>(){
+      public int compare (Hit a, Hit b) {
+         if (a.rank != b.rank)
+            return a.rank > b.rank ? -1 : 1;
+         return Inbox.NEWEST_FIRST.compare(a.message, b.message);
+      }
+   };
+
+   private final ProfNetwork _esql;
+   private final String _userId;
+
+   /**
+    * Creates a new search over one user's messages
+    *
+    * @param esql the database access object
+    * @param userId the user whose messages are searched
+    */
+   public MessageSearch (ProfNetwork esql, String userId) {
+      this._esql = esql;
+      this._userId = userId;
+   }//end MessageSearch
+
+   /**
+    * Method to find the messages containing the words of a query, in any
+    * form English stems them to, best match first.
+    *
+    * @param query the words to find, all of which must match
+    * @param offset the matches to skip
+    * @param limit the matches to return at most
+    * @return the matches
+    * @throws java.sql.SQLException when failed to search
+    */
+   public List<Hit> search (String query, int offset, int limit) throws SQLException {
+      if (query.trim().length() == 0 || limit <= 0)
+         return Collections.emptyList();
+      return merge(this._esql.getMessageShards().queryAll(SEARCH_SQL,
+         query, query, this._userId, this._userId, offset + limit), offset, limit);
+   }//end search
+
+   /**
+    * Method to find the messages containing a text, newest first, by
+    * reading every message of the user.
+    *
+    * @param text the text to find, in any case
+    * @param offset the matches to skip
+    * @param limit the matches to return at most
+    * @return the matches, all of rank 0
+    * @throws java.sql.SQLException when failed to search
+    */
+   public List<Hit> scan (String text, int offset, int limit) throws SQLException {
+      if (text.trim().length() == 0 || limit <= 0)
+         return Collections.emptyList();
+      String pattern = "%" + text.trim().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+      return merge(this._esql.getMessageShards().queryAll(SCAN_SQL,
+         pattern, this._userId, this._userId, offset + limit), offset, limit);
+   }//end scan
+
+   // merges the best matches of every shard and cuts out one page.
+   private static List<Hit> merge (List<ResultTable> shards, int offset, int limit) {
+      List<Hit> hits = new ArrayList<Hit>();
+      for (ResultTable rows : shards){
+         for (int i = 0; i < rows.getRowCount(); ++i){
+            ResultTable.Row row = rows.row(i);
+            hits.add(new Hit(new Inbox.Message(row.getInt(0), row.getString(1), row.getString(2), row.getString(3),
+                                               ResultTable.toTimestamp(row.getLong(4)), row.getString(5)),
+                             Double.parseDouble(row.getString(6))));
+         }//end for
+      }//end for
+      Collections.sort(hits, BEST_FIRST);
+      List<Hit> page = new ArrayList<Hit>(limit);
+      int skipped = 0;
+      for (int i = 0; i < hits.size() && page.size() < limit; ++i){
+         // a message being moved by MessageRebalancer is on two shards.
+         if (i > 0 && hits.get(i - 1).message.msgId == hits.get(i).message.msgId)
+            continue;
+         if (skipped++ >= offset)
+            page.add(hits.get(i));
+      }//end for
+      return page;
+   }//end merge
+
+}//end MessageSearch
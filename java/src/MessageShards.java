@@ -0,0 +1,368 @@
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class spreads the MESSAGE table over several databases.  Shard 0
+ * is the main database, reached through ProfNetwork; the shards listed in
+ * profnetwork.messageShards as host:port/dbname have a pool each and a
+ * MESSAGE table of their own, see sql/src/create_message_shard.sql.
+ *
+ * A message lives on the shard of its conversation: the md5 hash of the
+ * sender and receiver ids, in either order, picks one of BUCKETS buckets
+ * and the shard map in message_shard_map assigns buckets to shards.  A
+ * conversation therefore stays on one shard, and MessageRebalancer moves
+ * whole buckets when shards are added.  Buckets missing from the map are
+ * on shard 0, so an unsharded database needs no map.
+ *
+ * msgIds are drawn from each shard's own message_id_seq, shard k using
+ * the range from k &lt;&lt; ID_BITS to ((k + 1) &lt;&lt; ID_BITS) - 1, so ids
+ * stay unique without any coordination between shards.  The sequences
+ * are bounded to their ranges, checked when ProfNetwork connects, so a
+ * full shard fails to send rather than take another shard's ids.  A
+ * user's inbox is read from every shard at once and merged.
+ *
+ */
+public class MessageShards {
+
+   public static final int BUCKETS = 1024;
+   // msgIds of shard k start at k << ID_BITS, for up to 16 shards.
+   public static final int ID_BITS = 27;
+   public static final int MAX_SHARDS = 1 << (31 - ID_BITS);
+
+   static final String MAP_SQL = "SELECT bucket, shard FROM message_shard_map";
+   static final String SEQUENCE_SQL =
+      "SELECT min_value, max_value, last_value FROM pg_sequences WHERE sequencename = 'message_id_seq'";
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final ProfNetwork _esql;
+   private final String[] _names;
+   // the pools of shards 1 and up, index 0 unused.
+   private final ConnectionPool[] _pools;
+   private final IdAllocator[] _ids;
+   private final int[] _map = new int[BUCKETS];
+   private final ExecutorService _scatter;
+
+   /**
+    * Creates the shards and reads the shard map
+    *
+    * @param esql the database access object of the main database, shard 0
+    * @param names the other shards' host:port/dbname
+    * @param pools the other shards' pools, in the same order
+    * @param idBlock msgIds reserved per query on each shard
+    * @throws java.sql.SQLException when the map cannot be read or a shard's
+    *         sequence cannot be bounded to its range
+    */
+   public MessageShards (ProfNetwork esql, List<String> names, List<ConnectionPool> pools, int idBlock) throws SQLException {
+      if (pools.size() + 1 > MAX_SHARDS)
+         throw new SQLException("at most " + MAX_SHARDS + " message shards are supported");
+      this._esql = esql;
+      this._names = new String[pools.size() + 1];
+      this._pools = new ConnectionPool[pools.size() + 1];
+      this._ids = new IdAllocator[pools.size() + 1];
+      this._names[0] = "main";
+      this._ids[0] = esql.getMessageIds();
+      for (int i = 1; i < this._pools.length; ++i){
+         this._names[i] = names.get(i - 1);
+         this._pools[i] = pools.get(i - 1);
+         this._ids[i] = new IdAllocator(this, i, "message_id_seq", idBlock);
+      }//end for
+      if (this._pools.length == 1){
+         this._scatter = null;
+         return;
+      }//end if
+
+      ResultTable map = esql.executePrimaryQueryAndReturnTable(MAP_SQL);
+      for (int i = 0; i < map.getRowCount(); ++i){
+         int shard = map.getInt(i, 1);
+         if (shard >= this._pools.length)
+            throw new SQLException("the shard map uses shard " + shard + " but only " + this._pools.length + " are configured");
+         this._map[map.getInt(i, 0)] = shard;
+      }//end for
+      for (int i = 0; i < this._pools.length; ++i)
+         bound(i);
+      this._scatter = Executors.newFixedThreadPool(this._pools.length - 1, new ThreadFactory(){
+         public Thread newThread (Runnable r){
+            Thread t = new Thread(r, "MessageShards-scatter");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end MessageShards
+
+   public int size () { return this._pools.length; }
+   public String name (int shard) { return this._names[shard]; }
+
+   /**
+    * Method to find the bucket of a conversation.
+    *
+    * @param a one user of the conversation
+    * @param b the other user
+    * @return the bucket, the same for (a, b) and (b, a)
+    */
+   public static int bucket (String a, String b) {
+      a = a.trim();
+      b = b.trim();
+      String key = a.compareTo(b) <= 0 ? a + "|" + b : b + "|" + a;
+      try{
+         byte[] md5 = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+         return ((md5[0] & 0xff) << 8 | (md5[1] & 0xff)) % BUCKETS;
+      }catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end bucket
+
+   // the first and last msgId of a shard's range, shard 0 starting at 1.
+   static long firstId (int shard) { return shard == 0 ? 1 : (long) shard << ID_BITS; }
+   static long lastId (int shard) { return ((long) (shard + 1) << ID_BITS) - 1; }
+
+   /**
+    * Bounds a shard's sequence to its msgId range, moving it to the start
+    * of the range the first time, and fails if it already went past it.
+    */
+   private void bound (int shard) throws SQLException {
+      long first = firstId(shard);
+      long last = lastId(shard);
+      ResultTable seq = query(shard, true, SEQUENCE_SQL);
+      if (seq.isEmpty())
+         throw new SQLException("shard " + shard + " " + this._names[shard] + " has no message_id_seq");
+      if (seq.getLong(0, 0) == first && seq.getLong(0, 1) == last)
+         return;
+      boolean used = !seq.isNull(0, 2);
+      if (used && seq.getLong(0, 2) > last)
+         throw new SQLException("message_id_seq of shard " + shard + " " + this._names[shard] + " is at "
+                                + seq.getLong(0, 2) + ", past its msgId range " + first + " to " + last);
+      String alter = "ALTER SEQUENCE message_id_seq MINVALUE " + first + " MAXVALUE " + last;
+      // shard 0 starts at 1, below any id its sequence gave out.
+      if (shard != 0 && (!used || seq.getLong(0, 2) < first))
+         alter += " START WITH " + first + " RESTART WITH " + first;
+      update(shard, alter);
+   }//end bound
+
+   /**
+    * Method to find the shard of a conversation.
+    */
+   public int shardOf (String senderId, String receiverId) {
+      return this._pools.length == 1 ? 0 : this._map[bucket(senderId, receiverId)];
+   }//end shardOf
+
+   /**
+    * Method to take a new msgId on a shard.
+    */
+   public int nextId (int shard) throws SQLException {
+      return this._ids[shard].next();
+   }//end nextId
+
+   /**
+    * Method to find the shard holding a message, trying the shard its id
+    * was drawn on first, since rebalancing is rare.
+    *
+    * @param msgId the message
+    * @return the shard, -1 if no shard has it
+    */
+   public int locate (int msgId) throws SQLException {
+      int home = msgId >>> ID_BITS;
+      if (home < this._pools.length && !query(home, "SELECT msgId FROM message WHERE msgId = ?", msgId).isEmpty())
+         return home;
+      for (int shard = 0; shard < this._pools.length; ++shard){
+         if (shard != home && !query(shard, "SELECT msgId FROM message WHERE msgId = ?", msgId).isEmpty())
+            return shard;
+      }//end for
+      return -1;
+   }//end locate
+
+   /**
+    * Method to run a query on one shard.
+    *
+    * @return the result as a ResultTable
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable query (int shard, String sql, Object... params) throws SQLException {
+      return query(shard, false, sql, params);
+   }//end query
+
+   // shard 0 through ProfNetwork, on the primary or routed to a replica.
+   private ResultTable query (int shard, boolean primary, String sql, Object... params) throws SQLException {
+      if (shard == 0)
+         return primary ? this._esql.executePrimaryQueryAndReturnTable(sql, params)
+                        : this._esql.executeQueryAndReturnTable(sql, params);
+      long start = System.nanoTime();
+      ResultTable result = null;
+      ConnectionPool.PooledConnection pc = this._pools[shard].borrow();
+      boolean failed = true;
+      PreparedStatement stmt = null;
+      try{
+         stmt = ProfNetwork.prepare(pc, sql, params);
+         ResultSet rs = stmt.executeQuery();
+         result = ResultTable.from(rs);
+         rs.close();
+         failed = false;
+         return result;
+      }finally{
+         if (stmt != null)
+            pc.getStatements().release(sql, stmt);
+         this._pools[shard].release(pc, failed);
+         record(sql, start, result == null ? 0 : result.getRowCount(), result == null ? 0 : result.byteSize(), failed);
+      }//end try
+   }//end query
+
+   /**
+    * Method to run an update on one shard.
+    *
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int update (int shard, String sql, Object... params) throws SQLException {
+      if (shard == 0)
+         return this._esql.executeUpdate(sql, params);
+      long start = System.nanoTime();
+      int rowCount = 0;
+      ConnectionPool.PooledConnection pc = this._pools[shard].borrow();
+      boolean failed = true;
+      PreparedStatement stmt = null;
+      try{
+         stmt = ProfNetwork.prepare(pc, sql, params);
+         // setval through a SELECT returns rows rather than a count.
+         if (stmt.execute())
+            stmt.getResultSet().close();
+         else
+            rowCount = stmt.getUpdateCount();
+         failed = false;
+         return rowCount;
+      }finally{
+         if (stmt != null)
+            pc.getStatements().release(sql, stmt);
+         this._pools[shard].release(pc, failed);
+         record(sql, start, rowCount, 0, failed);
+      }//end try
+   }//end update
+
+   /**
+    * Method to run work as one transaction on one shard.
+    *
+    * @return what the work returned
+    * @throws java.sql.SQLException when the work or the commit failed
+    */
+   public <T> T executeInTransaction (int shard, ProfNetwork.Transaction<T> work) throws SQLException {
+      if (shard == 0)
+         return this._esql.executeInTransaction(work);
+      long start = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pools[shard].borrow();
+      Connection conn = pc.getConnection();
+      boolean failed = true;
+      try{
+         conn.setAutoCommit(false);
+         try{
+            T result = work.run(pc);
+            conn.commit();
+            failed = false;
+            return result;
+         }catch (SQLException e){
+            conn.rollback();
+            throw e;
+         }catch (RuntimeException e){
+            conn.rollback();
+            throw e;
+         }finally{
+            conn.setAutoCommit(true);
+         }//end try
+      }finally{
+         this._pools[shard].release(pc, failed);
+         record(ProfNetwork.TRANSACTION + work.getClass().getName(), start, 0, 0, failed);
+      }//end try
+   }//end executeInTransaction
+
+   /**
+    * Method to run a query on every shard at once, shard 0 on the calling
+    * thread so it keeps the session's replica routing.
+    *
+    * @return the results, in shard order
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<ResultTable> queryAll (String sql, Object... params) throws SQLException {
+      return queryAll(false, sql, params);
+   }//end queryAll
+
+   /**
+    * Method to run a query on every shard at once, shard 0 on the primary
+    * too, e.g. to fill a cache shared by all sessions.
+    *
+    * @return the results, in shard order
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<ResultTable> queryAllPrimary (String sql, Object... params) throws SQLException {
+      return queryAll(true, sql, params);
+   }//end queryAllPrimary
+
+   private List<ResultTable> queryAll (boolean primary, final String sql, final Object... params) throws SQLException {
+      List<ResultTable> results = new ArrayList<ResultTable>(this._pools.length);
+      if (this._pools.length == 1){
+         results.add(query(0, primary, sql, params));
+         return results;
+      }//end if
+      final String operation = QueryStats.current();
+      List<Future<ResultTable>> pending = new ArrayList<Future<ResultTable>>(this._pools.length - 1);
+      for (int i = 1; i < this._pools.length; ++i){
+         final int shard = i;
+         pending.add(this._scatter.submit(new Callable<ResultTable>(){
+            public ResultTable call () throws SQLException {
+               String previous = QueryStats.enter(operation);
+               try{
+                  return query(shard, sql, params);
+               }finally{
+                  QueryStats.exit(previous);
+               }//end try
+            }
+         }));
+      }//end for
+      results.add(query(0, primary, sql, params));
+      try{
+         for (Future<ResultTable> result : pending)
+            results.add(result.get());
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().toString());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while reading the message shards");
+      }//end try
+      return results;
+   }//end queryAll
+
+   /**
+    * Method to stop the scatter threads and close the shards' pools.
+    */
+   public void close () {
+      if (this._scatter != null)
+         this._scatter.shutdownNow();
+      for (int i = 1; i < this._pools.length; ++i)
+         this._pools[i].close();
+   }//end close
+
+   public String toString () {
+      StringBuilder out = new StringBuilder(String.format("messages: %d shards", this._pools.length));
+      for (int i = 1; i < this._pools.length; ++i)
+         out.append(String.format("\nshard %d %s: %s", i, this._names[i], this._pools[i]));
+      return out.toString();
+   }//end toString
+
+   private void record (String sql, long start, long rows, long bytes, boolean failed) {
+      QueryStats stats = this._esql.getQueryStats();
+      if (stats != null)
+         stats.record(sql, false, start, rows, bytes, failed);
+   }//end record
+
+}//end MessageShards
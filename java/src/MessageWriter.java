@@ -0,0 +1,283 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class sends messages asynchronously with group commit.  Senders
+ * take a msgId on the message shard of their conversation (MessageShards),
+ * put the message on a bounded queue
+ * and get a future of the msgId, done once the message is written.  One
+ * writer thread drains the queue into multi-row INSERTs, up to maxBatch
+ * rows waiting at most lingerMillis for more, and commits each batch as
+ * one transaction per shard, so concurrent senders share round trips
+ * and WAL flushes.
+ *
+ * When the queue is full senders wait up to offerTimeout for room and
+ * then fail, so an overloaded database slows senders down instead of
+ * queueing without bound.  A batch that fails is retried one message at
+ * a time, so a bad message (e.g. an unknown receiver) only fails itself.
+ *
+ */
+public class MessageWriter {
+
+   public static final int DEFAULT_QUEUE = 10000;
+   public static final int DEFAULT_MAX_BATCH = 256;
+   public static final long DEFAULT_LINGER_MILLIS = 2;
+   public static final long DEFAULT_OFFER_TIMEOUT = 1000;
+   // how long sendMessage waits for its message to be written.
+   public static final long DEFAULT_SEND_TIMEOUT = 30000;
+
+   /**
+    * A queued message and the future of its msgId.
+    */
+   static final class Send implements Future<Integer> {
+      final int shard;
+      final int msgId;
+      final String senderId;
+      final String receiverId;
+      final String contents;
+      private final CountDownLatch _done = new CountDownLatch(1);
+      private volatile SQLException _error = null;
+
+      Send (int shard, int msgId, String senderId, String receiverId, String contents) {
+         this.shard = shard;
+         this.msgId = msgId;
+         this.senderId = senderId;
+         this.receiverId = receiverId;
+         this.contents = contents;
+      }
+
+      void complete () {
+         this._done.countDown();
+      }
+
+      void fail (SQLException error) {
+         this._error = error;
+         this._done.countDown();
+      }
+
+      public boolean cancel (boolean mayInterruptIfRunning) { return false; }
+      public boolean isCancelled () { return false; }
+      public boolean isDone () { return this._done.getCount() == 0; }
+
+      public Integer get () throws InterruptedException, ExecutionException {
+         this._done.await();
+         return result();
+      }
+
+      public Integer get (long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+         if (!this._done.await(timeout, unit))
+            throw new TimeoutException("message not written yet");
+         return result();
+      }
+
+      private Integer result () throws ExecutionException {
+         if (this._error != null)
+            throw new ExecutionException(this._error.getMessage(), this._error);
+         return Integer.valueOf(this.msgId);
+      }
+   }//end Send
+
+   private final ProfNetwork _esql;
+   private final BlockingQueue<Send> _queue;
+   private final int _maxBatch;
+   private final long _lingerNanos;
+   private final long _offerTimeout;
+   private final Thread _writer;
+   private volatile boolean _running = true;
+   // statistics, written by the writer thread only.
+   private volatile long _batches = 0;
+   private volatile long _rows = 0;
+   private volatile long _retries = 0;
+
+   /**
+    * Creates a new writer and starts its thread
+    *
+    * @param esql the database access object
+    * @param capacity messages queued before senders wait
+    * @param maxBatch messages written per transaction at most
+    * @param lingerMillis how long a batch waits for more messages
+    * @param offerTimeout how long a sender waits for room in the queue
+    */
+   public MessageWriter (ProfNetwork esql, int capacity, int maxBatch, long lingerMillis, long offerTimeout) {
+      this._esql = esql;
+      this._queue = new ArrayBlockingQueue<Send>(capacity);
+      this._maxBatch = Math.max(1, maxBatch);
+      this._lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+      this._offerTimeout = offerTimeout;
+      this._writer = new Thread(new Runnable(){
+         public void run (){
+            drain();
+         }
+      }, "MessageWriter");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end MessageWriter
+
+   /**
+    * Method to queue a message.
+    *
+    * @param senderId the sending user
+    * @param receiverId the receiving user
+    * @param contents the message text
+    * @return the future msgId, failed if the insert failed
+    * @throws java.sql.SQLException when the queue stayed full or the writer is closed
+    */
+   public Future<Integer> send (String senderId, String receiverId, String contents) throws SQLException {
+      if (!this._running)
+         throw new SQLException("message writer is closed");
+      MessageShards shards = this._esql.getMessageShards();
+      int shard = shards.shardOf(senderId, receiverId);
+      // only the main database's MESSAGE has foreign keys to USR.
+      if (shard != 0 && this._esql.getProfile(receiverId) == null)
+         throw new SQLException("no such user: " + receiverId.trim());
+      Send send = new Send(shard, shards.nextId(shard), senderId, receiverId, contents);
+      try{
+         if (!this._queue.offer(send, this._offerTimeout, TimeUnit.MILLISECONDS))
+            throw new SQLException("too many messages waiting to be sent, try again later");
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while queueing a message");
+      }//end try
+      // close() may have drained the queue before the message got in; the
+      // writer or close() completes it unless it is still there.
+      if (!this._running && this._queue.remove(send))
+         throw new SQLException("message writer is closed");
+      return send;
+   }//end send
+
+   /**
+    * Method to stop the writer after the queued messages were written,
+    * failing those queued after the writer stopped.
+    */
+   public void close () {
+      this._running = false;
+      try{
+         this._writer.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      List<Send> left = new ArrayList<Send>();
+      this._queue.drainTo(left);
+      for (Send send : left)
+         send.fail(new SQLException("message writer is closed"));
+   }//end close
+
+   public String toString () {
+      long batches = this._batches;
+      return String.format("message writer: %d messages in %d batches (%.1f per batch), %d retried, %d queued",
+                           this._rows, batches, batches == 0 ? 0.0 : (double) this._rows / batches,
+                           this._retries, this._queue.size());
+   }//end toString
+
+   // the writer thread: collects batches until closed and the queue is empty.
+   private void drain () {
+      List<Send> batch = new ArrayList<Send>(this._maxBatch);
+      while (this._running || !this._queue.isEmpty()){
+         try{
+            Send first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            this._queue.drainTo(batch, this._maxBatch - batch.size());
+            long deadline = System.nanoTime() + this._lingerNanos;
+            while (batch.size() < this._maxBatch){
+               long remaining = deadline - System.nanoTime();
+               Send next = remaining > 0 ? this._queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+               if (next == null)
+                  break;
+               batch.add(next);
+               this._queue.drainTo(batch, this._maxBatch - batch.size());
+            }//end while
+         }catch (InterruptedException e){
+            // finish what was taken, close() decides when to stop.
+         }//end try
+         if (!batch.isEmpty())
+            write(batch);
+         batch.clear();
+      }//end while
+   }//end drain
+
+   // writes one batch, one transaction per shard it touches.
+   private void write (List<Send> batch) {
+      List<List<Send>> byShard = new ArrayList<List<Send>>();
+      for (Send send : batch){
+         while (byShard.size() <= send.shard)
+            byShard.add(new ArrayList<Send>());
+         byShard.get(send.shard).add(send);
+      }//end for
+      for (int shard = 0; shard < byShard.size(); ++shard){
+         if (!byShard.get(shard).isEmpty())
+            write(shard, byShard.get(shard));
+      }//end for
+   }//end write
+
+   // writes one shard's part of a batch as one transaction, then one by
+   // one if that failed.
+   private void write (int shard, final List<Send> batch) {
+      try{
+         this._esql.getMessageShards().executeInTransaction(shard, new ProfNetwork.Transaction<Void>(){
+            public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+               insert(pc, batch);
+               return null;
+            }
+         });
+         for (Send send : batch)
+            send.complete();
+         ++this._batches;
+         this._rows += batch.size();
+      }catch (SQLException e){
+         if (batch.size() == 1){
+            batch.get(0).fail(e);
+            return;
+         }//end if
+         ++this._retries;
+         for (Send send : batch){
+            List<Send> single = new ArrayList<Send>(1);
+            single.add(send);
+            write(shard, single);
+         }//end for
+      }catch (RuntimeException e){
+         for (Send send : batch)
+            send.fail(new SQLException(e.toString()));
+      }//end try
+   }//end write
+
+   /**
+    * Inserts the batch in power of two sized chunks, so only a handful of
+    * distinct multi-row statements get prepared and cached.
+    */
+   static void insert (ConnectionPool.PooledConnection pc, List<Send> batch) throws SQLException {
+      int done = 0;
+      while (done < batch.size()){
+         int chunk = Integer.highestOneBit(batch.size() - done);
+         StringBuilder sql = new StringBuilder("INSERT INTO message(msgId, senderId, receiverId, contents) VALUES ");
+         Object[] params = new Object[4 * chunk];
+         for (int i = 0; i < chunk; ++i){
+            Send send = batch.get(done + i);
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            params[4 * i] = Integer.valueOf(send.msgId);
+            params[4 * i + 1] = send.senderId;
+            params[4 * i + 2] = send.receiverId;
+            params[4 * i + 3] = send.contents;
+         }//end for
+         String text = sql.toString();
+         PreparedStatement stmt = ProfNetwork.prepare(pc, text, params);
+         try{
+            stmt.executeUpdate();
+         }finally{
+            pc.getStatements().release(text, stmt);
+         }//end try
+         done += chunk;
+      }//end while
+   }//end insert
+
+}//end MessageWriter
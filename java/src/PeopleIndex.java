@@ -0,0 +1,482 @@
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is an in-process search index over people: user id, name and
+ * email from USR, companies from WORK_EXPR and institutions from
+ * EDUCATIONAL_DETAILS.  Text is lower cased and split into tokens (whole
+ * ids and emails are kept as tokens too, so "Kallie_Johns" is found by
+ * "kallie", "johns" or the full id).
+ *
+ * Every token is posted under its trigrams for typo tolerant lookups and
+ * kept in a sorted term map for prefix completion.  A query token matches
+ * a person exactly, as a prefix of one of their tokens, or within a small
+ * edit distance; a person must match every query token and results are
+ * ranked by how well they matched.  Candidates are taken best match first
+ * and at most MAX_RANKED people are ranked, so lookups on common names
+ * stay fast however many people share them.
+ *
+ */
+public class PeopleIndex {
+
+   /**
+    * One search result.
+    */
+   public static class Hit {
+      public final String userId;
+      // -1 for the exact user id, otherwise lower is better.
+      public final int cost;
+
+      Hit (String userId, int cost) {
+         this.userId = userId;
+         this.cost = cost;
+      }
+   }//end Hit
+
+   // match costs per query token, added up per person.
+   static final int EXACT = 0;
+   static final int PREFIX = 10;
+   static final int FUZZY = 20;
+   // people ranked per search, later pages come back empty.
+   static final int MAX_RANKED = 200;
+   // terms read per prefix lookup, and the extra length still ranked apart.
+   static final int MAX_PREFIX_TERMS = 4096;
+   static final int MAX_PREFIX_DIFF = 9;
+   // trigram postings are split by token length up to this length.
+   static final int MAX_BUCKET = 48;
+
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+   // document number to user id and to that person's distinct term ids.
+   private final List<String> _users = new ArrayList<String>();
+   private final List<int[]> _docTerms = new ArrayList<int[]>();
+   private final HashMap<String, Integer> _docs = new HashMap<String, Integer>();
+   // term dictionary, sorted for prefix ranges, and per term id its text
+   // and the documents containing it.
+   private final TreeMap<String, Integer> _terms = new TreeMap<String, Integer>();
+   private final List<String> _termNames = new ArrayList<String>();
+   private final List<IntList> _termDocs = new ArrayList<IntList>();
+   // trigram to the term ids containing it, one list per term length, so
+   // a fuzzy lookup only reads terms of about the right length.
+   private final HashMap<String, IntList[]> _trigrams = new HashMap<String, IntList[]>();
+   // overlap counters indexed by term id, all zero while pooled; a
+   // search borrows one, so at most one per CPU is kept however many
+   // session threads search.
+   private final ArrayDeque<int[]> _counts = new ArrayDeque<int[]>();
+   private static final int MAX_POOLED_COUNTS = Runtime.getRuntime().availableProcessors();
+
+   /**
+    * Growable list of ints.
+    */
+   static final class IntList {
+      int[] values = new int[2];
+      int size = 0;
+
+      void add (int value) {
+         if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+         this.values[this.size++] = value;
+      }
+
+      boolean contains (int value) {
+         for (int i = 0; i < this.size; ++i)
+            if (this.values[i] == value)
+               return true;
+         return false;
+      }
+   }//end IntList
+
+   /**
+    * Method to build the index from the database.
+    *
+    * @param esql the database access object
+    * @return the filled index
+    * @throws java.sql.SQLException when failed to read the tables
+    */
+   public static PeopleIndex load (ProfNetwork esql) throws SQLException {
+      PeopleIndex index = new PeopleIndex();
+      ResultTable users = esql.executePrimaryQueryAndReturnTable("SELECT userId, name, email FROM usr");
+      for (int row = 0; row < users.getRowCount(); ++row)
+         index.add(users.getString(row, 0), users.getString(row, 1), users.getString(row, 2));
+      ResultTable work = esql.executePrimaryQueryAndReturnTable("SELECT userId, company FROM work_expr");
+      for (int row = 0; row < work.getRowCount(); ++row)
+         index.add(work.getString(row, 0), work.getString(row, 1));
+      ResultTable schools = esql.executePrimaryQueryAndReturnTable("SELECT userId, instituitionName FROM educational_details");
+      for (int row = 0; row < schools.getRowCount(); ++row)
+         index.add(schools.getString(row, 0), schools.getString(row, 1));
+      return index;
+   }//end load
+
+   /**
+    * Method to add a person, or more searchable text to a known person.
+    *
+    * @param userId the person's user id
+    * @param texts names, emails, companies or institutions, nulls ignored
+    */
+   public void add (String userId, String... texts) {
+      this._lock.writeLock().lock();
+      try{
+         Integer doc = this._docs.get(userId);
+         if (doc == null){
+            doc = Integer.valueOf(this._users.size());
+            this._docs.put(userId, doc);
+            this._users.add(userId);
+            this._docTerms.add(new int[0]);
+            addTokens(doc.intValue(), tokenize(userId));
+         }//end if
+         for (String text : texts)
+            if (text != null)
+               addTokens(doc.intValue(), tokenize(text));
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end add
+
+   /**
+    * Method to search people.
+    *
+    * @param query free text, e.g. part of an id, a name or a company
+    * @param offset the number of best results to skip
+    * @param limit the number of results wanted
+    * @return at most limit results, best first
+    */
+   public List<Hit> search (String query, int offset, int limit) {
+      String[] words = tokenize(query);
+      if (words.length == 0 || limit <= 0)
+         return Collections.emptyList();
+      this._lock.readLock().lock();
+      try{
+         // the rarest word finds the candidates, the others only filter
+         // and rank them.
+         int rarest = 0;
+         for (int i = 1; i < words.length; ++i)
+            if (rarity(words[i]) < rarity(words[rarest]))
+               rarest = i;
+         String word = words[rarest];
+         String[] others = new String[words.length - 1];
+         for (int i = 0, j = 0; i < words.length; ++i)
+            if (i != rarest)
+               others[j++] = words[i];
+
+         Ranking ranking = new Ranking(others);
+         Integer exact = this._docs.get(query.trim());
+         if (exact != null){
+            ranking.seen.add(exact);
+            ranking.hits.add(new Hit(query.trim(), -1));
+         }//end if
+
+         // take candidates best match first until enough people are ranked.
+         Integer term = this._terms.get(word);
+         if (term != null && ranking.collect(this._termDocs.get(term.intValue()), EXACT))
+            return ranking.page(offset, limit);
+         List<IntList> prefixes = prefixTerms(word);
+         for (int diff = 0; diff < prefixes.size(); ++diff)
+            for (int i = 0; i < prefixes.get(diff).size; ++i)
+               if (ranking.collect(this._termDocs.get(prefixes.get(diff).values[i]), PREFIX + diff + 1))
+                  return ranking.page(offset, limit);
+         int maxEdits = maxEdits(word);
+         if (maxEdits > 0){
+            List<IntList> fuzzy = fuzzyTerms(word, maxEdits);
+            for (int distance = 1; distance <= maxEdits; ++distance)
+               for (int i = 0; i < fuzzy.get(distance).size; ++i)
+                  if (ranking.collect(this._termDocs.get(fuzzy.get(distance).values[i]), FUZZY + distance))
+                     return ranking.page(offset, limit);
+         }//end if
+         return ranking.page(offset, limit);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end search
+
+   // people holding the word as a term, longer words first among unknown ones.
+   private long rarity (String word) {
+      Integer term = this._terms.get(word);
+      return term == null ? -word.length() : this._termDocs.get(term.intValue()).size;
+   }//end rarity
+
+   /**
+    * The people ranked by one search, at most MAX_RANKED of them.
+    */
+   private final class Ranking {
+      final String[] others;
+      final HashSet<Integer> seen = new HashSet<Integer>();
+      final List<Hit> hits = new ArrayList<Hit>();
+
+      Ranking (String[] others) {
+         this.others = others;
+      }
+
+      // adds the people matching the other query words, true when full.
+      boolean collect (IntList docs, int cost) {
+         for (int i = 0; i < docs.size; ++i){
+            if (this.hits.size() >= MAX_RANKED)
+               return true;
+            Integer doc = Integer.valueOf(docs.values[i]);
+            if (!this.seen.add(doc))
+               continue;
+            int total = cost;
+            for (int w = 0; w < this.others.length && total >= 0; ++w){
+               int match = matchCost(this.others[w], doc.intValue());
+               total = match < 0 ? -1 : total + match;
+            }//end for
+            if (total >= 0)
+               this.hits.add(new Hit(PeopleIndex.this._users.get(doc.intValue()), total));
+         }//end for
+         return this.hits.size() >= MAX_RANKED;
+      }
+
+      List<Hit> page (int offset, int limit) {
+         Collections.sort(this.hits, BEST_FIRST);
+         if (offset >= this.hits.size())
+            return Collections.emptyList();
+         return new ArrayList<Hit>(this.hits.subList(offset, Math.min(this.hits.size(), offset + limit)));
+      }
+   }//end Ranking
+
+   /**
+    * Method to complete a prefix to known tokens.
+    *
+    * @param prefix the beginning of an id, a name or a company
+    * @param limit the number of completions wanted
+    * @return at most limit tokens in alphabetical order
+    */
+   public List<String> complete (String prefix, int limit) {
+      String p = prefix.trim().toLowerCase(Locale.ROOT);
+      List<String> result = new ArrayList<String>();
+      this._lock.readLock().lock();
+      try{
+         for (String term : this._terms.subMap(p, p + Character.MAX_VALUE).keySet()){
+            if (result.size() == limit)
+               break;
+            result.add(term);
+         }//end for
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      return result;
+   }//end complete
+
+   public int size () {
+      this._lock.readLock().lock();
+      try{
+         return this._users.size();
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end size
+
+   // terms longer than the word starting with it, by extra characters
+   // (the last list holds MAX_PREFIX_DIFF and more).
+   private List<IntList> prefixTerms (String word) {
+      List<IntList> byDiff = new ArrayList<IntList>();
+      for (int diff = 0; diff < MAX_PREFIX_DIFF; ++diff)
+         byDiff.add(new IntList());
+      int read = 0;
+      for (Map.Entry<String, Integer> entry : this._terms.subMap(word, word + Character.MAX_VALUE).entrySet()){
+         if (read++ >= MAX_PREFIX_TERMS)
+            break;
+         int diff = entry.getKey().length() - word.length();
+         if (diff > 0)
+            byDiff.get(Math.min(MAX_PREFIX_DIFF, diff) - 1).add(entry.getValue().intValue());
+      }//end for
+      return byDiff;
+   }//end prefixTerms
+
+   /**
+    * Finds terms within maxEdits of the word, listed by distance.  A term
+    * that close shares at least all but 3 trigrams per edit with the word,
+    * so only terms of a close length reaching that overlap are checked by
+    * edit distance.
+    */
+   private List<IntList> fuzzyTerms (String word, int maxEdits) {
+      List<IntList> byDistance = new ArrayList<IntList>();
+      for (int distance = 0; distance <= maxEdits; ++distance)
+         byDistance.add(new IntList());
+      List<String> grams = trigrams(word);
+      int needed = Math.max(1, grams.size() - 3 * maxEdits);
+      int[] counts = borrowCounts();
+      IntList reached = new IntList();
+      int from = Math.max(1, word.length() - maxEdits);
+      int to = Math.min(MAX_BUCKET, word.length() + maxEdits);
+      for (int pass = 0; pass < 2; ++pass){
+         // the first pass counts, the second resets what it touched.
+         for (String gram : grams){
+            IntList[] byLength = this._trigrams.get(gram);
+            if (byLength == null)
+               continue;
+            for (int length = from; length <= to; ++length){
+               IntList terms = byLength[length];
+               if (terms == null)
+                  continue;
+               for (int i = 0; i < terms.size; ++i){
+                  if (pass == 1)
+                     counts[terms.values[i]] = 0;
+                  else if (++counts[terms.values[i]] == needed)
+                     reached.add(terms.values[i]);
+               }//end for
+            }//end for
+         }//end for
+      }//end for
+      returnCounts(counts);
+      for (int i = 0; i < reached.size; ++i){
+         int distance = editDistance(word, this._termNames.get(reached.values[i]), maxEdits);
+         if (distance <= maxEdits)
+            byDistance.get(distance).add(reached.values[i]);
+      }//end for
+      return byDistance;
+   }//end fuzzyTerms
+
+   // a zeroed counter array covering every term id.
+   private int[] borrowCounts () {
+      synchronized (this._counts){
+         int[] counts = this._counts.poll();
+         if (counts != null && counts.length >= this._termNames.size())
+            return counts;
+      }//end synchronized
+      return new int[Math.max(1024, this._termNames.size() * 5 / 4)];
+   }//end borrowCounts
+
+   // pools a counter array again, zeroed by its user.
+   private void returnCounts (int[] counts) {
+      synchronized (this._counts){
+         if (this._counts.size() < MAX_POOLED_COUNTS)
+            this._counts.push(counts);
+      }//end synchronized
+   }//end returnCounts
+
+   // cost of the best match of a query word among a person's terms, -1 if none.
+   private int matchCost (String word, int doc) {
+      int best = -1;
+      int maxEdits = maxEdits(word);
+      for (int term : this._docTerms.get(doc)){
+         String token = this._termNames.get(term);
+         int cost;
+         if (token.equals(word))
+            cost = EXACT;
+         else if (token.startsWith(word))
+            cost = PREFIX + Math.min(MAX_PREFIX_DIFF, token.length() - word.length());
+         else if (maxEdits > 0 && (cost = editDistance(word, token, maxEdits)) <= maxEdits)
+            cost += FUZZY;
+         else
+            continue;
+         if (best < 0 || cost < best)
+            best = cost;
+      }//end for
+      return best;
+   }//end matchCost
+
+   private void addTokens (int doc, String[] tokens) {
+      int[] known = this._docTerms.get(doc);
+      int[] merged = Arrays.copyOf(known, known.length + tokens.length);
+      int size = known.length;
+      for (String token : tokens){
+         Integer term = this._terms.get(token);
+         if (term == null){
+            term = Integer.valueOf(this._termNames.size());
+            this._terms.put(token, term);
+            this._termNames.add(token);
+            this._termDocs.add(new IntList());
+            int bucket = Math.min(MAX_BUCKET, token.length());
+            for (String gram : trigrams(token)){
+               IntList[] byLength = this._trigrams.get(gram);
+               if (byLength == null)
+                  this._trigrams.put(gram, byLength = new IntList[MAX_BUCKET + 1]);
+               if (byLength[bucket] == null)
+                  byLength[bucket] = new IntList();
+               byLength[bucket].add(term.intValue());
+            }//end for
+         }//end if
+         boolean seen = false;
+         for (int i = 0; i < size && !seen; ++i)
+            seen = merged[i] == term.intValue();
+         if (seen)
+            continue;
+         merged[size++] = term.intValue();
+         this._termDocs.get(term.intValue()).add(doc);
+      }//end for
+      if (size != known.length)
+         this._docTerms.set(doc, Arrays.copyOf(merged, size));
+   }//end addTokens
+
+   /**
+    * Splits text into lower case tokens: the whole text when it is a
+    * single id or email, plus its alphanumeric parts of two or more
+    * characters.
+    */
+   static String[] tokenize (String text) {
+      List<String> tokens = new ArrayList<String>();
+      String lower = text.trim().toLowerCase(Locale.ROOT);
+      for (String word : lower.split("\\s+")){
+         if (word.length() >= 2 && !tokens.contains(word))
+            tokens.add(word);
+         for (String part : word.split("[^\\p{Alnum}]+"))
+            if (part.length() >= 2 && !tokens.contains(part))
+               tokens.add(part);
+      }//end for
+      return tokens.toArray(new String[tokens.size()]);
+   }//end tokenize
+
+   // trigrams of a token padded with one boundary mark on each side.
+   static List<String> trigrams (String token) {
+      String padded = "\u0002" + token + "\u0003";
+      List<String> grams = new ArrayList<String>(padded.length());
+      for (int i = 0; i + 3 <= padded.length(); ++i){
+         String gram = padded.substring(i, i + 3);
+         if (!grams.contains(gram))
+            grams.add(gram);
+      }//end for
+      return grams;
+   }//end trigrams
+
+   static int maxEdits (String word) {
+      return word.length() <= 3 ? 0 : word.length() <= 6 ? 1 : 2;
+   }//end maxEdits
+
+   /**
+    * Levenshtein distance that gives up once it exceeds max.
+    *
+    * @return the distance, or max + 1 if it is larger than max
+    */
+   static int editDistance (String a, String b, int max) {
+      if (Math.abs(a.length() - b.length()) > max)
+         return max + 1;
+      int[] previous = new int[b.length() + 1];
+      int[] current = new int[b.length() + 1];
+      for (int j = 0; j <= b.length(); ++j)
+         previous[j] = j;
+      for (int i = 1; i <= a.length(); ++i){
+         current[0] = i;
+         int rowMin = current[0];
+         for (int j = 1; j <= b.length(); ++j){
+            int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+            current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            rowMin = Math.min(rowMin, current[j]);
+         }//end for
+         if (rowMin > max)
+            return max + 1;
+         int[] swap = previous;
+         previous = current;
+         current = swap;
+      }//end for
+      return Math.min(previous[b.length()], max + 1);
+   }//end editDistance
+
+   static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>(){
+      public int compare (Hit a, Hit b){
+         if (a.cost != b.cost)
+            return a.cost < b.cost ? -1 : 1;
+         return a.userId.compareTo(b.userId);
+      }
+   };
+
+}//end PeopleIndex
@@ -14,18 +14,22 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
 //import javax.swing.*;
@@ -39,13 +43,67 @@ import java.text.ParseException;
  *
  */
 public class ProfNetwork{
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections, each with its own
+   // prepared statement cache.
+   private ConnectionPool _pool = null;
 
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // read-only queries sent to the profnetwork.replicas pools, null
+   // without replicas.
+   private ReplicaRouter _router = null;
+
+   // accepted connections kept in memory, loaded on first use.
+   private SocialGraph _graph = null;
+
+   // friends of friends ranking, created on first use.
+   private Recommender _recommender = null;
+
+   // people search over ids, names, emails, companies and schools,
+   // built on first use.
+   private PeopleIndex _people = null;
+
+   // msgIds reserved from message_id_seq a block at a time.
+   private IdAllocator _messageIds = null;
+
+   // asynchronous group commit of new messages, started on first use.
+   private MessageWriter _messages = null;
+
+   // the databases holding MESSAGE, the main one and the pools of the
+   // ones in profnetwork.messageShards; the shard map is read on first use.
+   private final List<String> _shardNames = new ArrayList<String>();
+   private final List<ConnectionPool> _shardPools = new ArrayList<ConnectionPool>();
+   private MessageShards _shards = null;
+
+   // removal of the messages both sides deleted, started by startCompaction.
+   private MessageCompactor _compactor = null;
+
+   // latency, rows and bytes of every statement, by SQL text and by
+   // operation, and the slow query log; null when profnetwork.stats is false.
+   private final QueryStats _stats = Boolean.parseBoolean(System.getProperty("profnetwork.stats", "true"))
+      ? new QueryStats(Long.getLong("profnetwork.slowQuery", 500L), System.getProperty("profnetwork.slowQuery.log", "slow_queries.log"))
+      : null;
+
+   // recently displayed profiles, dropped when the user edits them.
+   private final Profile.Cache _profiles = new Profile.Cache(
+      Integer.getInteger("profnetwork.profileCache", 1024),
+      Long.getLong("profnetwork.profileCache.ttl", 60000L));
+
+   // counts shown on the login banner, dropped when this process changes
+   // them and reread after the ttl when another process may have.
+   private final MessageCounters.Cache _counters = new MessageCounters.Cache(
+      Integer.getInteger("profnetwork.countersCache", 1024),
+      Long.getLong("profnetwork.countersCache.ttl", 5000L));
+
+   // rows fetched per round trip when printing results, 0 reads them all.
+   static final int FETCH_SIZE = Integer.getInteger("profnetwork.fetchSize", 500);
+
+   // handling the keyboard inputs through the session bound to the thread,
+   // the console unless a ProfNetworkServer client is being served.
+   private static final Session _console = Session.console();
+   private static final ThreadLocal<Session> _session = new ThreadLocal<Session>(){
+      protected Session initialValue () {
+         return _console;
+      }
+   };
 
    /**
     * Creates a new instance of ProfNetwork
@@ -64,16 +122,53 @@ public class ProfNetwork{
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = openPool(url, user, passwd);
+
+         // and one pool per replica, given as host:port.
+         String replicas = System.getProperty("profnetwork.replicas", "").trim();
+         if (!replicas.isEmpty()){
+            List<String> names = new ArrayList<String>();
+            List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+            for (String replica : replicas.split(",")){
+               String replicaUrl = "jdbc:postgresql://" + replica.trim() + "/" + dbname;
+               System.out.println ("Replica URL: " + replicaUrl);
+               names.add(replica.trim());
+               pools.add(openPool(replicaUrl, user, passwd));
+            }//end for
+            this._router = new ReplicaRouter(this._pool, names, pools,
+               Long.getLong("profnetwork.replicas.pin", ReplicaRouter.DEFAULT_PIN_MILLIS),
+               Long.getLong("profnetwork.replicas.check", ReplicaRouter.DEFAULT_CHECK_MILLIS));
+         }//end if
+
+         // and one pool per message shard, given as host:port/dbname.
+         String shards = System.getProperty("profnetwork.messageShards", "").trim();
+         if (!shards.isEmpty()){
+            for (String shard : shards.split(",")){
+               String shardUrl = "jdbc:postgresql://" + shard.trim();
+               System.out.println ("Message shard URL: " + shardUrl);
+               this._shardNames.add(shard.trim());
+               this._shardPools.add(openPool(shardUrl, user, passwd));
+            }//end for
+         }//end if
          System.out.println("Done");
-      }catch (Exception e){
+      }catch (SQLException e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
+         throw e;
       }//end catch
    }//end ProfNetwork
 
+   private static ConnectionPool openPool (String url, String user, String passwd) throws SQLException {
+      return new ConnectionPool(url, user, passwd,
+         Integer.getInteger("profnetwork.pool.min", 1),
+         Integer.getInteger("profnetwork.pool.max", 8),
+         Long.getLong("profnetwork.pool.borrowTimeout", 5000L),
+         Long.getLong("profnetwork.pool.idleTimeout", 60000L),
+         Long.getLong("profnetwork.pool.validateAfter", 1000L),
+         Integer.getInteger("profnetwork.statementCache", StatementCache.DEFAULT_CAPACITY));
+   }//end openPool
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -82,14 +177,25 @@ public class ProfNetwork{
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
+      boolean failed = true;
+      try{
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         rowCount = stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+         failed = false;
+      }finally{
+         this._pool.release (pc, failed);
+         session().markWrite ();
+         record (sql, true, start, rowCount, 0, failed);
+      }//end try
    }//end executeUpdate
 
    /**
@@ -102,38 +208,93 @@ public class ProfNetwork{
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      return executeQueryAndPrintResult (query, new Object[0]);
+   }//end executeQuery
+
+   /**
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+    * and output the results to the session's output.  Rows are streamed
+    * through a server side cursor FETCH_SIZE rows at a time and printed one
+    * page per write, so memory use does not grow with the result size.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ResultPrinter printer = new ResultPrinter(session().out());
+      ConnectionPool.PooledConnection pc = borrowForRead (query);
+      boolean failed = true;
+      try{
+         int rowCount = streamResult (pc.getConnection(), query, params, printer);
+         failed = false;
+         return rowCount;
+      }finally{
+         pc.getPool().release (pc, failed);
+         record (query, params.length == 0, start, printer.getRowCount(), printer.getCharCount(), failed);
+      }//end try
+   }//end executeQueryAndPrintResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Runs a query through a cursor inside its own transaction and hands
+    * every fetched page to a printer.  DECLARE and FETCH cannot be server
+    * prepared, so they bypass the statement cache; with a FETCH_SIZE of 0
+    * the whole result is read at once.
+    *
+    * @param conn the borrowed connection, in autocommit mode
+    * @param query the query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @param printer the printer receiving every page
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private static int streamResult (Connection conn, String query, Object[] params, ResultPrinter printer) throws SQLException {
+      if (FETCH_SIZE <= 0){
+         PreparedStatement stmt = conn.prepareStatement (query);
+         try{
+            bind (stmt, params);
+            printer.printPage (stmt.executeQuery ());
+         }finally{
+            stmt.close ();
+         }//end try
+         return printer.getRowCount ();
+      }//end if
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+      // a cursor only lives inside a transaction.
+      conn.setAutoCommit (false);
+      try{
+         PreparedStatement declare = conn.prepareStatement ("DECLARE profnetwork_print CURSOR FOR " + query);
+         try{
+            bind (declare, params);
+            declare.execute ();
+         }finally{
+            declare.close ();
+         }//end try
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+         Statement fetch = conn.createStatement ();
+         try{
+            String sql = "FETCH FORWARD " + FETCH_SIZE + " FROM profnetwork_print";
+            int fetched;
+            do{
+               ResultSet rs = fetch.executeQuery (sql);
+               fetched = printer.printPage (rs);
+               rs.close ();
+            }while (fetched == FETCH_SIZE);
+         }finally{
+            fetch.close ();
+         }//end try
+         // ending the transaction closes the cursor.
+         conn.commit ();
+      }catch (SQLException e){
+         conn.rollback ();
+         throw e;
+      }finally{
+         conn.setAutoCommit (true);
+      }//end try
+      return printer.getRowCount ();
+   }//end streamResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -145,22 +306,118 @@ public class ProfNetwork{
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      ConnectionPool.PooledConnection pc = borrowForRead (query);
+      boolean failed = true;
+      try{
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+         result = collectResult (rs);
+         stmt.close ();
+         failed = false;
+         return result;
+      }finally{
+         pc.getPool().release (pc, failed);
+         record (query, true, start, result == null ? 0 : result.size(), sizeOf(result), failed);
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+    * through the statement cache and return the results as a list of records.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      ConnectionPool.PooledConnection pc = borrowForRead (query);
+      boolean failed = true;
+      PreparedStatement stmt = null;
+      try{
+         stmt = prepare (pc, query, params);
+         ResultSet rs = stmt.executeQuery ();
+         result = collectResult (rs);
+         rs.close ();
+         failed = false;
+         return result;
+      }finally{
+         release (pc, query, stmt, failed);
+         record (query, params.length == 0, start, result == null ? 0 : result.size(), sizeOf(result), failed);
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+    * through the statement cache and return the results as a columnar
+    * table, with char(n) values trimmed of their padding.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a ResultTable
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryAndReturnTable (String query, Object... params) throws SQLException {
+      return returnTable (false, query, params);
+   }//end executeQueryAndReturnTable
+
+   /**
+    * Method to execute a parameterized input query on the primary, never
+    * a replica, e.g. to fill a cache that every session reads and that
+    * must not keep a row a lagging replica has not caught up with.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a ResultTable
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executePrimaryQueryAndReturnTable (String query, Object... params) throws SQLException {
+      return returnTable (true, query, params);
+   }//end executePrimaryQueryAndReturnTable
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   private ResultTable returnTable (boolean primary, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ResultTable result = null;
+      ConnectionPool.PooledConnection pc = primary ? this._pool.borrow () : borrowForRead (query);
+      boolean failed = true;
+      PreparedStatement stmt = null;
+      try{
+         stmt = prepare (pc, query, params);
+         ResultSet rs = stmt.executeQuery ();
+         result = ResultTable.from (rs);
+         rs.close ();
+         failed = false;
+         return result;
+      }finally{
+         release (pc, query, stmt, failed);
+         record (query, params.length == 0, start, result == null ? 0 : result.getRowCount(),
+                 result == null ? 0 : result.byteSize(), failed);
+      }//end try
+   }//end returnTable
 
+   /**
+    * Copies every row of a result set into a list of records.
+    *
+    * @param rs the result set to read
+    * @return the rows as a list of records
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
           List<String> record = new ArrayList<String>();
@@ -168,9 +425,19 @@ public class ProfNetwork{
             record.add(rs.getString (i));
          result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end collectResult
+
+   // the characters of all values of a result, 0 for none.
+   private static long sizeOf (List<List<String>> result) {
+      if (result == null)
+         return 0;
+      long size = 0;
+      for (List<String> record : result)
+         for (String value : record)
+            size += value == null ? 0 : value.length();
+      return size;
+   }//end sizeOf
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -181,51 +448,480 @@ public class ProfNetwork{
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      ConnectionPool.PooledConnection pc = borrowForRead (query);
+      boolean failed = true;
+      try{
+         // creates a statement object
+         Statement stmt = pc.getConnection().createStatement ();
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         if(rs.next()){
+            rowCount++;
+         }//end while
+         stmt.close ();
+         failed = false;
+         return rowCount;
+      }finally{
+         pc.getPool().release (pc, failed);
+         record (query, true, start, rowCount, 0, failed);
+      }//end try
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+    * through the statement cache and return whether it found any row.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return 1 if the query returned a row, 0 otherwise
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      ConnectionPool.PooledConnection pc = borrowForRead (query);
+      boolean failed = true;
+      PreparedStatement stmt = null;
+      try{
+         stmt = prepare (pc, query, params);
+         ResultSet rs = stmt.executeQuery ();
+         rowCount = rs.next() ? 1 : 0;
+         rs.close ();
+         failed = false;
+         return rowCount;
+      }finally{
+         release (pc, query, stmt, failed);
+         record (query, params.length == 0, start, rowCount, 0, failed);
+      }//end try
+   }//end executeQuery
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   /**
+    * Method to execute a parameterized update SQL statement (INSERT, UPDATE,
+    * DELETE) through the statement cache.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
+      boolean failed = true;
+      PreparedStatement stmt = null;
+      try{
+         stmt = prepare (pc, sql, params);
+         rowCount = stmt.executeUpdate ();
+         failed = false;
+         return rowCount;
+      }finally{
+         release (pc, sql, stmt, failed);
+         session().markWrite ();
+         record (sql, params.length == 0, start, rowCount, 0, failed);
+      }//end try
+   }//end executeUpdate
 
    /**
-    * Method to close the physical connection if it is open.
+    * Work done on one pooled connection inside one transaction.
     */
-   public void cleanup(){
+   public interface Transaction<T> {
+      T run (ConnectionPool.PooledConnection pc) throws SQLException;
+   }//end Transaction
+
+   /**
+    * Method to run work on one pooled connection as a single transaction,
+    * committed when the work returns and rolled back when it throws.
+    *
+    * @param work the statements to run, prepared through prepare(pc, ...)
+    * @return what the work returned
+    * @throws java.sql.SQLException when the work or the commit failed
+    */
+   public <T> T executeInTransaction (Transaction<T> work) throws SQLException {
+      long start = System.nanoTime ();
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
+      Connection conn = pc.getConnection ();
+      boolean failed = true;
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         conn.setAutoCommit (false);
+         try{
+            T result = work.run (pc);
+            conn.commit ();
+            failed = false;
+            return result;
+         }catch (SQLException e){
+            conn.rollback ();
+            throw e;
+         }catch (RuntimeException e){
+            conn.rollback ();
+            throw e;
+         }finally{
+            conn.setAutoCommit (true);
+         }//end try
+      }finally{
+         this._pool.release (pc, failed);
+         session().markWrite ();
+         record (TRANSACTION + work.getClass().getName(), false, start, 0, 0, failed);
+      }//end try
+   }//end executeInTransaction
+
+   // transactions are counted as one statement named after their work.
+   static final String TRANSACTION = "TRANSACTION ";
+
+   /**
+    * Counts a finished statement in the query statistics, if kept.
+    *
+    * @param sql the SQL text
+    * @param literal true if the text may hold literal values to strip
+    * @param start System.nanoTime() before the connection was borrowed
+    * @param rows rows returned or affected
+    * @param bytes size of the values fetched
+    * @param failed true when the statement raised an error
+    */
+   private void record (String sql, boolean literal, long start, long rows, long bytes, boolean failed) {
+      if (this._stats != null)
+         this._stats.record (sql, literal, start, rows, bytes, failed);
+   }//end record
+
+   /**
+    * Fetches the cached statement for an SQL string and binds its
+    * parameters.  Strings are bound as text, so a placeholder compared with
+    * a char(n) column should be written as ?::bpchar to keep the
+    * comparison on the column's index.
+    *
+    * @param pc the borrowed connection to prepare the statement on
+    * @param sql the SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the prepared statement, to be released after use
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   static PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+      PreparedStatement stmt = pc.getStatements().prepare (sql);
+      try{
+         bind (stmt, params);
       }catch (SQLException e){
-         // ignored.
+         pc.getStatements().release (sql, stmt);
+         throw e;
       }//end try
+      return stmt;
+   }//end prepare
+
+   /**
+    * Hands a statement back to its cache and the connection back to the
+    * pool.
+    *
+    * @param pc the borrowed connection
+    * @param sql the SQL string the statement was prepared for
+    * @param stmt the statement, or null if preparing it failed
+    * @param failed true when the statement raised an error
+    */
+   private void release (ConnectionPool.PooledConnection pc, String sql, PreparedStatement stmt, boolean failed) {
+      if (stmt != null)
+         pc.getStatements().release (sql, stmt);
+      pc.getPool().release (pc, failed);
+   }//end release
+
+   /**
+    * Borrows a connection for a query, from a replica when the router
+    * finds the query read-only and the session has not written lately.
+    * The connection goes back through pc.getPool().
+    *
+    * @param query the query about to run
+    * @return the borrowed connection
+    * @throws java.sql.SQLException when no connection is available in time
+    */
+   private ConnectionPool.PooledConnection borrowForRead (String query) throws SQLException {
+      if (this._router == null)
+         return this._pool.borrow ();
+      return this._router.borrowForRead (query, session());
+   }//end borrowForRead
+
+   /**
+    * Binds positional parameters to a prepared statement.
+    *
+    * @param stmt the statement to bind
+    * @param params the values, Integer, Long, java.sql.Date, java.sql.Timestamp or String
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i){
+         Object param = params[i];
+         if (param == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else if (param instanceof Integer)
+            stmt.setInt (i + 1, ((Integer) param).intValue());
+         else if (param instanceof Long)
+            stmt.setLong (i + 1, ((Long) param).longValue());
+         else if (param instanceof java.sql.Date)
+            stmt.setDate (i + 1, (java.sql.Date) param);
+         else if (param instanceof java.sql.Timestamp)
+            stmt.setTimestamp (i + 1, (java.sql.Timestamp) param);
+         else
+            stmt.setString (i + 1, param.toString());
+      }//end for
+   }//end bind
+
+   /**
+    * Reports the statement cache counters summed over the pool.
+    *
+    * @return a one line summary of statements created and reused
+    */
+   public String getStatementStats () {
+      return this._pool.getStatementStats();
+   }//end getStatementStats
+
+   /**
+    * Reports connection pool wait times and utilization.
+    *
+    * @return a one line summary of the pool
+    */
+   public String getPoolStats () {
+      String stats = this._pool.toString();
+      if (this._router != null)
+         stats += "\n" + this._router;
+      synchronized (this){
+         if (this._shards != null && this._shards.size() > 1)
+            stats += "\n" + this._shards;
+         if (this._compactor != null)
+            stats += "\n" + this._compactor;
+      }//end synchronized
+      return stats + "\n" + this._counters;
+   }//end getPoolStats
+
+   /**
+    * Method to send every statement to the primary, e.g. while moving
+    * data, when replica lag would matter.
+    */
+   public void setPrimaryOnly (boolean primaryOnly) {
+      if (this._router != null)
+         this._router.setPrimaryOnly(primaryOnly);
+   }//end setPrimaryOnly
+
+   /**
+    * Method to fetch the per statement and per operation statistics.
+    *
+    * @return the statistics, or null when profnetwork.stats is false
+    */
+   public QueryStats getQueryStats () {
+      return this._stats;
+   }//end getQueryStats
+
+   /**
+    * Method to fetch the in-memory graph of accepted connections, loading
+    * it and starting its reconciliation on first use.
+    *
+    * @return the graph, or null when profnetwork.graph is false
+    * @throws java.sql.SQLException when failed to load the graph
+    */
+   public synchronized SocialGraph getGraph() throws SQLException {
+      if (this._graph == null && Boolean.parseBoolean(System.getProperty("profnetwork.graph", "true"))){
+         SocialGraph graph = new SocialGraph(this);
+         graph.reload();
+         graph.startReconciliation(Long.getLong("profnetwork.graph.reconcile", 60000L));
+         this._graph = graph;
+      }//end if
+      return this._graph;
+   }//end getGraph
+
+   /**
+    * Method to fetch the "people you may know" ranking, created on first
+    * use.
+    *
+    * @return the recommender, or null when the graph is disabled
+    * @throws java.sql.SQLException when failed to load the graph
+    */
+   public synchronized Recommender getRecommender() throws SQLException {
+      if (this._recommender == null && getGraph() != null){
+         this._recommender = new Recommender(this, getGraph());
+      }//end if
+      return this._recommender;
+   }//end getRecommender
+
+   /**
+    * Method to fetch the people search index, built on first use.
+    *
+    * @return the index, or null when profnetwork.search is false
+    * @throws java.sql.SQLException when failed to build the index
+    */
+   public synchronized PeopleIndex getPeopleIndex() throws SQLException {
+      if (this._people == null && Boolean.parseBoolean(System.getProperty("profnetwork.search", "true"))){
+         this._people = PeopleIndex.load(this);
+      }//end if
+      return this._people;
+   }//end getPeopleIndex
+
+   /**
+    * Method to fetch the allocator of new msgIds.
+    *
+    * @return the allocator
+    */
+   public synchronized IdAllocator getMessageIds() {
+      if (this._messageIds == null){
+         this._messageIds = new IdAllocator(this, "message_id_seq",
+            Integer.getInteger("profnetwork.msgIdBlock", IdAllocator.DEFAULT_BLOCK_SIZE));
+      }//end if
+      return this._messageIds;
+   }//end getMessageIds
+
+   /**
+    * Method to fetch the message shards, reading the shard map on first
+    * use.
+    *
+    * @return the shards
+    * @throws java.sql.SQLException when failed to read the shard map
+    */
+   public synchronized MessageShards getMessageShards() throws SQLException {
+      if (this._shards == null){
+         this._shards = new MessageShards(this, this._shardNames, this._shardPools,
+            Integer.getInteger("profnetwork.msgIdBlock", IdAllocator.DEFAULT_BLOCK_SIZE));
+      }//end if
+      return this._shards;
+   }//end getMessageShards
+
+   /**
+    * Method to create a compactor of deleted messages configured by the
+    * profnetwork.compact properties.
+    *
+    * @return the compactor, not started
+    */
+   public MessageCompactor newCompactor() {
+      String archive = System.getProperty("profnetwork.compact.archive", "").trim();
+      return new MessageCompactor(this,
+         Integer.getInteger("profnetwork.compact.batch", MessageCompactor.DEFAULT_BATCH),
+         Long.getLong("profnetwork.compact.pause", MessageCompactor.DEFAULT_PAUSE_MILLIS),
+         Long.getLong("profnetwork.compact.maxPause", MessageCompactor.DEFAULT_MAX_PAUSE_MILLIS),
+         Double.parseDouble(System.getProperty("profnetwork.compact.slowdown", String.valueOf(MessageCompactor.DEFAULT_SLOWDOWN))),
+         archive.isEmpty() ? null : new File(archive));
+   }//end newCompactor
+
+   /**
+    * Method to start removing deleted messages in the background, every
+    * profnetwork.compact.period ms, if that is set.  Only the server
+    * calls it, so one process compacts instead of every client.
+    */
+   public synchronized void startCompaction() {
+      long period = Long.getLong("profnetwork.compact.period", 0L);
+      if (this._compactor == null && period > 0){
+         this._compactor = newCompactor();
+         this._compactor.start(period);
+      }//end if
+   }//end startCompaction
+
+   /**
+    * Method to fetch the asynchronous message writer, starting it on first
+    * use.
+    *
+    * @return the writer
+    */
+   public synchronized MessageWriter getMessageWriter() {
+      if (this._messages == null){
+         this._messages = new MessageWriter(this,
+            Integer.getInteger("profnetwork.send.queue", MessageWriter.DEFAULT_QUEUE),
+            Integer.getInteger("profnetwork.send.maxBatch", MessageWriter.DEFAULT_MAX_BATCH),
+            Long.getLong("profnetwork.send.linger", MessageWriter.DEFAULT_LINGER_MILLIS),
+            Long.getLong("profnetwork.send.offerTimeout", MessageWriter.DEFAULT_OFFER_TIMEOUT));
+      }//end if
+      return this._messages;
+   }//end getMessageWriter
+
+   /**
+    * Method to fetch a user's profile through the profile cache.
+    *
+    * @param userId the user to fetch
+    * @return the profile, or null if there is no such user
+    * @throws java.sql.SQLException when failed to read the profile
+    */
+   public Profile getProfile(String userId) throws SQLException {
+      return this._profiles.get(this, userId);
+   }//end getProfile
+
+   /**
+    * Method to fetch a user's message and request counts through the
+    * counters cache.
+    *
+    * @param userId the user
+    * @return the counts
+    * @throws java.sql.SQLException when failed to read the counts
+    */
+   public MessageCounters getCounters(String userId) throws SQLException {
+      return this._counters.get(this, userId);
+   }//end getCounters
+
+   /**
+    * Method to drop the cached counts of users whose messages or
+    * connection requests changed.
+    *
+    * @param userIds the users whose counts changed
+    */
+   public void countersChanged(String... userIds) {
+      for (String userId : userIds)
+         this._counters.invalidate(userId);
+   }//end countersChanged
+
+   /**
+    * Method to tell the caches derived from a user's profile that the
+    * user was created or the user's password, work experience or
+    * education changed.
+    *
+    * @param userId the user whose profile changed
+    * @param searchable new text to find the user by, e.g. a company name
+    * @throws java.sql.SQLException when failed to reload the profile
+    */
+   public void profileChanged(String userId, String... searchable) throws SQLException {
+      Recommender recommender;
+      PeopleIndex people;
+      this._profiles.invalidate(userId);
+      synchronized (this){
+         recommender = this._recommender;
+         people = this._people;
+      }//end synchronized
+      if (recommender != null){
+         recommender.profileChanged(userId);
+      }//end if
+      if (people != null){
+         people.add(userId, searchable);
+      }//end if
+   }//end profileChanged
+
+   /**
+    * Method to close the pooled physical connections if they are open.
+    */
+   public void cleanup(){
+      MessageWriter messages;
+      synchronized (this){
+         if (this._compactor != null){
+            this._compactor.close ();
+         }//end if
+         if (this._graph != null){
+            this._graph.close ();
+         }//end if
+         messages = this._messages;
+      }//end synchronized
+      if (messages != null){
+         // write what is still queued while the pool is open.
+         messages.close ();
+      }//end if
+      synchronized (this){
+         if (this._shards != null){
+            this._shards.close ();
+         }else{
+            for (ConnectionPool shard : this._shardPools){
+               shard.close ();
+            }//end for
+         }//end if
+      }//end synchronized
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -236,16 +932,16 @@ public class ProfNetwork{
    public static void main (String[] args) {
      //Schedule a job for the event-dispatching thread:
      //creating and showing this application's GUI.
-      if (args.length != 3) {
+      boolean load = args.length == 5 && "--load".equals(args[3]);
+      if (args.length != 3 && !load) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--load <data dir>]");
          return;
       }//end if
 
-      Greeting();
       ProfNetwork esql = null;
       try{
          // use postgres JDBC driver.
@@ -256,56 +952,11 @@ public class ProfNetwork{
          String dbport = args[1];
          String user = args[2];
          esql = new ProfNetwork (dbname, dbport, user, "");
-         
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              System.out.println("");
-              displayUser(esql, authorisedUser);
-              System.out.println("");
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Goto Friend List");
-                System.out.println("2. Update Profile");
-                System.out.println("3. Write a new message");
-                System.out.println("4. Send Friend Request");
-                System.out.println("5. Search Person");
-                System.out.println("6. Goto Requests List");
-                System.out.println("7. Goto Message List");
-                System.out.println("8. View Friends List");
-                System.out.println(".........................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-                   case 1: FriendList(esql, authorisedUser); break;
-                   case 2: displayUser(esql, authorisedUser);
-                           UpdateProfile(esql, authorisedUser); break;
-                   case 3: NewMessage(esql, authorisedUser); break;
-                   case 4: SendRequest(esql, authorisedUser); break;
-                   case 5: SearchPerson(esql); break;
-                   case 6: AcceptorReject(esql, authorisedUser); break;
-                   case 7: displayMessage(esql, authorisedUser); break;
-                   case 8: viewFriends(esql, authorisedUser); break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         if (load) {
+            bulkLoad(esql, new File(args[4]));
+            return;
+         }//end if
+         runSession(esql, Session.console());
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -321,6 +972,155 @@ public class ProfNetwork{
          }//end try
       }//end try
    }//end main
+
+   /**
+    * Loads the CSV files of a data directory and reports the rows loaded
+    * per second.  Rows that cannot be loaded are written to rejects.csv in
+    * the same directory, or to the profnetwork.load.rejects file.
+    *
+    * @param esql the database access object
+    * @param dir the directory holding usr.csv and the other files
+    */
+   public static void bulkLoad (ProfNetwork esql, File dir) throws SQLException, java.io.IOException {
+      File rejects = new File(System.getProperty("profnetwork.load.rejects", new File(dir, "rejects.csv").getPath()));
+      BulkLoader loader = new BulkLoader(esql, dir, rejects);
+      // the loader reads back what it just wrote.
+      if (esql._router != null)
+         esql._router.setPrimaryOnly(true);
+      long start = System.nanoTime();
+      List<BulkLoader.Result> results = loader.load(Integer.getInteger("profnetwork.load.threads", 4));
+      double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+      long loaded = 0, rejected = 0;
+      for (BulkLoader.Result result : results) {
+         System.out.println(result);
+         loaded += result.loaded;
+         rejected += result.rejected;
+      }//end for
+      System.out.println(String.format("total %,d rows in %.2f s (%,.0f rows/s), %,d rejected to %s",
+                                       loaded, seconds, loaded / seconds, rejected, rejects.getPath()));
+   }//end bulkLoad
+
+   /**
+    * Runs the MAIN MENU and user menu for one session until the user exits
+    * or the session's input ends.  The session is bound to the calling
+    * thread for the menu handlers.
+    *
+    * @param esql the shared database access object
+    * @param session the user's input and output streams
+    */
+   public static void runSession (ProfNetwork esql, Session session) {
+      _session.set(session);
+      try{
+         Greeting();
+         boolean keepon = true;
+         while(keepon) {
+            // These are sample SQL statements
+            session().out().println("MAIN MENU");
+            session().out().println("---------");
+            session().out().println("1. Create user");
+            session().out().println("2. Log in");
+            session().out().println("9. < EXIT");
+            String authorisedUser = null;
+            int choice = readChoice();
+            String previous = QueryStats.enter(operation(MAIN_OPERATIONS, choice));
+            try{
+               switch (choice){
+                  case 1: CreateUser(esql); break;
+                  case 2: authorisedUser = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : session().out().println("Unrecognized choice!"); break;
+               }//end switch
+               if (authorisedUser != null) {
+                 QueryStats.enter("displayUser");
+                 session().out().println("");
+                 displayUser(esql, authorisedUser);
+                 displayCounters(esql, authorisedUser);
+                 session().out().println("");
+               }//end if
+            }finally{
+               QueryStats.exit(previous);
+            }//end try
+            if (authorisedUser != null) {
+              boolean usermenu = true;
+              while(usermenu) {
+                session().out().println("MAIN MENU");
+                session().out().println("---------");
+                session().out().println("1. Goto Friend List");
+                session().out().println("2. Update Profile");
+                session().out().println("3. Write a new message");
+                session().out().println("4. Send Friend Request");
+                session().out().println("5. Search Person");
+                session().out().println("6. Goto Requests List");
+                session().out().println("7. Goto Message List");
+                session().out().println("8. View Friends List");
+                session().out().println("10. People You May Know");
+                session().out().println("11. Message All Connections");
+                session().out().println("12. Statistics");
+                session().out().println("13. Search Messages");
+                session().out().println(".........................");
+                session().out().println("9. Log out");
+                choice = readChoice();
+                previous = QueryStats.enter(operation(USER_OPERATIONS, choice));
+                try{
+                   switch (choice){
+                      case 1: FriendList(esql, authorisedUser); break;
+                      case 2: displayUser(esql, authorisedUser);
+                              UpdateProfile(esql, authorisedUser); break;
+                      case 3: NewMessage(esql, authorisedUser); break;
+                      case 4: SendRequest(esql, authorisedUser); break;
+                      case 5: SearchPerson(esql); break;
+                      case 6: AcceptorReject(esql, authorisedUser); break;
+                      case 7: displayMessage(esql, authorisedUser); break;
+                      case 8: viewFriends(esql, authorisedUser); break;
+                      case 10: PeopleYouMayKnow(esql, authorisedUser); break;
+                      case 11: BroadcastMessage(esql, authorisedUser); break;
+                      case 12: Statistics(esql); break;
+                      case 13: SearchMessages(esql, authorisedUser); break;
+                      case 9: usermenu = false; break;
+                      default : session().out().println("Unrecognized choice!"); break;
+                   }//end switch
+                }finally{
+                   QueryStats.exit(previous);
+                }//end try
+              }
+            }
+         }//end while
+      }catch(Session.ClosedException e) {
+         // the user went away, nothing left to prompt.
+      }finally{
+         session.close();
+         _session.remove();
+      }//end try
+   }//end runSession
+
+   // the operations statements are counted under, by menu choice.
+   static final String[] MAIN_OPERATIONS = { null, "CreateUser", "LogIn" };
+   static final String[] USER_OPERATIONS = { null, "FriendList", "UpdateProfile", "NewMessage", "SendRequest",
+      "SearchPerson", "AcceptorReject", "displayMessage", "viewFriends", null, "PeopleYouMayKnow",
+      "BroadcastMessage", "Statistics", "SearchMessages" };
+
+   static String operation(String[] operations, int choice) {
+      return choice > 0 && choice < operations.length ? operations[choice] : null;
+   }//end operation
+
+   /*
+    * Returns the session bound to the current thread, the console unless
+    * runSession bound another one.
+    **/
+   static Session session() {
+      return _session.get();
+   }//end session
+
+   /*
+    * Binds a session to the current thread outside runSession, e.g. for
+    * ProfNetworkBench calling the handlers directly; null unbinds it.
+    **/
+   static void bindSession(Session session) {
+      if (session == null)
+         _session.remove();
+      else
+         _session.set(session);
+   }//end bindSession
 /*
    JFrame frame;
 // Java GUI
@@ -454,7 +1254,7 @@ public class ProfNetwork{
   }
   */
    public static void Greeting(){
-      System.out.println(
+      session().out().println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
@@ -468,12 +1268,14 @@ public class ProfNetwork{
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
+         session().out().print("Please make your choice: ");
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(session().readLine());
             break;
+         }catch (Session.ClosedException e) {
+            throw e;
          }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+            session().out().println("Your input is invalid!");
             continue;
          }//end try
       }while (true);
@@ -487,11 +1289,11 @@ public class ProfNetwork{
       String input;
       // returns only if a correct value is given.
       do {
-         System.out.print("\tPlease enter email: ");
+         session().out().print("\tPlease enter email: ");
          boolean hasAt = false;
          boolean hasPer = false;
          try { 
-            input = in.readLine();
+            input = session().readLine();
             for(int i = 0; i < input.length(); i++)
             {
               if(input.charAt(i) == '@')
@@ -507,12 +1309,14 @@ public class ProfNetwork{
 
             if( hasPer != true )
             {
-              System.out.println("\tYour input is invalid!");
+              session().out().println("\tYour input is invalid!");
               continue;
             }
             break;
+         }catch (Session.ClosedException e) {
+            throw e;
          }catch (Exception e) {
-            System.out.println("\tYour input is invalid!");
+            session().out().println("\tYour input is invalid!");
             continue;
          }//end try
       }while (true);
@@ -536,22 +1340,34 @@ public class ProfNetwork{
        return false;
      }
    }
+
+   /*
+    * Converts a date entered as DATE_FORMAT into a value that can be bound
+    * to a date column.
+    **/
+   public static java.sql.Date toSqlDate(String date) throws ParseException {
+     SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+     df.setLenient(false);
+     return new java.sql.Date(df.parse(date).getTime());
+   }
    public static String readDate(String datename) {
       String input;
       // returns only if a correct value is given.
       do {
-         System.out.print("\tPlease enter " + datename + ": ");
+         session().out().print("\tPlease enter " + datename + ": ");
          try { 
-            input = in.readLine();
+            input = session().readLine();
 
             if( isDateValid(input) == false )
             {
-              System.out.println("\tYour Date is invalid!");
+              session().out().println("\tYour Date is invalid!");
               continue;
             }
             break;
+         }catch (Session.ClosedException e) {
+            throw e;
          }catch (Exception e) {
-            System.out.println("\tYour input is invalid!");
+            session().out().println("\tYour input is invalid!");
             continue;
          }//end try
       }while (true);
@@ -564,21 +1380,20 @@ public class ProfNetwork{
     **/
    public static void CreateUser(ProfNetwork esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
+         session().out().print("\tEnter user login: ");
+         String login = session().readLine();
+         session().out().print("\tEnter user password: ");
+         String password = session().readLine();
          String email = readEmail();
 
          //Creating empty contact\block lists for a user
          // Removing contact list temporarily for testing. Not sure if we need it??!!
          //	 String query = String.format("INSERT INTO USR (userId, password, email, contact_list) VALUES ('%s','%s','%s')", login, password, email);
-         String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, password, email);
-
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         esql.executeUpdate("INSERT INTO USR (userId, password, email) VALUES (?, ?, ?)", login, password, email);
+         esql.profileChanged(login, email);
+         session().out().println ("User successfully created!");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         session().err().println (e.getMessage ());
       }
    }//end
 
@@ -588,18 +1403,17 @@ public class ProfNetwork{
     **/
    public static String LogIn(ProfNetwork esql){
      try{
-       System.out.print("\tEnter user login: ");
-       String login = in.readLine();
-       System.out.print("\tEnter user password: ");
-       String password = in.readLine();
+       session().out().print("\tEnter user login: ");
+       String login = session().readLine();
+       session().out().print("\tEnter user password: ");
+       String password = session().readLine();
 
-       String query = String.format("SELECT * FROM USR WHERE userid = '%s' AND password = '%s'", login, password);
-       int userNum = esql.executeQuery(query);
+       int userNum = esql.executeQuery("SELECT userId FROM USR WHERE userid = ?::bpchar AND password = ?", login, password);
        if (userNum > 0)
          return login;
        return null;
      }catch(Exception e){
-       System.err.println (e.getMessage ());
+       session().err().println (e.getMessage ());
        return null;
      }
    }//end
@@ -613,12 +1427,26 @@ public class ProfNetwork{
    */
   public static void FriendList(ProfNetwork esql, String User){
     try{
-      String query = String.format("SELECT connectionId FROM CONNECTION_USR WHERE (userid = '%s' AND status = 'Accept')", User);
-      esql.executeQueryAndPrintResult(query);
-      query = String.format("SELECT userid FROM CONNECTION_USR WHERE (connectionid = '%s' AND status = 'Accept')", User);
-      esql.executeQueryAndPrintResult(query);
+      SocialGraph graph = esql.getGraph();
+      if(graph == null)
+      {
+        esql.executeQueryAndPrintResult("SELECT connectionId FROM CONNECTION_USR WHERE (userid = ?::bpchar AND status = 'Accept')", User);
+        esql.executeQueryAndPrintResult("SELECT userid FROM CONNECTION_USR WHERE (connectionid = ?::bpchar AND status = 'Accept')", User);
+        return;
+      }
+      String[] friends = graph.friends(User);
+      if(friends.length == 0)
+      {
+        return;
+      }
+      StringBuilder page = new StringBuilder("connectionid\t\n");
+      for(String friend : friends)
+      {
+        page.append(friend).append("\t\n");
+      }
+      session().out().print(page);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
     }
   }
   /*
@@ -628,16 +1456,16 @@ public class ProfNetwork{
    * @param User the string holding the userid
    */
   public static void UpdateProfile(ProfNetwork esql, String User){
-    System.out.println("UpdateProfile");
-    System.out.println("---------");
-    System.out.println("1. Change Password");
-    System.out.println("2. Add Education Detail");
-    System.out.println("3. Add Work Experience");
+    session().out().println("UpdateProfile");
+    session().out().println("---------");
+    session().out().println("1. Change Password");
+    session().out().println("2. Add Education Detail");
+    session().out().println("3. Add Work Experience");
     switch (readChoice()){
       case 1: ChangePassword(esql, User); break;
       case 2: AddEduDetail(esql, User); break;
       case 3: AddWorkExpr(esql, User); break;
-      default : System.out.println("Unrecognized choice!"); break;
+      default : session().out().println("Unrecognized choice!"); break;
     }//end switch
   }
   /*
@@ -648,22 +1476,21 @@ public class ProfNetwork{
    */
   public static void ChangePassword(ProfNetwork esql, String User){
       try{
-         System.out.print("\tAre you sure you want to change your password?: ");
-         String check = in.readLine();
+         session().out().print("\tAre you sure you want to change your password?: ");
+         String check = session().readLine();
          if(!"yes".equalsIgnoreCase(check)){return;}
-         System.out.print("\tEnter previous password: ");
-         String password = in.readLine();
-         String query = String.format("SELECT * FROM USR WHERE userid = '%s' AND password = '%s'", User, password);
-         int userNum = esql.executeQuery(query);
+         session().out().print("\tEnter previous password: ");
+         String password = session().readLine();
+         int userNum = esql.executeQuery("SELECT userId FROM USR WHERE userid = ?::bpchar AND password = ?", User, password);
          if (userNum > 0){
-           System.out.print("\tEnter new password: ");
-           String newpassword = in.readLine();
-           query = String.format("UPDATE USR SET password = '%s' WHERE userid = '%s'", newpassword, User);
-           esql.executeUpdate(query);
-           System.out.print("\tPassword updated successfully!\n");
+           session().out().print("\tEnter new password: ");
+           String newpassword = session().readLine();
+           esql.executeUpdate("UPDATE USR SET password = ? WHERE userid = ?::bpchar", newpassword, User);
+           esql.profileChanged(User);
+           session().out().print("\tPassword updated successfully!\n");
          }
       }catch(Exception e){
-        System.err.println (e.getMessage ());
+        session().err().println (e.getMessage ());
         return;
       }
   }
@@ -679,24 +1506,23 @@ public class ProfNetwork{
    */
   public static void AddEduDetail(ProfNetwork esql, String User){
     try{
-      System.out.print("\tEnter Institution Name: ");
-      String instName = in.readLine();
-      System.out.print("\tEnter Major: ");
-      String major = in.readLine();
-      System.out.print("\tEnter Degree: ");
-      String degree = in.readLine();
+      session().out().print("\tEnter Institution Name: ");
+      String instName = session().readLine();
+      session().out().print("\tEnter Major: ");
+      String major = session().readLine();
+      session().out().print("\tEnter Degree: ");
+      String degree = session().readLine();
       String startdate = readDate("startdate"); 
       String enddate = readDate("enddate");
-      String query;
       if("".equals(enddate)) {
-        query = String.format("INSERT INTO educational_details VALUES('%s', '%s', '%s', '%s', '%s')", User, instName, major, degree, startdate);
+        esql.executeUpdate("INSERT INTO educational_details VALUES(?, ?, ?, ?, ?)", User, instName, major, degree, toSqlDate(startdate));
       }
       else {
-        query = String.format("INSERT INTO educational_details VALUES('%s', '%s', '%s', '%s', '%s', '%s')", User, instName, major, degree, startdate, enddate);
+        esql.executeUpdate("INSERT INTO educational_details VALUES(?, ?, ?, ?, ?, ?)", User, instName, major, degree, toSqlDate(startdate), toSqlDate(enddate));
       }
-      esql.executeUpdate(query);
+      esql.profileChanged(User, instName);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
@@ -708,27 +1534,200 @@ public class ProfNetwork{
    */
   public static void AddWorkExpr(ProfNetwork esql, String User){
     try{
-      System.out.print("\tEnter Company Name: ");
-      String compName = in.readLine();
-      System.out.print("\tEnter Role: ");
-      String role = in.readLine();
-      System.out.print("\tEnter Location: ");
-      String location = in.readLine();
+      session().out().print("\tEnter Company Name: ");
+      String compName = session().readLine();
+      session().out().print("\tEnter Role: ");
+      String role = session().readLine();
+      session().out().print("\tEnter Location: ");
+      String location = session().readLine();
       String startdate = readDate("startdate"); 
       String enddate = readDate("enddate");
-      String query;
       if("".equals(enddate)) {
-        query = String.format("INSERT INTO work_expr VALUES('%s', '%s', '%s', '%s', '%s')", User, compName, role, location, startdate);
+        esql.executeUpdate("INSERT INTO work_expr VALUES(?, ?, ?, ?, ?)", User, compName, role, location, toSqlDate(startdate));
       }
       else {
-        query = String.format("INSERT INTO work_expr VALUES('%s', '%s', '%s', '%s', '%s', '%s')", User, compName, role, location, startdate, enddate);
+        esql.executeUpdate("INSERT INTO work_expr VALUES(?, ?, ?, ?, ?, ?)", User, compName, role, location, toSqlDate(startdate), toSqlDate(enddate));
+      }
+      esql.profileChanged(User, compName);
+    }catch(Exception e){
+      session().err().println (e.getMessage ());
+      return;
+    }
+  }
+  /*
+   * Queues a message on the group commit writer and waits until it is
+   * written, so the sender still hears about a failed send.
+   *
+   * @return the msgId of the new message
+   */
+  static int sendMessage(ProfNetwork esql, String senderId, String receiverId, String contents) throws SQLException, InterruptedException {
+    try{
+      int msgId = esql.getMessageWriter().send(senderId, receiverId, contents).get(SEND_TIMEOUT, java.util.concurrent.TimeUnit.MILLISECONDS).intValue();
+      // written by the writer thread, on behalf of this session.
+      session().markWrite();
+      esql.countersChanged(senderId, receiverId);
+      return msgId;
+    }catch(java.util.concurrent.ExecutionException e){
+      throw (SQLException) e.getCause();
+    }catch(java.util.concurrent.TimeoutException e){
+      throw new SQLException("message not sent within " + SEND_TIMEOUT + " ms, it may still arrive");
+    }
+  }
+  // how long a sender waits for the message writer.
+  static final long SEND_TIMEOUT = Long.getLong("profnetwork.send.timeout", MessageWriter.DEFAULT_SEND_TIMEOUT);
+  // rows per multi-row INSERT when broadcasting.
+  static final int BROADCAST_CHUNK = 256;
+
+  /*
+   * Sends one message to all of the user's connections, or to a chosen
+   * few of them, and reports how fast the fan-out went.
+   *
+   * @param User the string holding the userid
+   */
+  public static void BroadcastMessage(ProfNetwork esql, String User){
+    try{
+      String[] connections = connectionsOf(esql, User);
+      if(connections.length == 0)
+      {
+        session().out().println("\tYou have no connections yet");
+        return;
+      }
+      session().out().print("\tEnter recipients separated by commas, or all for your " + connections.length + " connections: ");
+      String input = session().readLine().trim();
+      List<String> receivers = new ArrayList<String>();
+      if("all".equalsIgnoreCase(input))
+      {
+        receivers.addAll(Arrays.asList(connections));
+      }
+      else
+      {
+        Set<String> known = new HashSet<String>(Arrays.asList(connections));
+        for(String id : input.split(","))
+        {
+          id = id.trim();
+          if(id.length() == 0 || receivers.contains(id))
+            continue;
+          if(!known.contains(id))
+          {
+            session().out().println("\t" + id + " is not one of your connections, skipped");
+            continue;
+          }
+          receivers.add(id);
+        }
       }
-      esql.executeUpdate(query);
+      if(receivers.isEmpty())
+      {
+        return;
+      }
+      session().out().print("\tEnter message: ");
+      String contents = session().readLine();
+      long start = System.nanoTime();
+      broadcastMessage(esql, User, receivers, contents);
+      double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+      session().out().println(String.format("\tSent to %d connections in %.1f ms (%.0f messages/s)",
+                                            receivers.size(), seconds * 1000, receivers.size() / seconds));
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
+
+  /*
+   * Writes one message per receiver, in one transaction per message shard
+   * holding any of them, one shard after the other, in multi-row INSERTs
+   * of BROADCAST_CHUNK rows, with msgIds from the shards' allocators.
+   * The shards do not commit together: when one fails, the messages of
+   * the shards before it are sent, and the error names their receivers
+   * so a retry can leave them out.
+   */
+  static void broadcastMessage(ProfNetwork esql, String senderId, List<String> receivers, String contents) throws SQLException {
+    MessageShards shards = esql.getMessageShards();
+    List<List<MessageWriter.Send>> byShard = new ArrayList<List<MessageWriter.Send>>();
+    for(int shard = 0; shard < shards.size(); ++shard)
+    {
+      byShard.add(new ArrayList<MessageWriter.Send>());
+    }
+    // only the main database's MESSAGE has foreign keys to USR, the
+    // receivers on other shards are looked up together.
+    StringBuilder unchecked = new StringBuilder();
+    for(String receiverId : receivers)
+    {
+      if(shards.shardOf(senderId, receiverId) != 0)
+        unchecked.append(unchecked.length() == 0 ? "" : "\n").append(receiverId.trim());
+    }
+    if(unchecked.length() > 0)
+    {
+      ResultTable known = esql.executeQueryAndReturnTable("SELECT userId FROM usr WHERE userId = ANY(string_to_array(?, chr(10))::bpchar[])", unchecked.toString());
+      Set<String> users = new HashSet<String>();
+      for(int i = 0; i < known.getRowCount(); ++i)
+        users.add(known.getString(i, 0));
+      for(String receiverId : unchecked.toString().split("\n"))
+        if(!users.contains(receiverId))
+          throw new SQLException("no such user: " + receiverId);
+    }
+    for(String receiverId : receivers)
+    {
+      int shard = shards.shardOf(senderId, receiverId);
+      byShard.get(shard).add(new MessageWriter.Send(shard, shards.nextId(shard), senderId, receiverId, contents));
+    }
+    List<String> sent = new ArrayList<String>();
+    for(int shard = 0; shard < shards.size(); ++shard)
+    {
+      final List<MessageWriter.Send> rows = byShard.get(shard);
+      if(rows.isEmpty())
+        continue;
+      try{
+        shards.executeInTransaction(shard, new Transaction<Void>(){
+          public Void run (ConnectionPool.PooledConnection pc) throws SQLException {
+            for(int i = 0; i < rows.size(); i += BROADCAST_CHUNK)
+            {
+              MessageWriter.insert(pc, rows.subList(i, Math.min(rows.size(), i + BROADCAST_CHUNK)));
+            }
+            return null;
+          }
+        });
+      }catch(SQLException e){
+        if(sent.isEmpty())
+          throw e;
+        broadcastSent(esql, senderId, sent);
+        StringBuilder names = new StringBuilder();
+        for(String receiverId : sent)
+          names.append(names.length() == 0 ? "" : ", ").append(receiverId.trim());
+        throw new SQLException(String.format("sent to %d of %d receivers, the others failed: %s\n\tsent to: %s",
+                                             sent.size(), receivers.size(), e.getMessage(), names));
+      }
+      for(MessageWriter.Send row : rows)
+        sent.add(row.receiverId);
+    }
+    broadcastSent(esql, senderId, sent);
+  }
+
+  // drops the cached counts the sent part of a broadcast changed.
+  static void broadcastSent(ProfNetwork esql, String senderId, List<String> receivers) {
+    session().markWrite();
+    esql.countersChanged(senderId);
+    esql.countersChanged(receivers.toArray(new String[receivers.size()]));
+  }
+
+  /*
+   * Lists a user's accepted connections, from the in-memory graph when it
+   * is enabled.
+   */
+  static String[] connectionsOf(ProfNetwork esql, String userId) throws SQLException {
+    SocialGraph graph = esql.getGraph();
+    if(graph != null)
+    {
+      return graph.friends(userId);
+    }
+    ResultTable rows = esql.executeQueryAndReturnTable("SELECT connectionId FROM connection_usr WHERE userId = ?::bpchar AND status = 'Accept' UNION SELECT userId FROM connection_usr WHERE connectionId = ?::bpchar AND status = 'Accept'", userId, userId);
+    String[] result = new String[rows.getRowCount()];
+    for(int i = 0; i < result.length; ++i)
+    {
+      result[i] = rows.getString(i, 0);
+    }
+    return result;
+  }
+
   /*
    * Creates a message between the current User
    * and a valid userid.
@@ -738,28 +1737,31 @@ public class ProfNetwork{
    */
   public static void NewMessage(ProfNetwork esql, String senderId){
     try{
-      System.out.print("\tEnter Recipient: ");
-      String receiverId = in.readLine();
-      System.out.print("\tEnter message: ");
-      String contents = in.readLine();
-      String query = String.format("INSERT INTO message(senderId, receiverId, contents) VALUES('%s', '%s', '%s')", senderId, receiverId, contents);
-      esql.executeUpdate(query);
+      session().out().print("\tEnter Recipient: ");
+      String receiverId = session().readLine();
+      session().out().print("\tEnter message: ");
+      String contents = session().readLine();
+      sendMessage(esql, senderId, receiverId, contents);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
   public static void SendMessage(ProfNetwork esql, String senderId, String receiverId){
     try{
-      System.out.print("\tEnter message: ");
-      String contents = in.readLine();
-      String query = String.format("INSERT INTO message(senderId, receiverId, contents) VALUES('%s', '%s', '%s')", senderId, receiverId, contents);
-      esql.executeUpdate(query);
+      session().out().print("\tEnter message: ");
+      String contents = session().readLine();
+      sendMessage(esql, senderId, receiverId, contents);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
+  // connections a User may have before requests are limited to
+  // users within MAX_REQUEST_HOPS levels.
+  static final int MAX_FREE_CONNECTIONS = 5;
+  static final int MAX_REQUEST_HOPS = 3;
+
   /*
    * Sends a request for a connection between the User
    * and a valid userid. May only send request to users
@@ -772,140 +1774,351 @@ public class ProfNetwork{
    */
   public static void SendRequest(ProfNetwork esql, String userId){
     try{
-      System.out.print("\tEnter Name of connection: ");
-      String connectionId = in.readLine();
-      String query = String.format("SELECT COUNT(*) FROM connection_usr where userId = '%s'", userId);
-      int num = esql.executeQuery(query);
-      if(num <= 5){
-        query = String.format("INSERT INTO connection_usr VALUES('%s', '%s', '%s')", userId, connectionId, "Request");
-        esql.executeUpdate(query);
-      }
-      //Check list of your friends friends. 
-      else{
-        System.out.println("\tImplement three level friend check");
-      }
+      session().out().print("\tEnter Name of connection: ");
+      String connectionId = session().readLine();
+      RequestConnection(esql, userId, connectionId);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
   public static void PassRequest(ProfNetwork esql, String userId, String connectionId){
     try{
-      String query = String.format("SELECT COUNT(*) FROM connection_usr where userId = '%s'", userId);
-      int num = esql.executeQuery(query);
-      if(num <= 5){
-        query = String.format("INSERT INTO connection_usr VALUES('%s', '%s', '%s')", userId, connectionId, "Request");
-        esql.executeUpdate(query);
-      }
-      //Check list of your friends friends. 
-      else{
-        System.out.println("\tImplement three level friend check");
-      }
+      RequestConnection(esql, userId, connectionId);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
+      return;
+    }
+  }
+  /*
+   * Inserts a connection request if the User still has at most
+   * MAX_FREE_CONNECTIONS accepted connections, or if connectionId is
+   * within MAX_REQUEST_HOPS levels of the User's connections.
+   *
+   * @param userId the string holding the requesting userid
+   * @param connectionId the string holding the requested userid
+   */
+  static void RequestConnection(ProfNetwork esql, String userId, String connectionId) throws SQLException {
+    ResultTable count = esql.executeQueryAndReturnTable("SELECT COUNT(*) FROM connection_usr WHERE status = 'Accept' AND (userId = ?::bpchar OR connectionId = ?::bpchar)", userId, userId);
+    if(count.getInt(0, 0) > MAX_FREE_CONNECTIONS
+       && !new ConnectionReach(esql).isWithin(userId, connectionId, MAX_REQUEST_HOPS))
+    {
+      session().out().println("\t" + connectionId + " is not within " + MAX_REQUEST_HOPS + " levels of your connections");
       return;
     }
+    esql.executeUpdate("INSERT INTO connection_usr VALUES(?, ?, ?)", userId, connectionId, "Request");
+    esql.countersChanged(connectionId);
+    session().out().println("\tRequest sent!");
   }
+  // matches listed per page of search results.
+  static final int SEARCH_PAGE = 10;
+
+  /*
+   * Searches people by id, name, email, company or school, tolerating
+   * typos, and shows the profile of the chosen match.
+   */
   public static void SearchPerson(ProfNetwork esql){
     try{
-      System.out.print("\tEnter Name of User: ");
-      String searchId = in.readLine();
-      displayUser(esql, searchId);
+      session().out().print("\tEnter Name of User: ");
+      String searchId = session().readLine();
+      PeopleIndex people = esql.getPeopleIndex();
+      if(people == null)
+      {
+        displayUser(esql, searchId);
+        return;
+      }
+      int page = 0;
+      while(true)
+      {
+        // one extra match tells whether there is a next page.
+        List<PeopleIndex.Hit> hits = people.search(searchId, page * SEARCH_PAGE, SEARCH_PAGE + 1);
+        if(hits.isEmpty() && page == 0)
+        {
+          session().out().println("\tNo matching users");
+          return;
+        }
+        if(page == 0 && (hits.size() == 1 || hits.get(0).cost < 0))
+        {
+          displayUser(esql, hits.get(0).userId);
+          return;
+        }
+        boolean more = hits.size() > SEARCH_PAGE;
+        for(int i = 0; i < Math.min(hits.size(), SEARCH_PAGE); ++i)
+          session().out().println("\t" + (i + 1) + ". " + hits.get(i).userId);
+        session().out().print("\tEnter a number to view" + (more ? ", n for next page" : "") + (page > 0 ? ", p for previous page" : "") + ", anything else to go back: ");
+        String input = session().readLine().trim();
+        if(more && "n".equals(input))
+          ++page;
+        else if(page > 0 && "p".equals(input))
+          --page;
+        else if(input.matches("\\d+") && Integer.parseInt(input) >= 1 && Integer.parseInt(input) <= Math.min(hits.size(), SEARCH_PAGE))
+        {
+          displayUser(esql, hits.get(Integer.parseInt(input) - 1).userId);
+          return;
+        }
+        else
+          return;
+      }
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
   public static void displayUser(ProfNetwork esql, String userId){
     try{
-      String query = String.format("SELECT u.userId, email, dateofbirth, instituitionname, major, degree, e.startdate, e.enddate, company, role, location, w.startdate, w.enddate FROM usr u, work_expr w, educational_details e where u.userId = '%s' AND w.userId = '%s' AND e.userId = '%s'", userId, userId, userId);
-      int num = esql.executeQuery(query);
-      if(num == 0)
+      Profile profile = esql.getProfile(userId);
+      if(profile == null)
       {
-        query = String.format("SELECT userId, email, dateofbirth FROM usr u where u.userId = '%s'", userId);
+        session().out().println("\tNo such user: " + userId);
+        return;
       }
-      esql.executeQueryAndPrintResult(query);
+      StringBuilder page = new StringBuilder();
+      profile.print(page);
+      session().out().print(page);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
+
+  /*
+   * Prints the user's unread, received and sent messages and waiting
+   * connection requests, from the counters the triggers keep.
+   */
+  public static void displayCounters(ProfNetwork esql, String userId){
+    try{
+      session().out().println("\t" + esql.getCounters(userId));
+    }catch(Exception e){
+      session().err().println (e.getMessage ());
+      return;
+    }
+  }
+
   public static void AcceptorReject(ProfNetwork esql, String connectionId){
     try{
-      String query = String.format("SELECT * FROM CONNECTION_USR WHERE connectionId = '%s' AND status = 'Request'", connectionId);
-      esql.executeQueryAndPrintResult(query);
-      System.out.print("\tEnter Name of User: ");
-      String userId = in.readLine();
-      System.out.println("\tAccept or Reject: ");
-      String choice = in.readLine();
-      if("Accept".equalsIgnoreCase(choice))
+      esql.executeQueryAndPrintResult("SELECT * FROM CONNECTION_USR WHERE connectionId = ?::bpchar AND status = 'Request'", connectionId);
+      session().out().print("\tEnter Name of User: ");
+      String userId = session().readLine();
+      session().out().println("\tAccept or Reject: ");
+      String choice = session().readLine();
+      String status = "Accept".equalsIgnoreCase(choice) ? "Accept" : "Reject";
+      int updated = esql.executeUpdate("UPDATE connection_usr SET status = ? WHERE userId = ?::bpchar AND connectionid = ?::bpchar", status, userId, connectionId);
+      if(updated > 0)
+        esql.countersChanged(connectionId);
+      SocialGraph graph = esql.getGraph();
+      if(updated > 0 && graph != null)
       {
-        query = String.format("UPDATE connection_usr SET status = 'Accept' WHERE userId = '%s'AND connectionid = '%s'", userId, connectionId);
+        if("Accept".equals(status))
+          graph.addEdge(userId, connectionId);
+        // the edge stays while the request the other way is accepted.
+        else if(esql.executePrimaryQueryAndReturnTable("SELECT 1 FROM connection_usr WHERE status = 'Accept' AND (userId = ?::bpchar AND connectionId = ?::bpchar OR userId = ?::bpchar AND connectionId = ?::bpchar)", userId, connectionId, connectionId, userId).isEmpty())
+          graph.removeEdge(userId, connectionId);
       }
-      else
-      {
-        query = String.format("UPDATE connection_usr SET status = 'Reject' WHERE userId = '%s'AND connectionid = '%s'", userId, connectionId);
-      }
-      esql.executeUpdate(query);
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
       return;
     }
   }
+  // messages listed per inbox page.
+  static final int INBOX_PAGE = 20;
+
+  /*
+   * Shows the messages a user sent and received, newest first, a page at
+   * a time, and lets the user delete them.
+   */
   public static void displayMessage(ProfNetwork esql, String userId){
     try{
-      String query = String.format("SELECT * FROM message where (senderId = '%s' and deletestatus != 2 and deletestatus != 3) OR (receiverId = '%s' and deletestatus != 1 and deletestatus != 3)", userId, userId);
-      if(("").equals(esql.executeQuery(query)))
+      Inbox inbox = new Inbox(esql, userId, INBOX_PAGE);
+      List<Inbox.Message> page = inbox.first();
+      if(page.isEmpty())
       {
-        System.out.println("\tNo Messages");
+        session().out().println("\tNo Messages");
         return;  
       }
-      System.out.println("");
-      query = String.format("SELECT * FROM message where (senderId = '%s' and deletestatus != 2 and deletestatus != 3) OR (receiverId = '%s' and deletestatus != 1 and deletestatus != 3)", userId, userId);
-      esql.executeQueryAndPrintResult(query);
-      System.out.println("");
-      System.out.print("\tEnter msgId to delete: ");
-      String msgId = in.readLine();
-      System.out.println("\tDelete: ");
-      System.out.print("\tYes: y, No: n: ");
-      String choice = in.readLine();
-      if("y".equals(choice))
+      while(true)
       {
-        query = String.format("SELECT receiverId, deletestatus FROM message where msgId = '%s'", msgId);
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);        
-        //Reciever is deleting.  if(result.get(0).get(0).equals(userId))
+        StringBuilder out = new StringBuilder("\nmsgid\tsenderid\treceiverid\tcontents\tsendtime\tstatus\t\n");
+        for(Inbox.Message m : page)
         {
-          if( result.get(0).get(1).equals( "0" ))
-          {
-            query = String.format("UPDATE message SET deletestatus = 1 WHERE receiverId = '%s' AND msgId = '%s'", userId, msgId);
-            System.out.println(query);esql.executeUpdate(query);
-          }
-          else
-          {
-            query = String.format("UPDATE message SET deletestatus = 3 WHERE receiverId = '%s' AND msgId = '%s'", userId, msgId);
-            esql.executeUpdate(query);
-          }
+          out.append(m.msgId).append('\t').append(m.senderId).append('\t').append(m.receiverId).append('\t')
+             .append(m.contents).append('\t').append(m.sendTime).append('\t').append(m.status).append("\t\n");
+        }
+        session().out().println(out);
+        if(inbox.markRead() > 0)
+          esql.countersChanged(userId);
+        boolean older = !inbox.hasNext() && MessageArchive.exists(ARCHIVE);
+        session().out().print("\tEnter msgId to delete" + (inbox.hasNext() ? ", n for next page" : "") + (inbox.hasPrevious() ? ", p for previous page" : "") + (older ? ", o for older messages" : "") + ", anything else to go back: ");
+        String input = session().readLine().trim();
+        if(inbox.hasNext() && "n".equals(input))
+          page = inbox.next();
+        else if(older && "o".equals(input))
+          displayArchived(userId);
+        else if(inbox.hasPrevious() && "p".equals(input))
+          page = inbox.previous();
+        else if(input.matches("\\d+"))
+        {
+          deleteMessage(esql, userId, Integer.parseInt(input));
+          page = inbox.refresh();
+          if(page.isEmpty() && inbox.hasPrevious())
+            page = inbox.previous();
+          if(page.isEmpty())
+            return;
         }
         else
+          return;
+      }
+    }catch(Exception e){
+      session().err().println (e.getMessage ());
+      return;
+    }
+  }
+
+  /*
+   * Finds the user's messages by the words in them, best match first, a
+   * page at a time.
+   */
+  public static void SearchMessages(ProfNetwork esql, String userId){
+    try{
+      session().out().print("\tEnter words to find: ");
+      String query = session().readLine();
+      MessageSearch search = new MessageSearch(esql, userId);
+      int page = 0;
+      while(true)
+      {
+        // one extra match tells whether there is a next page.
+        List<MessageSearch.Hit> hits = search.search(query, page * INBOX_PAGE, INBOX_PAGE + 1);
+        if(hits.isEmpty() && page == 0)
         {
-          if( result.get(0).get(1).equals( "0" ))
-          {
-            query = String.format("UPDATE message SET deletestatus = 2 WHERE receiverId = '%s' AND msgId = '%s'", userId, msgId);
-            esql.executeUpdate(query);
-          }
-          else
-          {
-            query = String.format("UPDATE message SET deletestatus = 3 WHERE receiverId = '%s' AND msgId = '%s'", userId, msgId);
-            esql.executeUpdate(query);
-          }
+          session().out().println("\tNo matching messages");
+          return;
         }
+        boolean more = hits.size() > INBOX_PAGE;
+        StringBuilder out = new StringBuilder("\nmsgid\tsenderid\treceiverid\tcontents\tsendtime\tstatus\t\n");
+        for(int i = 0; i < Math.min(hits.size(), INBOX_PAGE); ++i)
+        {
+          Inbox.Message m = hits.get(i).message;
+          out.append(m.msgId).append('\t').append(m.senderId).append('\t').append(m.receiverId).append('\t')
+             .append(m.contents).append('\t').append(m.sendTime).append('\t').append(m.status).append("\t\n");
+        }
+        session().out().println(out);
+        session().out().print("\tMatching messages" + (more ? ", n for next page" : "") + (page > 0 ? ", p for previous page" : "") + ", anything else to go back: ");
+        String input = session().readLine().trim();
+        if(more && "n".equals(input))
+          ++page;
+        else if(page > 0 && "p".equals(input))
+          --page;
+        else
+          return;
       }
     }catch(Exception e){
-      System.err.println (e.getMessage ());
+      session().err().println (e.getMessage ());
+      return;
+    }
+  }
+
+  // where MessagePartitions archives the months moved out of MESSAGE.
+  static final File ARCHIVE = new File(System.getProperty("profnetwork.archive", MessagePartitions.DEFAULT_ARCHIVE));
+
+  /*
+   * Shows the user's archived messages, newest first, a page at a time,
+   * reading the archive files of older months only when paging reaches
+   * them.
+   */
+  static void displayArchived(String userId) throws java.io.IOException {
+    MessageArchive archive = new MessageArchive(ARCHIVE, userId, INBOX_PAGE);
+    List<Inbox.Message> page = archive.first();
+    if(page.isEmpty())
+    {
+      session().out().println("\tNo older messages");
       return;
     }
+    while(true)
+    {
+      StringBuilder out = new StringBuilder("\nmsgid\tsenderid\treceiverid\tcontents\tsendtime\tstatus\t\n");
+      for(Inbox.Message m : page)
+      {
+        out.append(m.msgId).append('\t').append(m.senderId).append('\t').append(m.receiverId).append('\t')
+           .append(m.contents).append('\t').append(m.sendTime).append('\t').append(m.status).append("\t\n");
+      }
+      session().out().println(out);
+      session().out().print("\tArchived messages" + (archive.hasNext() ? ", n for next page" : "") + (archive.hasPrevious() ? ", p for previous page" : "") + ", anything else to go back: ");
+      String input = session().readLine().trim();
+      if(archive.hasNext() && "n".equals(input))
+        page = archive.next();
+      else if(archive.hasPrevious() && "p".equals(input))
+        page = archive.previous();
+      else
+        return;
+    }
   }
 
+  /*
+   * Deletes a message on the user's side, and for good once both the
+   * sender and the receiver deleted it.
+   */
+  static void deleteMessage(ProfNetwork esql, String userId, int msgId) throws SQLException {
+    session().out().println("\tDelete: ");
+    session().out().print("\tYes: y, No: n: ");
+    String choice = session().readLine();
+    if(!"y".equals(choice))
+      return;
+    MessageShards shards = esql.getMessageShards();
+    int shard = shards.locate(msgId);
+    ResultTable result = shard < 0 ? null : shards.query(shard, "SELECT receiverId, deletestatus FROM message where msgId = ?", msgId);
+    if(result == null || result.isEmpty())
+    {
+      session().out().println("\tNo such message");
+      return;
+    }
+    int status = result.getInt(0, 1);
+    //Reciever is deleting.
+    if(result.getString(0, 0).equals(userId))
+    {
+      shards.update(shard, "UPDATE message SET deletestatus = ? WHERE receiverId = ?::bpchar AND msgId = ?", status == 2 ? 3 : 1, userId, msgId);
+    }
+    else
+    {
+      shards.update(shard, "UPDATE message SET deletestatus = ? WHERE senderId = ?::bpchar AND msgId = ?", status == 1 ? 3 : 2, userId, msgId);
+    }
+    esql.countersChanged(userId);
+  }
+
+  /*
+   * Prints the users the User is most likely to know: friends of
+   * friends ranked by mutual connections, shared companies and
+   * shared schools.
+   *
+   * @param User the string holding the userid
+   */
+  public static void PeopleYouMayKnow(ProfNetwork esql, String User){
+    try{
+      Recommender recommender = esql.getRecommender();
+      if(recommender == null)
+      {
+        session().out().println("\tRecommendations are disabled");
+        return;
+      }
+      List<Recommender.Recommendation> ranked = recommender.recommend(User, RECOMMENDATIONS);
+      if(ranked.isEmpty())
+      {
+        session().out().println("\tNo suggestions yet, add some connections first");
+        return;
+      }
+      StringBuilder page = new StringBuilder("userid\tmutual\tcompanies\tschools\tmajors\t\n");
+      for(Recommender.Recommendation r : ranked)
+      {
+        page.append(r.userId).append('\t').append(r.mutual).append('\t').append(r.sharedCompanies).append('\t')
+            .append(r.sharedInstitutions).append('\t').append(r.sharedMajors).append("\t\n");
+      }
+      session().out().print(page);
+    }catch(Exception e){
+      session().err().println (e.getMessage ());
+      return;
+    }
+  }
+  // suggestions shown by PeopleYouMayKnow.
+  static final int RECOMMENDATIONS = 10;
+
   public static void viewFriends(ProfNetwork esql, String userId){
     try{
       String currentId = userId;
@@ -913,39 +2126,55 @@ public class ProfNetwork{
       while(usermenu) 
       {
         FriendList(esql, currentId);
-        System.out.println("Menu");
-        System.out.println("---------");
-        System.out.println("1. Select friend");
-        System.out.println("2. Main Menu");
+        session().out().println("Menu");
+        session().out().println("---------");
+        session().out().println("1. Select friend");
+        session().out().println("2. Main Menu");
         switch (readChoice()){
           case 1: 
             {
-              System.out.print("\tEnter Name of User: ");
-              currentId = in.readLine();
+              session().out().print("\tEnter Name of User: ");
+              currentId = session().readLine();
               displayUser(esql, currentId);
-              System.out.println("Menu");
-              System.out.println("---------");
-              System.out.println("1. Send Request");
-              System.out.println("2. Send Message");
-              System.out.println("3. View Friend List");
-              System.out.println("4. Main Menu");
+              session().out().println("Menu");
+              session().out().println("---------");
+              session().out().println("1. Send Request");
+              session().out().println("2. Send Message");
+              session().out().println("3. View Friend List");
+              session().out().println("4. Main Menu");
               switch (readChoice()){
                 case 1: PassRequest(esql, userId, currentId); break;
                 case 2: SendMessage(esql, userId, currentId); break;
                 case 3: break;
                 case 4: return;
-                default : System.out.println("Unrecognized choice!"); break;
+                default : session().out().println("Unrecognized choice!"); break;
               }
               break;
             }
           case 2: return;
-          default : System.out.println("Unrecognized choice!"); break;
+          default : session().out().println("Unrecognized choice!"); break;
         }
       }
     }catch(Exception e){
-      System.err.println(e.getMessage());
+      session().err().println(e.getMessage());
+      return;
+    }
+  }
+
+  /*
+   * Prints the statement statistics kept so far, per operation and per
+   * SQL text, with the statement cache and connection pool counters.
+   */
+  public static void Statistics(ProfNetwork esql){
+    QueryStats stats = esql.getQueryStats();
+    if(stats == null)
+    {
+      session().out().println("\tStatistics are disabled");
       return;
     }
+    session().out().println(stats.dump());
+    session().out().println(esql.getStatementStats());
+    session().out().println(esql.getPoolStats());
   }
 
 }//end ProfNetwork
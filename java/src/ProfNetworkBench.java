@@ -0,0 +1,338 @@
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class benchmarks the data access methods of ProfNetwork and the
+ * operations behind the menu handlers against a running database, e.g.
+ * one loaded with a DataGenerator dataset by scripts/bench.sh.
+ *
+ * Every benchmark calls one operation in a loop on a sample of users,
+ * first for the warmup time, unmeasured, then for the measurement time.
+ * It reports throughput, latency percentiles, the bytes allocated per
+ * operation by the benchmark threads and the garbage collections during
+ * the measurement.  Handlers print to a session that discards its output
+ * and answers every prompt with "q".
+ *
+ * Usage: java ProfNetworkBench &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [benchmark ...]
+ * with the times in seconds set by the profnetwork.bench.warmup and
+ * .measure properties, the threads by .threads and the sampled users by
+ * .users and .seed.
+ */
+public class ProfNetworkBench {
+
+   // the connections of a user, run through each executeQuery variant.
+   static final String FRIENDS_SQL =
+      "SELECT connectionId FROM connection_usr WHERE userId = ?::bpchar AND status = 'Accept'";
+   static final String SAMPLE_SQL =
+      "SELECT userId, password FROM usr ORDER BY md5(userId || ?) LIMIT ?";
+
+   /**
+    * One benchmarked operation, called with a sampled user's login and
+    * password.
+    */
+   interface Operation {
+      void run (String userId, String password) throws Exception;
+   }//end Operation
+
+   /**
+    * What one benchmark measured.
+    */
+   static final class Result {
+      final String name;
+      final long ops;
+      final double seconds;
+      final long[] latencies;
+      final long allocated;
+      final long gcCount;
+      final long gcMillis;
+
+      Result (String name, long ops, double seconds, long[] latencies, long allocated, long gcCount, long gcMillis) {
+         this.name = name;
+         this.ops = ops;
+         this.seconds = seconds;
+         this.latencies = latencies;
+         this.allocated = allocated;
+         this.gcCount = gcCount;
+         this.gcMillis = gcMillis;
+      }
+
+      // the latency at a fraction of the sorted samples, in microseconds.
+      double percentile (double p) {
+         if (this.latencies.length == 0)
+            return 0;
+         int i = (int) Math.min(this.latencies.length - 1, Math.ceil(p * this.latencies.length) - 1);
+         return this.latencies[Math.max(0, i)] / 1000.0;
+      }
+
+      public String toString () {
+         return String.format("%-28s %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f %10s %5d %6d",
+                              this.name, this.ops / this.seconds,
+                              percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999),
+                              percentile(1.0),
+                              this.allocated < 0 ? "n/a" : String.valueOf(this.allocated / Math.max(1, this.ops)),
+                              this.gcCount, this.gcMillis);
+      }
+   }//end Result
+
+   static final String HEADER = String.format("%-28s %10s %9s %9s %9s %9s %9s %10s %5s %6s",
+                                              "benchmark", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us",
+                                              "max us", "B/op", "gcs", "gc ms");
+
+   // latencies kept per thread, operations past it are counted only.
+   static final int MAX_SAMPLES = 1 << 20;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " +
+            ProfNetworkBench.class.getName () +
+            " <dbname> <port> <user> [benchmark ...]");
+         return;
+      }//end if
+      int warmup = Integer.getInteger("profnetwork.bench.warmup", 5);
+      int measure = Integer.getInteger("profnetwork.bench.measure", 10);
+      int threads = Integer.getInteger("profnetwork.bench.threads", 1);
+      int sample = Integer.getInteger("profnetwork.bench.users", 1000);
+      String seed = System.getProperty("profnetwork.bench.seed", "1");
+      List<String> selected = Arrays.asList(args).subList(3, args.length);
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try{
+         List<List<String>> users = esql.executeQueryAndReturnResult(SAMPLE_SQL, seed, sample);
+         if (users.isEmpty()) {
+            System.err.println("no users to benchmark with, load a dataset first");
+            return;
+         }//end if
+         System.out.println(String.format("%d users sampled, %d s warmup, %d s measurement, %d threads",
+                                          users.size(), warmup, measure, threads));
+         System.out.println(HEADER);
+         for (Map.Entry<String, Operation> bench : benchmarks(esql).entrySet()) {
+            if (!selected.isEmpty() && !selected.contains(bench.getKey()))
+               continue;
+            run(bench.getKey(), bench.getValue(), users, threads, warmup);
+            System.out.println(run(bench.getKey(), bench.getValue(), users, threads, measure));
+         }//end for
+         System.out.println(esql.getStatementStats());
+         System.out.println(esql.getPoolStats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * The benchmarks by name, in the order they run.
+    */
+   static Map<String, Operation> benchmarks (final ProfNetwork esql) {
+      Map<String, Operation> benchmarks = new LinkedHashMap<String, Operation>();
+      benchmarks.put("executeQuery", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            esql.executeQuery(FRIENDS_SQL, userId);
+         }
+      });
+      benchmarks.put("executeQueryAndReturnResult", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            esql.executeQueryAndReturnResult(FRIENDS_SQL, userId);
+         }
+      });
+      benchmarks.put("executeQueryAndPrintResult", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            esql.executeQueryAndPrintResult(FRIENDS_SQL, userId);
+         }
+      });
+      benchmarks.put("LogIn", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            esql.executeQuery(StatementReplay.LOGIN_SQL, userId, password);
+         }
+      });
+      benchmarks.put("FriendList", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            ProfNetwork.FriendList(esql, userId);
+         }
+      });
+      benchmarks.put("displayUser", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            ProfNetwork.displayUser(esql, userId);
+         }
+      });
+      // displayUser past the profile cache.
+      benchmarks.put("Profile.load", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            Profile.load(esql, userId);
+         }
+      });
+      benchmarks.put("displayMessage", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            ProfNetwork.displayMessage(esql, userId);
+         }
+      });
+      // a word of the generated messages per user, full text against the
+      // ILIKE scan it replaces.
+      benchmarks.put("MessageSearch.search", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            new MessageSearch(esql, userId).search(searchWord(userId), 0, ProfNetwork.INBOX_PAGE);
+         }
+      });
+      benchmarks.put("MessageSearch.scan", new Operation(){
+         public void run (String userId, String password) throws Exception {
+            new MessageSearch(esql, userId).scan(searchWord(userId), 0, ProfNetwork.INBOX_PAGE);
+         }
+      });
+      return benchmarks;
+   }//end benchmarks
+
+   // words of DataGenerator.WORDS that are not English stop words.
+   static final String[] SEARCH_WORDS = { "meeting", "project", "lunch", "draft", "review", "congrats", "role" };
+
+   static String searchWord (String userId) {
+      return SEARCH_WORDS[(userId.hashCode() & Integer.MAX_VALUE) % SEARCH_WORDS.length];
+   }//end searchWord
+
+   /**
+    * Runs one operation on threads for a number of seconds, each thread
+    * going round the users from its own starting point.
+    */
+   static Result run (final String name, final Operation op, final List<List<String>> users, int threads, int seconds) throws InterruptedException {
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      final long[][] samples = new long[threads][];
+      final long[] ops = new long[threads];
+      final long[] allocated = new long[threads];
+      final Exception[] errors = new Exception[threads];
+      long gcCount = gcCount(), gcMillis = gcMillis();
+      long start = System.nanoTime();
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; ++t) {
+         final int id = t;
+         workers[t] = new Thread(new Runnable(){
+            public void run (){
+               ProfNetwork.bindSession(nullSession());
+               QueryStats.enter(name);
+               long[] latencies = new long[MAX_SAMPLES];
+               int user = id * users.size() / ops.length;
+               long count = 0;
+               long bytes = allocatedBytes();
+               try{
+                  long now = System.nanoTime();
+                  while (now < deadline) {
+                     List<String> login = users.get(user);
+                     op.run(login.get(0), login.get(1));
+                     long end = System.nanoTime();
+                     if (count < latencies.length)
+                        latencies[(int) count] = end - now;
+                     ++count;
+                     now = end;
+                     if (++user == users.size())
+                        user = 0;
+                  }//end while
+               }catch (Exception e){
+                  errors[id] = e;
+               }finally{
+                  QueryStats.exit(null);
+                  ProfNetwork.bindSession(null);
+               }//end try
+               long after = allocatedBytes();
+               allocated[id] = bytes < 0 || after < 0 ? -1 : after - bytes;
+               ops[id] = count;
+               samples[id] = Arrays.copyOf(latencies, (int) Math.min(count, latencies.length));
+            }
+         }, name + "-" + t);
+         workers[t].start();
+      }//end for
+      for (Thread worker : workers)
+         worker.join();
+      double elapsed = (System.nanoTime() - start) / 1e9;
+      for (Exception e : errors) {
+         if (e != null)
+            System.err.println(name + ": " + e.getMessage());
+      }//end for
+
+      long total = 0, bytes = 0;
+      int kept = 0;
+      for (int t = 0; t < threads; ++t) {
+         total += ops[t];
+         bytes = bytes < 0 || allocated[t] < 0 ? -1 : bytes + allocated[t];
+         kept += samples[t].length;
+      }//end for
+      long[] latencies = new long[kept];
+      kept = 0;
+      for (long[] s : samples) {
+         System.arraycopy(s, 0, latencies, kept, s.length);
+         kept += s.length;
+      }//end for
+      Arrays.sort(latencies);
+      return new Result(name, total, elapsed, latencies, bytes, gcCount() - gcCount, gcMillis() - gcMillis);
+   }//end run
+
+   // a session printing nowhere and leaving every prompt with "q".
+   static Session nullSession () {
+      PrintStream sink = new PrintStream(new OutputStream(){
+         public void write (int b) {}
+         public void write (byte[] b, int off, int len) {}
+      });
+      Reader quit = new Reader(){
+         private long _read = 0;
+         public int read (char[] buf, int off, int len) {
+            for (int i = 0; i < len; ++i)
+               buf[off + i] = (this._read++ & 1) == 0 ? 'q' : '\n';
+            return len;
+         }
+         public void close () {}
+      };
+      return new Session(new BufferedReader(quit), sink, sink);
+   }//end nullSession
+
+   // com.sun.management.ThreadMXBean is not on every JVM, so it is looked
+   // up once and the allocation reported as n/a without it.
+   private static final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+   private static final Method _allocatedBytes = allocatedBytesMethod();
+
+   private static Method allocatedBytesMethod () {
+      try{
+         Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+         if (!type.isInstance(_threads))
+            return null;
+         Method method = type.getMethod("getThreadAllocatedBytes", long.class);
+         type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(_threads, Boolean.TRUE);
+         return method;
+      }catch (Exception e){
+         return null;
+      }//end try
+   }//end allocatedBytesMethod
+
+   // bytes the current thread allocated so far, -1 if unknown.
+   static long allocatedBytes () {
+      if (_allocatedBytes == null)
+         return -1;
+      try{
+         return ((Long) _allocatedBytes.invoke(_threads, Thread.currentThread().getId())).longValue();
+      }catch (Exception e){
+         return -1;
+      }//end try
+   }//end allocatedBytes
+
+   static long gcCount () {
+      long count = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+         count += Math.max(0, gc.getCollectionCount());
+      return count;
+   }//end gcCount
+
+   static long gcMillis () {
+      long millis = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+         millis += Math.max(0, gc.getCollectionTime());
+      return millis;
+   }//end gcMillis
+
+}//end ProfNetworkBench
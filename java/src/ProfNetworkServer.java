@@ -0,0 +1,195 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves the ProfNetwork menus to many concurrent users over a
+ * local TCP line protocol: every line a client sends is one line of menu
+ * input and everything the menus print is sent back, so any line based
+ * client (e.g. nc localhost 4141) can be used.
+ *
+ * Each client session runs the MAIN MENU / user menu state machine on its
+ * own thread, a virtual thread when the JVM provides them, and all
+ * sessions share the connection pool of one ProfNetwork instance.
+ *
+ * Usage: java ProfNetworkServer <dbname> <port> <user> <listen port> [max sessions]
+ */
+public class ProfNetworkServer {
+   // platform thread stack size used when virtual threads are unavailable.
+   static final long SESSION_STACK_SIZE = 256 * 1024;
+
+   private final ProfNetwork _esql;
+   private final ServerSocket _server;
+   private final ExecutorService _sessions;
+   private final Semaphore _slots;
+   private final int _idleTimeoutMillis;
+   private final AtomicInteger _active = new AtomicInteger();
+   private final AtomicInteger _served = new AtomicInteger();
+
+   /**
+    * Creates a new server listening on the loopback interface
+    *
+    * @param esql the database access object shared by all sessions
+    * @param port the TCP port to listen on
+    * @param maxSessions the number of sessions served at the same time
+    * @param idleTimeoutMillis how long a session may wait for input, 0 for ever
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public ProfNetworkServer (ProfNetwork esql, int port, int maxSessions, int idleTimeoutMillis) throws IOException {
+      this._esql = esql;
+      this._server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+      this._sessions = newSessionExecutor();
+      this._slots = new Semaphore(maxSessions);
+      this._idleTimeoutMillis = idleTimeoutMillis;
+   }//end ProfNetworkServer
+
+   /**
+    * Method to accept clients until the server socket is closed.
+    */
+   public void serve () {
+      while (!this._server.isClosed()){
+         final Socket socket;
+         try{
+            socket = this._server.accept();
+         }catch (IOException e){
+            if (!this._server.isClosed())
+               System.err.println("accept failed: " + e.getMessage());
+            continue;
+         }//end try
+         if (!this._slots.tryAcquire()){
+            reject(socket);
+            continue;
+         }//end if
+         this._sessions.execute(new Runnable(){
+            public void run (){
+               try{
+                  handle(socket);
+               }finally{
+                  ProfNetworkServer.this._slots.release();
+               }//end try
+            }
+         });
+      }//end while
+   }//end serve
+
+   /**
+    * Runs the menus for one client until it logs off or disconnects.
+    *
+    * @param socket the client connection
+    */
+   void handle (Socket socket) {
+      this._active.incrementAndGet();
+      this._served.incrementAndGet();
+      try{
+         socket.setTcpNoDelay(true);
+         socket.setSoTimeout(this._idleTimeoutMillis);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+         PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8");
+         ProfNetwork.runSession(this._esql, new Session(in, out, out));
+      }catch (IOException e){
+         // client went away before the session started.
+      }finally{
+         this._active.decrementAndGet();
+         try{
+            socket.close();
+         }catch (IOException e){
+            // ignored.
+         }//end try
+      }//end try
+   }//end handle
+
+   private static void reject (Socket socket) {
+      try{
+         socket.getOutputStream().write("Server busy, try again later\n".getBytes("UTF-8"));
+         socket.close();
+      }catch (IOException e){
+         // ignored.
+      }//end try
+   }//end reject
+
+   /**
+    * Method to stop accepting clients and shut the session threads down.
+    */
+   public void close () {
+      try{
+         this._server.close();
+      }catch (IOException e){
+         // ignored.
+      }//end try
+      this._sessions.shutdownNow();
+   }//end close
+
+   public String toString () {
+      return String.format("sessions: %d active, %d served", this._active.get(), this._served.get());
+   }//end toString
+
+   /**
+    * Creates one thread per session: virtual threads on a JVM that has
+    * them, otherwise daemon platform threads with small stacks.  The lookup
+    * is reflective so the sources still build with the course JDK.
+    */
+   static ExecutorService newSessionExecutor () {
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (Exception e){
+         return Executors.newCachedThreadPool(new ThreadFactory(){
+            private final AtomicInteger _count = new AtomicInteger();
+            public Thread newThread (Runnable r){
+               Thread t = new Thread(null, r, "session-" + this._count.incrementAndGet(), SESSION_STACK_SIZE);
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }//end try
+   }//end newSessionExecutor
+
+   /**
+    * The server execution method
+    *
+    * @param args <dbname> <port> <user> <listen port> [max sessions]
+    */
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ProfNetworkServer.class.getName () +
+            " <dbname> <port> <user> <listen port> [max sessions]");
+         return;
+      }//end if
+      int maxSessions = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+
+      ProfNetwork esql = null;
+      try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new ProfNetwork (args[0], args[1], args[2], "");
+         esql.startCompaction();
+         final ProfNetworkServer server = new ProfNetworkServer(esql, Integer.parseInt(args[3]), maxSessions,
+            Integer.getInteger("profnetwork.server.idleTimeout", 30 * 60 * 1000));
+         Runtime.getRuntime().addShutdownHook(new Thread(){
+            public void run (){
+               server.close();
+            }
+         });
+         System.out.println("Serving up to " + maxSessions + " sessions on localhost:" + args[3]);
+         server.serve();
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+}//end ProfNetworkServer
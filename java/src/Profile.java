@@ -0,0 +1,202 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds a user's profile: the USR row with the user's work
+ * experience and education.  The three tables are read in one round trip
+ * by a single query returning each table's rows tagged with their part,
+ * so a user with many jobs and degrees costs one row per job and degree
+ * instead of one row per combination.
+ *
+ */
+public class Profile {
+
+   static final int USER = 0;
+   static final int WORK = 1;
+   static final int EDUCATION = 2;
+
+   static final String PROFILE_SQL =
+      "SELECT 0 AS part, userId::text AS a, email AS b, name::text AS c, dateOfBirth AS startdate, NULL::date AS enddate"
+      + " FROM usr WHERE userId = ?::bpchar"
+      + " UNION ALL SELECT 1, company::text, role::text, location::text, startDate, endDate"
+      + " FROM work_expr WHERE userId = ?::bpchar"
+      + " UNION ALL SELECT 2, instituitionName::text, major::text, degree::text, startdate, enddate"
+      + " FROM educational_details WHERE userId = ?::bpchar"
+      + " ORDER BY part, startdate DESC";
+
+   /**
+    * One row of WORK_EXPR.
+    */
+   public static class Work {
+      public final String company;
+      public final String role;
+      public final String location;
+      public final String startDate;
+      public final String endDate;
+
+      Work (String company, String role, String location, String startDate, String endDate) {
+         this.company = company;
+         this.role = role;
+         this.location = location;
+         this.startDate = startDate;
+         this.endDate = endDate;
+      }
+   }//end Work
+
+   /**
+    * One row of EDUCATIONAL_DETAILS.
+    */
+   public static class Education {
+      public final String institution;
+      public final String major;
+      public final String degree;
+      public final String startDate;
+      public final String endDate;
+
+      Education (String institution, String major, String degree, String startDate, String endDate) {
+         this.institution = institution;
+         this.major = major;
+         this.degree = degree;
+         this.startDate = startDate;
+         this.endDate = endDate;
+      }
+   }//end Education
+
+   public final String userId;
+   public final String email;
+   public final String name;
+   public final String dateOfBirth;
+   public final List<Work> work;
+   public final List<Education> education;
+   // when the profile was read, for the cache's time to live.
+   final long loadedAt;
+
+   Profile (String userId, String email, String name, String dateOfBirth, List<Work> work, List<Education> education) {
+      this.userId = userId;
+      this.email = email;
+      this.name = name;
+      this.dateOfBirth = dateOfBirth;
+      this.work = Collections.unmodifiableList(work);
+      this.education = Collections.unmodifiableList(education);
+      this.loadedAt = System.currentTimeMillis();
+   }//end Profile
+
+   /**
+    * Method to read a profile from the database.
+    *
+    * @param esql the database access object
+    * @param userId the user to read
+    * @return the profile, or null if there is no such user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static Profile load (ProfNetwork esql, String userId) throws SQLException {
+      ResultTable rows = esql.executePrimaryQueryAndReturnTable(PROFILE_SQL, userId, userId, userId);
+      if (rows.isEmpty() || rows.getInt(0, 0) != USER)
+         return null;
+      List<Work> work = new ArrayList<Work>();
+      List<Education> education = new ArrayList<Education>();
+      for (int i = 1; i < rows.getRowCount(); ++i){
+         ResultTable.Row row = rows.row(i);
+         if (row.getInt(0) == WORK)
+            work.add(new Work(row.getString(1), row.getString(2), row.getString(3), row.getString(4), row.getString(5)));
+         else
+            education.add(new Education(row.getString(1), row.getString(2), row.getString(3), row.getString(4), row.getString(5)));
+      }//end for
+      return new Profile(rows.getString(0, 1), rows.getString(0, 2), rows.getString(0, 3), rows.getString(0, 4), work, education);
+   }//end load
+
+   /**
+    * Method to print the profile as tab separated sections.
+    *
+    * @param out the buffer to print to
+    */
+   public void print (StringBuilder out) {
+      out.append("userid\temail\tname\tdateofbirth\t\n");
+      out.append(this.userId).append('\t').append(this.email).append('\t')
+         .append(this.name).append('\t').append(this.dateOfBirth).append("\t\n");
+      if (!this.work.isEmpty()){
+         out.append("\ncompany\trole\tlocation\tstartdate\tenddate\t\n");
+         for (Work w : this.work)
+            out.append(w.company).append('\t').append(w.role).append('\t').append(w.location).append('\t')
+               .append(w.startDate).append('\t').append(w.endDate).append("\t\n");
+      }//end if
+      if (!this.education.isEmpty()){
+         out.append("\ninstituitionname\tmajor\tdegree\tstartdate\tenddate\t\n");
+         for (Education e : this.education)
+            out.append(e.institution).append('\t').append(e.major).append('\t').append(e.degree).append('\t')
+               .append(e.startDate).append('\t').append(e.endDate).append("\t\n");
+      }//end if
+   }//end print
+
+   /**
+    * Least recently used cache of profiles with a time to live, so
+    * profiles changed by other processes show up within one interval.
+    * Changes made through this process invalidate the user's entry.
+    */
+   public static class Cache {
+      private final Map<String, Profile> _profiles;
+      private final long _ttlMillis;
+      private long _hits = 0;
+      private long _misses = 0;
+      // bumped by every invalidation, so a read racing one is not kept.
+      private long _generation = 0;
+
+      /**
+       * Creates a new cache
+       *
+       * @param capacity the number of profiles kept
+       * @param ttlMillis how long a profile is served, 0 for no limit
+       */
+      public Cache (final int capacity, long ttlMillis) {
+         this._ttlMillis = ttlMillis;
+         this._profiles = new LinkedHashMap<String, Profile>(16, 0.75f, true){
+            protected boolean removeEldestEntry (Map.Entry<String, Profile> eldest){
+               return size() > capacity;
+            }
+         };
+      }//end Cache
+
+      /**
+       * Method to fetch a profile, reading it on a miss.
+       *
+       * @param esql the database access object
+       * @param userId the user to fetch
+       * @return the profile, or null if there is no such user
+       * @throws java.sql.SQLException when failed to read the profile
+       */
+      public Profile get (ProfNetwork esql, String userId) throws SQLException {
+         long generation;
+         synchronized (this){
+            Profile profile = this._profiles.get(userId);
+            if (profile != null && (this._ttlMillis <= 0 || System.currentTimeMillis() - profile.loadedAt < this._ttlMillis)){
+               ++this._hits;
+               return profile;
+            }//end if
+            ++this._misses;
+            generation = this._generation;
+         }//end synchronized
+         Profile profile = Profile.load(esql, userId);
+         if (profile != null){
+            synchronized (this){
+               if (generation == this._generation)
+                  this._profiles.put(userId, profile);
+            }//end synchronized
+         }//end if
+         return profile;
+      }//end get
+
+      public synchronized void invalidate (String userId) {
+         ++this._generation;
+         this._profiles.remove(userId);
+      }//end invalidate
+
+      public synchronized String toString () {
+         return String.format("profiles: %d cached, %d hits, %d misses", this._profiles.size(), this._hits, this._misses);
+      }//end toString
+   }//end Cache
+
+}//end Profile
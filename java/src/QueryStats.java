@@ -0,0 +1,254 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class counts every statement ProfNetwork executes: its latency in
+ * a LatencyHistogram, and the calls, failures, rows and bytes fetched,
+ * once per SQL text and once per logical operation, the menu handler
+ * (LogIn, FriendList, ...) the thread is running.  Recording is a map
+ * lookup and a few atomic increments, without locks, so it can stay on
+ * in production.
+ *
+ * Statements slower than the threshold are appended to the slow query
+ * log with their operation, rows and bytes.  Only SQL texts are logged
+ * and counted: bound values never are, and literals in unparameterized
+ * SQL are replaced by '?', so the log holds no user data and literal
+ * statements share one entry.
+ *
+ */
+public class QueryStats {
+
+   // distinct SQL texts counted, later ones are counted as OTHER.
+   static final int MAX_STATEMENTS = 1000;
+   static final String OTHER = "(other statements)";
+   static final String NO_OPERATION = "(none)";
+
+   /**
+    * The counters of one SQL text or operation.
+    */
+   static final class Entry {
+      final String name;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+      final AtomicLong nanos = new AtomicLong();
+
+      Entry (String name) {
+         this.name = name;
+      }
+
+      void record (long elapsed, long rows, long bytes, boolean failed) {
+         this.latency.record(elapsed);
+         this.nanos.addAndGet(elapsed);
+         if (rows > 0)
+            this.rows.addAndGet(rows);
+         if (bytes > 0)
+            this.bytes.addAndGet(bytes);
+         if (failed)
+            this.errors.incrementAndGet();
+      }
+   }//end Entry
+
+   // the operation the current thread's statements belong to.
+   private static final ThreadLocal<String> _operation = new ThreadLocal<String>();
+
+   private final ConcurrentMap<String, Entry> _statements = new ConcurrentHashMap<String, Entry>();
+   private final ConcurrentMap<String, Entry> _operations = new ConcurrentHashMap<String, Entry>();
+   private final long _slowNanos;
+   private final String _slowLogFile;
+   private PrintStream _slowLog = null;
+
+   /**
+    * Creates new statistics
+    *
+    * @param slowMillis statements taking longer are logged, negative for none
+    * @param slowLogFile the file slow statements are appended to, opened on
+    *                    the first one
+    */
+   public QueryStats (long slowMillis, String slowLogFile) {
+      this._slowNanos = slowMillis < 0 ? Long.MAX_VALUE : slowMillis * 1000000L;
+      this._slowLogFile = slowLogFile;
+   }//end QueryStats
+
+   /**
+    * Method to name the operation the current thread runs from now on.
+    *
+    * @param operation the operation, e.g. the menu handler's name
+    * @return the operation it replaces, to be handed to exit
+    */
+   public static String enter (String operation) {
+      String previous = _operation.get();
+      _operation.set(operation);
+      return previous;
+   }//end enter
+
+   /**
+    * Method to read the operation the current thread runs, e.g. to hand it
+    * to a helper thread.
+    *
+    * @return the operation, null if none was entered
+    */
+   public static String current () {
+      return _operation.get();
+   }//end current
+
+   /**
+    * Method to go back to the operation enter replaced.
+    *
+    * @param previous what enter returned
+    */
+   public static void exit (String previous) {
+      if (previous == null)
+         _operation.remove();
+      else
+         _operation.set(previous);
+   }//end exit
+
+   /**
+    * Method to count one executed statement.
+    *
+    * @param sql the SQL text, with '?' placeholders or literals to strip
+    * @param literal true if the text may hold literal values
+    * @param start System.nanoTime() when the statement was issued
+    * @param rows rows returned or affected
+    * @param bytes bytes of values fetched
+    * @param failed true if the statement raised an error
+    */
+   public void record (String sql, boolean literal, long start, long rows, long bytes, boolean failed) {
+      long elapsed = System.nanoTime() - start;
+      String operation = _operation.get();
+      if (operation == null)
+         operation = NO_OPERATION;
+      if (literal)
+         sql = strip(sql);
+      entry(this._statements, sql).record(elapsed, rows, bytes, failed);
+      entry(this._operations, operation).record(elapsed, rows, bytes, failed);
+      if (elapsed >= this._slowNanos)
+         logSlow(operation, sql, elapsed, rows, bytes, failed);
+   }//end record
+
+   private Entry entry (ConcurrentMap<String, Entry> entries, String name) {
+      Entry entry = entries.get(name);
+      if (entry != null)
+         return entry;
+      if (entries.size() >= MAX_STATEMENTS)
+         name = OTHER;
+      entry = new Entry(name);
+      Entry raced = entries.putIfAbsent(name, entry);
+      return raced == null ? entry : raced;
+   }//end entry
+
+   private synchronized void logSlow (String operation, String sql, long elapsed, long rows, long bytes, boolean failed) {
+      try{
+         if (this._slowLog == null)
+            this._slowLog = new PrintStream(new FileOutputStream(this._slowLogFile, true), true);
+      }catch (IOException e){
+         return;
+      }//end try
+      this._slowLog.println(String.format("%s\t%.3f ms\t%s\t%d rows\t%d bytes%s\t%s",
+                                          new Timestamp(System.currentTimeMillis()), elapsed / 1e6, operation,
+                                          rows, bytes, failed ? "\tfailed" : "", sql.replaceAll("\\s+", " ")));
+   }//end logSlow
+
+   /**
+    * Method to sum the calls and time of every operation but one, e.g. to
+    * watch the foreground latency from a background job.
+    *
+    * @param excluded the operation left out, e.g. the job's own
+    * @return the calls and the nanoseconds spent in them
+    */
+   public long[] totals (String excluded) {
+      long calls = 0, nanos = 0;
+      for (Entry e : this._operations.values()) {
+         if (e.name.equals(excluded))
+            continue;
+         calls += e.latency.count();
+         nanos += e.nanos.get();
+      }//end for
+      return new long[]{ calls, nanos };
+   }//end totals
+
+   /**
+    * Method to forget the counts so far, e.g. after a warmup.
+    */
+   public void reset () {
+      this._statements.clear();
+      this._operations.clear();
+   }//end reset
+
+   /**
+    * Method to format the counts per operation and per statement, the
+    * ones that took the most time in total first.
+    *
+    * @return the statistics as tab separated tables
+    */
+   public String dump () {
+      StringBuilder out = new StringBuilder();
+      dump(out, "operation", this._operations);
+      out.append('\n');
+      dump(out, "statement", this._statements);
+      return out.toString();
+   }//end dump
+
+   private static void dump (StringBuilder out, String kind, ConcurrentMap<String, Entry> entries) {
+      List<Entry> sorted = new ArrayList<Entry>(entries.values());
+      Collections.sort(sorted, new Comparator<Entry>(){
+         public int compare (Entry a, Entry b) {
+            long x = a.nanos.get(), y = b.nanos.get();
+            return x < y ? 1 : x > y ? -1 : 0;
+         }
+      });
+      out.append("calls\terrors\ttotal ms\tmean ms\tp50 ms\tp99 ms\tmax ms\trows/call\tbytes/call\t").append(kind).append('\n');
+      for (Entry e : sorted) {
+         long calls = Math.max(1, e.latency.count());
+         out.append(String.format("%d\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%.3f\t%.1f\t%.0f\t%s\n",
+                                  e.latency.count(), e.errors.get(), e.nanos.get() / 1e6, e.latency.mean() / 1e6,
+                                  e.latency.percentile(0.5) / 1e6, e.latency.percentile(0.99) / 1e6, e.latency.max() / 1e6,
+                                  (double) e.rows.get() / calls, (double) e.bytes.get() / calls,
+                                  e.name.replaceAll("\\s+", " ")));
+      }//end for
+   }//end dump
+
+   /**
+    * Replaces the quoted strings and numbers of an SQL text by '?'.
+    *
+    * @param sql the SQL text
+    * @return the text without its literal values
+    */
+   static String strip (String sql) {
+      StringBuilder out = new StringBuilder(sql.length());
+      int n = sql.length();
+      for (int i = 0; i < n; ++i) {
+         char c = sql.charAt(i);
+         if (c == '\'') {
+            // skip to the closing quote, '' being a quote inside.
+            for (++i; i < n; ++i) {
+               if (sql.charAt(i) != '\'')
+                  continue;
+               if (i + 1 < n && sql.charAt(i + 1) == '\'')
+                  ++i;
+               else
+                  break;
+            }//end for
+            out.append('?');
+         }else if (Character.isDigit(c) && (out.length() == 0 || !Character.isLetterOrDigit(out.charAt(out.length() - 1)) && out.charAt(out.length() - 1) != '_')) {
+            while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+               ++i;
+            out.append('?');
+         }else
+            out.append(c);
+      }//end for
+      return out.toString();
+   }//end strip
+
+}//end QueryStats
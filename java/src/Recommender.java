@@ -0,0 +1,366 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class ranks "people you may know" for a user: friends of friends
+ * who are not connections yet, scored by the number of mutual connections
+ * plus shared companies from WORK_EXPR and shared institutions and majors
+ * from EDUCATIONAL_DETAILS.
+ *
+ * Mutual connections are counted over the in-memory SocialGraph with a
+ * fork-join task per slice of the user's friends.  Ranked lists are
+ * cached per user and dropped when a connection of the user or of one of
+ * their friends changes.
+ *
+ */
+public class Recommender implements SocialGraph.Listener {
+
+   /**
+    * One ranked suggestion.
+    */
+   public static class Recommendation {
+      public final String userId;
+      public final int mutual;
+      public final int sharedCompanies;
+      public final int sharedInstitutions;
+      public final int sharedMajors;
+      public final double score;
+
+      Recommendation (String userId, int mutual, int sharedCompanies, int sharedInstitutions, int sharedMajors) {
+         this.userId = userId;
+         this.mutual = mutual;
+         this.sharedCompanies = sharedCompanies;
+         this.sharedInstitutions = sharedInstitutions;
+         this.sharedMajors = sharedMajors;
+         this.score = mutual + COMPANY_WEIGHT * sharedCompanies
+                      + INSTITUTION_WEIGHT * sharedInstitutions + MAJOR_WEIGHT * sharedMajors;
+      }
+   }//end Recommendation
+
+   static final double COMPANY_WEIGHT = 2.0;
+   static final double INSTITUTION_WEIGHT = 1.0;
+   static final double MAJOR_WEIGHT = 0.5;
+
+   // friends counted by one fork-join leaf.
+   static final int LEAF_FRIENDS = 32;
+
+   static final ForkJoinPool POOL = new ForkJoinPool();
+
+   private final ProfNetwork _esql;
+   private final SocialGraph _graph;
+   // ranked suggestions per user id.
+   private final ConcurrentHashMap<String, List<Recommendation>> _cache
+      = new ConcurrentHashMap<String, List<Recommendation>>();
+   // user id to {companies, institutions, majors}, each sorted attribute codes.
+   private volatile Map<String, int[][]> _attributes = null;
+   private final HashMap<String, Integer> _attributeCodes = new HashMap<String, Integer>();
+
+   /**
+    * Creates a new recommender and registers it with the graph
+    *
+    * @param esql the database access object
+    * @param graph the graph of accepted connections
+    */
+   public Recommender (ProfNetwork esql, SocialGraph graph) {
+      this._esql = esql;
+      this._graph = graph;
+      graph.addListener(this);
+   }//end Recommender
+
+   /**
+    * Method to fetch the top k suggestions for a user, from the cache when
+    * nothing relevant changed since they were ranked.
+    *
+    * @param userId the user
+    * @param k the number of suggestions wanted
+    * @return at most k suggestions, best first
+    * @throws java.sql.SQLException when failed to load profile attributes
+    */
+   public List<Recommendation> recommend (String userId, int k) throws SQLException {
+      List<Recommendation> ranked = this._cache.get(userId);
+      if (ranked == null || (ranked.size() < k && ranked.size() == CACHED_K)){
+         ranked = rank(userId, Math.max(k, CACHED_K));
+         this._cache.put(userId, ranked);
+      }//end if
+      return ranked.size() <= k ? ranked : ranked.subList(0, k);
+   }//end recommend
+
+   // suggestions kept per cached user.
+   static final int CACHED_K = 20;
+
+   /**
+    * Ranks the friends of friends of a user.
+    */
+   List<Recommendation> rank (String userId, int k) throws SQLException {
+      Map<String, int[][]> attributes = attributes();
+      while (true){
+         long version = this._graph.version();
+         int self = this._graph.code(userId);
+         if (self < 0)
+            return Collections.emptyList();
+         int[] friends = this._graph.friendCodes(self);
+         IntCounter mutual = POOL.invoke(new CountTask(this._graph, friends, 0, friends.length));
+
+         int[][] own = attributes.get(userId);
+         PriorityQueue<Recommendation> top = new PriorityQueue<Recommendation>(k + 1, WORST_FIRST);
+         for (int slot = 0; slot < mutual.keys.length; ++slot){
+            int candidate = mutual.keys[slot];
+            if (candidate == IntCounter.EMPTY || candidate == self
+                || Arrays.binarySearch(friends, candidate) >= 0)
+               continue;
+            String name = this._graph.name(candidate);
+            int[][] theirs = attributes.get(name);
+            Recommendation r = new Recommendation(name, mutual.counts[slot],
+                                                  shared(own, theirs, 0), shared(own, theirs, 1), shared(own, theirs, 2));
+            top.add(r);
+            if (top.size() > k)
+               top.poll();
+         }//end for
+         // a reload renumbered the users while ranking, rank again.
+         if (version != this._graph.version())
+            continue;
+         List<Recommendation> ranked = new ArrayList<Recommendation>(top);
+         Collections.sort(ranked, Collections.reverseOrder(WORST_FIRST));
+         return Collections.unmodifiableList(ranked);
+      }//end while
+   }//end rank
+
+   static final java.util.Comparator<Recommendation> WORST_FIRST = new java.util.Comparator<Recommendation>(){
+      public int compare (Recommendation a, Recommendation b){
+         if (a.score != b.score)
+            return a.score < b.score ? -1 : 1;
+         // equal scores: the alphabetically later user id ranks lower.
+         return b.userId.compareTo(a.userId);
+      }
+   };
+
+   /**
+    * Counts, for every friend of a friend, through how many friends it was
+    * reached.
+    */
+   static class CountTask extends RecursiveTask<IntCounter> {
+      private static final long serialVersionUID = 1L;
+
+      private final SocialGraph _graph;
+      private final int[] _friends;
+      private final int _lo;
+      private final int _hi;
+
+      CountTask (SocialGraph graph, int[] friends, int lo, int hi) {
+         this._graph = graph;
+         this._friends = friends;
+         this._lo = lo;
+         this._hi = hi;
+      }
+
+      protected IntCounter compute () {
+         if (this._hi - this._lo <= LEAF_FRIENDS){
+            IntCounter counter = new IntCounter(64);
+            for (int i = this._lo; i < this._hi; ++i)
+               for (int candidate : this._graph.friendCodes(this._friends[i]))
+                  counter.add(candidate, 1);
+            return counter;
+         }//end if
+         int mid = (this._lo + this._hi) >>> 1;
+         CountTask left = new CountTask(this._graph, this._friends, this._lo, mid);
+         left.fork();
+         IntCounter right = new CountTask(this._graph, this._friends, mid, this._hi).compute();
+         IntCounter merged = left.join();
+         merged.addAll(right);
+         return merged;
+      }
+   }//end CountTask
+
+   /**
+    * Open addressing map from int keys to int counts.
+    */
+   static final class IntCounter {
+      static final int EMPTY = -1;
+      int[] keys;
+      int[] counts;
+      int size = 0;
+
+      IntCounter (int capacity) {
+         int n = 16;
+         while (n < capacity * 2)
+            n <<= 1;
+         this.keys = new int[n];
+         this.counts = new int[n];
+         Arrays.fill(this.keys, EMPTY);
+      }
+
+      void add (int key, int count) {
+         int mask = this.keys.length - 1;
+         // folds the high half in, so tables past 64k slots spread too.
+         int h = key * 0x9E3779B9;
+         int slot = (h ^ (h >>> 16)) & mask;
+         while (this.keys[slot] != EMPTY && this.keys[slot] != key)
+            slot = (slot + 1) & mask;
+         if (this.keys[slot] == EMPTY){
+            this.keys[slot] = key;
+            if (++this.size * 2 > this.keys.length){
+               this.counts[slot] = count;
+               grow();
+               return;
+            }//end if
+         }//end if
+         this.counts[slot] += count;
+      }
+
+      void addAll (IntCounter other) {
+         for (int slot = 0; slot < other.keys.length; ++slot)
+            if (other.keys[slot] != EMPTY)
+               add(other.keys[slot], other.counts[slot]);
+      }
+
+      private void grow () {
+         int[] oldKeys = this.keys;
+         int[] oldCounts = this.counts;
+         this.keys = new int[oldKeys.length * 2];
+         this.counts = new int[oldKeys.length * 2];
+         Arrays.fill(this.keys, EMPTY);
+         this.size = 0;
+         for (int slot = 0; slot < oldKeys.length; ++slot)
+            if (oldKeys[slot] != EMPTY)
+               add(oldKeys[slot], oldCounts[slot]);
+      }
+   }//end IntCounter
+
+   /**
+    * Method to refresh the companies, institutions and majors of one user
+    * after they changed their profile.
+    *
+    * @param userId the user whose profile changed
+    * @throws java.sql.SQLException when failed to read the profile
+    */
+   public void profileChanged (String userId) throws SQLException {
+      Map<String, int[][]> attributes = this._attributes;
+      if (attributes == null)
+         return;
+      HashMap<String, List<List<Integer>>> fresh = new HashMap<String, List<List<Integer>>>();
+      collect(fresh, this._esql.executePrimaryQueryAndReturnTable(
+         "SELECT userId, company FROM work_expr WHERE userId = ?::bpchar", userId), 0);
+      collect(fresh, this._esql.executePrimaryQueryAndReturnTable(
+         "SELECT userId, instituitionName, major FROM educational_details WHERE userId = ?::bpchar", userId), 1);
+      List<List<Integer>> lists = fresh.get(userId);
+      if (lists != null)
+         attributes.put(userId, toArrays(lists));
+      // this user's own list depends on their profile, the others are
+      // re-ranked when they expire from their own changes.
+      this._cache.remove(userId);
+   }//end profileChanged
+
+   public void connectionChanged (String userId, String connectionId) {
+      // both ends gained or lost a friend, their friends gained or lost a
+      // friend of a friend.
+      invalidateAround(userId);
+      invalidateAround(connectionId);
+   }//end connectionChanged
+
+   public void reloaded () {
+      this._cache.clear();
+   }//end reloaded
+
+   private void invalidateAround (String userId) {
+      this._cache.remove(userId);
+      int code = this._graph.code(userId);
+      if (code < 0)
+         return;
+      for (int friend : this._graph.friendCodes(code))
+         this._cache.remove(this._graph.name(friend));
+   }//end invalidateAround
+
+   // loads the attributes of every user on first use.
+   private Map<String, int[][]> attributes () throws SQLException {
+      Map<String, int[][]> attributes = this._attributes;
+      if (attributes != null)
+         return attributes;
+      synchronized (this){
+         if (this._attributes == null){
+            HashMap<String, List<List<Integer>>> lists = new HashMap<String, List<List<Integer>>>();
+            collect(lists, this._esql.executePrimaryQueryAndReturnTable("SELECT userId, company FROM work_expr"), 0);
+            collect(lists, this._esql.executePrimaryQueryAndReturnTable(
+               "SELECT userId, instituitionName, major FROM educational_details"), 1);
+            ConcurrentHashMap<String, int[][]> loaded = new ConcurrentHashMap<String, int[][]>();
+            for (Map.Entry<String, List<List<Integer>>> entry : lists.entrySet())
+               loaded.put(entry.getKey(), toArrays(entry.getValue()));
+            this._attributes = loaded;
+         }//end if
+         return this._attributes;
+      }//end synchronized
+   }//end attributes
+
+   // adds the attribute columns of each row, starting at attribute kind first.
+   private void collect (Map<String, List<List<Integer>>> lists, ResultTable rows, int first) {
+      synchronized (this._attributeCodes){
+         for (int row = 0; row < rows.getRowCount(); ++row){
+            String userId = rows.getString(row, 0);
+            List<List<Integer>> user = lists.get(userId);
+            if (user == null){
+               user = new ArrayList<List<Integer>>();
+               for (int kind = 0; kind < 3; ++kind)
+                  user.add(new ArrayList<Integer>());
+               lists.put(userId, user);
+            }//end if
+            for (int col = 1; col < rows.getColumnCount(); ++col){
+               String value = rows.getString(row, col);
+               if (value == null)
+                  continue;
+               String key = (first + col - 1) + ":" + value.toLowerCase();
+               Integer code = this._attributeCodes.get(key);
+               if (code == null){
+                  code = Integer.valueOf(this._attributeCodes.size());
+                  this._attributeCodes.put(key, code);
+               }//end if
+               user.get(first + col - 1).add(code);
+            }//end for
+         }//end for
+      }//end synchronized
+   }//end collect
+
+   private static int[][] toArrays (List<List<Integer>> lists) {
+      int[][] arrays = new int[lists.size()][];
+      for (int kind = 0; kind < arrays.length; ++kind){
+         List<Integer> list = lists.get(kind);
+         int[] codes = new int[list.size()];
+         for (int i = 0; i < codes.length; ++i)
+            codes[i] = list.get(i).intValue();
+         Arrays.sort(codes);
+         arrays[kind] = codes;
+      }//end for
+      return arrays;
+   }//end toArrays
+
+   // counts distinct codes of one attribute kind found in both profiles.
+   static int shared (int[][] a, int[][] b, int kind) {
+      if (a == null || b == null)
+         return 0;
+      int[] x = a[kind];
+      int[] y = b[kind];
+      int i = 0, j = 0, count = 0, last = -1;
+      while (i < x.length && j < y.length){
+         if (x[i] < y[j])
+            ++i;
+         else if (x[i] > y[j])
+            ++j;
+         else{
+            if (x[i] != last)
+               ++count;
+            last = x[i];
+            ++i;
+            ++j;
+         }//end if
+      }//end while
+      return count;
+   }//end shared
+
+}//end Recommender
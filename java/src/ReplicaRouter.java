@@ -0,0 +1,206 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends reads to streaming replicas and everything else to the
+ * primary.  Each database has its own ConnectionPool; read-only
+ * statements take a connection from the healthy replicas in turn, while
+ * writes, transactions and statements calling nextval or setval or
+ * locking rows stay on the primary.
+ *
+ * A replica can lag behind, so a session that wrote within the pin
+ * window reads from the primary and sees its own new message or
+ * accepted request.  The caches every session shares (profiles, the
+ * social graph, the people index, counters) are filled on the primary
+ * instead, through executePrimaryQueryAndReturnTable, so a session that
+ * did not write cannot cache a row another session just changed.
+ * Replicas are checked in the background and skipped
+ * while a check or a borrow fails; reads go to the primary when no
+ * replica is healthy.
+ *
+ * To try it locally start a second instance as a standby of the first,
+ * e.g. with pg_basebackup -R on port 5433, and run with
+ * -Dprofnetwork.replicas=localhost:5433.
+ *
+ */
+public class ReplicaRouter {
+
+   public static final long DEFAULT_PIN_MILLIS = 2000;
+   public static final long DEFAULT_CHECK_MILLIS = 5000;
+
+   // reading functions that still write, or lock rows, on the primary only.
+   static final String[] WRITING = { "nextval(", "setval(", " for update", " for share" };
+
+   /**
+    * One replica, its pool and whether it answered its last check.
+    */
+   static final class Replica {
+      final String name;
+      final ConnectionPool pool;
+      volatile boolean healthy = true;
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+
+      Replica (String name, ConnectionPool pool) {
+         this.name = name;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   private final ConnectionPool _primary;
+   private final Replica[] _replicas;
+   private final long _pinMillis;
+   private final AtomicInteger _next = new AtomicInteger();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final AtomicLong _pinnedReads = new AtomicLong();
+   private final ScheduledExecutorService _checker;
+   private volatile boolean _primaryOnly = false;
+
+   /**
+    * Creates a new router and starts checking the replicas
+    *
+    * @param primary the pool of the primary database
+    * @param names the replicas' host:port, for the statistics
+    * @param replicas the pools of the replicas, in the same order
+    * @param pinMillis how long a session reads from the primary after a write
+    * @param checkMillis time between two checks of the replicas
+    */
+   public ReplicaRouter (ConnectionPool primary, List<String> names, List<ConnectionPool> replicas, long pinMillis, long checkMillis) {
+      this._primary = primary;
+      this._replicas = new Replica[replicas.size()];
+      for (int i = 0; i < this._replicas.length; ++i)
+         this._replicas[i] = new Replica(names.get(i), replicas.get(i));
+      this._pinMillis = pinMillis;
+      this._checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+         public Thread newThread (Runnable r){
+            Thread t = new Thread(r, "ReplicaRouter-checker");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._checker.scheduleWithFixedDelay(new Runnable(){
+         public void run (){
+            check();
+         }
+      }, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   /**
+    * Method to borrow a connection for a query: from the next healthy
+    * replica if the query only reads and the session has not written
+    * lately, from the primary otherwise.  The connection goes back
+    * through its own pool, pc.getPool().
+    *
+    * @param sql the query about to run
+    * @param session the session running it
+    * @return a borrowed connection
+    * @throws java.sql.SQLException when the primary has no connection either
+    */
+   public ConnectionPool.PooledConnection borrowForRead (String sql, Session session) throws SQLException {
+      if (this._primaryOnly || !isReadOnly(sql)){
+         this._primaryReads.incrementAndGet();
+         return this._primary.borrow();
+      }//end if
+      if (System.currentTimeMillis() - session.getLastWrite() < this._pinMillis){
+         this._pinnedReads.incrementAndGet();
+         return this._primary.borrow();
+      }//end if
+      int start = this._next.getAndIncrement();
+      for (int i = 0; i < this._replicas.length; ++i){
+         Replica replica = this._replicas[((start + i) % this._replicas.length + this._replicas.length) % this._replicas.length];
+         if (!replica.healthy)
+            continue;
+         try{
+            ConnectionPool.PooledConnection pc = replica.pool.borrow();
+            replica.reads.incrementAndGet();
+            return pc;
+         }catch (SQLException e){
+            // down or saturated, skip it until the next check passes.
+            replica.failures.incrementAndGet();
+            replica.healthy = false;
+         }//end try
+      }//end for
+      this._primaryReads.incrementAndGet();
+      return this._primary.borrow();
+   }//end borrowForRead
+
+   /**
+    * Method to send every read to the primary, e.g. while bulk loading.
+    */
+   public void setPrimaryOnly (boolean primaryOnly) {
+      this._primaryOnly = primaryOnly;
+   }//end setPrimaryOnly
+
+   /**
+    * Tells whether a statement can run on a replica: a SELECT that
+    * neither calls a sequence function nor locks rows.
+    */
+   static boolean isReadOnly (String sql) {
+      int start = 0;
+      while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '('))
+         ++start;
+      if (!sql.regionMatches(true, start, "select", 0, 6))
+         return false;
+      for (String writing : WRITING){
+         for (int i = start; i + writing.length() <= sql.length(); ++i){
+            if (sql.regionMatches(true, i, writing, 0, writing.length()))
+               return false;
+         }//end for
+      }//end for
+      return true;
+   }//end isReadOnly
+
+   // marks each replica healthy if a borrowed connection answers a query.
+   void check () {
+      for (Replica replica : this._replicas){
+         ConnectionPool.PooledConnection pc = null;
+         boolean failed = true;
+         try{
+            pc = replica.pool.borrow();
+            Statement stmt = pc.getConnection().createStatement();
+            try{
+               ResultSet rs = stmt.executeQuery("SELECT 1");
+               failed = !rs.next();
+            }finally{
+               stmt.close();
+            }//end try
+         }catch (SQLException e){
+            failed = true;
+         }finally{
+            replica.pool.release(pc, failed);
+         }//end try
+         if (failed && replica.healthy)
+            replica.failures.incrementAndGet();
+         replica.healthy = !failed;
+      }//end for
+   }//end check
+
+   /**
+    * Method to stop the checks and close the replicas' pools.  The
+    * primary's pool is left to its owner.
+    */
+   public void close () {
+      this._checker.shutdownNow();
+      for (Replica replica : this._replicas)
+         replica.pool.close();
+   }//end close
+
+   public String toString () {
+      StringBuilder out = new StringBuilder(String.format("routing: %d reads on the primary, %d pinned after a write",
+                                                          this._primaryReads.get(), this._pinnedReads.get()));
+      for (Replica replica : this._replicas)
+         out.append(String.format("\nreplica %s: %s, %d reads, %d failures, %s", replica.name,
+                                  replica.healthy ? "healthy" : "down", replica.reads.get(),
+                                  replica.failures.get(), replica.pool));
+      return out.toString();
+   }//end toString
+
+}//end ReplicaRouter
@@ -0,0 +1,101 @@
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class compares the heap retained by a query result held as
+ * List&lt;List&lt;String&gt;&gt;, as executeQueryAndReturnResult builds it, with the
+ * same result held in a ResultTable.  It needs no database: the rows are
+ * shaped like MESSAGE rows as the driver returns them, with char(n)
+ * values blank padded to their declared length.
+ *
+ * Usage: java ResultFootprint [rows] [distinct users]
+ */
+public class ResultFootprint {
+   static final String[] NAMES = { "msgid", "senderid", "receiverid", "contents", "sendtime", "deletestatus", "status" };
+   static final int[] TYPES = { Types.INTEGER, Types.CHAR, Types.CHAR, Types.CHAR, Types.TIMESTAMP, Types.INTEGER, Types.CHAR };
+
+   public static void main (String[] args) {
+      int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+      int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+      long base = usedHeap();
+      List<List<String>> records = buildRecords(rows, users);
+      long recordBytes = usedHeap() - base;
+      check(records.size() == rows);
+      records = null;
+
+      base = usedHeap();
+      ResultTable table = buildTable(rows, users);
+      long tableBytes = usedHeap() - base;
+      check(table.getRowCount() == rows);
+
+      System.out.println(String.format("%d rows, %d distinct users", rows, users));
+      System.out.println(String.format("List<List<String>>: %,14d bytes (%6.1f bytes/row)", recordBytes, (double) recordBytes / rows));
+      System.out.println(String.format("ResultTable:        %,14d bytes (%6.1f bytes/row)", tableBytes, (double) tableBytes / rows));
+      System.out.println(String.format("ratio: %.1fx smaller", (double) recordBytes / Math.max(1L, tableBytes)));
+   }//end main
+
+   static List<List<String>> buildRecords (int rows, int users) {
+      Random random = new Random(42);
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (int i = 0; i < rows; ++i){
+         Object[] row = row(random, i, users);
+         List<String> record = new ArrayList<String>();
+         for (Object value : row)
+            record.add(value.toString());
+         result.add(record);
+      }//end for
+      return result;
+   }//end buildRecords
+
+   static ResultTable buildTable (int rows, int users) {
+      Random random = new Random(42);
+      ResultTable table = new ResultTable(NAMES, TYPES);
+      for (int i = 0; i < rows; ++i)
+         table.addRow(row(random, i, users));
+      table.trim();
+      return table;
+   }//end buildTable
+
+   // a MESSAGE row with values padded the way char(n) columns come back.
+   static Object[] row (Random random, int i, int users) {
+      return new Object[]{
+         Integer.valueOf(50000 + i),
+         pad("User_" + random.nextInt(users), 50),
+         pad("User_" + random.nextInt(users), 50),
+         pad("Message " + i + " " + Long.toHexString(random.nextLong()), 500),
+         new Timestamp(1433548800000L + i * 1000L),
+         Integer.valueOf(random.nextInt(4)),
+         pad("Sent", 30)
+      };
+   }//end row
+
+   static String pad (String s, int length) {
+      StringBuilder sb = new StringBuilder(length).append(s);
+      while (sb.length() < length)
+         sb.append(' ');
+      return sb.toString();
+   }//end pad
+
+   static long usedHeap () {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 4; ++i){
+         System.gc();
+         try{
+            Thread.sleep(50);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end for
+      return runtime.totalMemory() - runtime.freeMemory();
+   }//end usedHeap
+
+   static void check (boolean condition) {
+      if (!condition)
+         throw new IllegalStateException("unexpected row count");
+   }//end check
+
+}//end ResultFootprint
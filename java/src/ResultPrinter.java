@@ -0,0 +1,80 @@
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * This class formats query results as tab separated lines, preceded by a
+ * header line with the column names once the first row arrives.  Rows are
+ * formatted into one reusable buffer and written to the output stream one
+ * page at a time, so printing costs one write per page instead of one per
+ * cell.
+ *
+ */
+public class ResultPrinter {
+   // flush early if a single page grows past this many characters.
+   static final int MAX_BUFFER = 64 * 1024;
+
+   private final PrintStream _out;
+   private final StringBuilder _buffer = new StringBuilder(8 * 1024);
+   private int _numCol = -1;
+   private boolean _outputHeader = true;
+   private int _rowCount = 0;
+   private long _charCount = 0;
+
+   /**
+    * Creates a new printer
+    *
+    * @param out the stream pages are written to
+    */
+   public ResultPrinter (PrintStream out) {
+      this._out = out;
+   }//end ResultPrinter
+
+   /**
+    * Method to format every row of a result set and write them out as one
+    * page.  The column layout is read from the first page only.
+    *
+    * @param rs the result set holding the page
+    * @return the number of rows in the page
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   public int printPage (ResultSet rs) throws SQLException {
+      int rows = 0;
+      while (rs.next()){
+         if (this._outputHeader){
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            this._numCol = rsmd.getColumnCount ();
+            for (int i = 1; i <= this._numCol; ++i)
+               this._buffer.append(rsmd.getColumnName(i)).append('\t');
+            this._buffer.append('\n');
+            this._outputHeader = false;
+         }//end if
+         for (int i = 1; i <= this._numCol; ++i)
+            this._buffer.append(rs.getString(i)).append('\t');
+         this._buffer.append('\n');
+         ++rows;
+         if (this._buffer.length() >= MAX_BUFFER)
+            flush();
+      }//end while
+      this._rowCount += rows;
+      flush();
+      return rows;
+   }//end printPage
+
+   /**
+    * Method to write out any buffered rows.
+    */
+   public void flush () {
+      if (this._buffer.length() > 0){
+         this._charCount += this._buffer.length();
+         this._out.print(this._buffer);
+         this._buffer.setLength(0);
+      }//end if
+      this._out.flush();
+   }//end flush
+
+   public int getRowCount () { return this._rowCount; }
+   public long getCharCount () { return this._charCount; }
+
+}//end ResultPrinter
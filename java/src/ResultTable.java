@@ -0,0 +1,402 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * This class holds a query result column by column.  Integer columns are
+ * kept in int or long arrays, dates as epoch days in an int array and
+ * timestamps as epoch microseconds in a long array.  char(n) columns are
+ * trimmed of their blank padding and dictionary encoded, which suits the
+ * repeated user ids and status values of this schema; other strings are
+ * kept as they are.
+ *
+ * Values are read in place through getInt/getLong/getString or through a
+ * movable Row view, without building a record per row.
+ *
+ */
+public class ResultTable {
+
+   /**
+    * A view of one row of the table.  The view copies nothing, it only
+    * remembers the row index it points at and can be moved.
+    */
+   public class Row {
+      private int _row;
+
+      Row (int row) { this._row = row; }
+
+      public Row moveTo (int row) {
+         checkRow(row);
+         this._row = row;
+         return this;
+      }
+      public int index () { return this._row; }
+      public boolean isNull (int col) { return ResultTable.this.isNull(this._row, col); }
+      public int getInt (int col) { return ResultTable.this.getInt(this._row, col); }
+      public long getLong (int col) { return ResultTable.this.getLong(this._row, col); }
+      public String getString (int col) { return ResultTable.this.getString(this._row, col); }
+      public String toString () { return ResultTable.this.rowToString(this._row); }
+   }//end Row
+
+   /**
+    * Storage of one column.  Rows are appended in order.
+    */
+   static abstract class Column {
+      final BitSet nulls = new BitSet();
+
+      abstract void read (ResultSet rs, int i, int row) throws SQLException;
+      abstract void add (Object value, int row);
+      abstract long getLong (int row);
+      abstract String getString (int row);
+      abstract void trim (int rows);
+      abstract long byteSize (int rows);
+   }//end Column
+
+   static final class IntColumn extends Column {
+      int[] values = new int[16];
+
+      void read (ResultSet rs, int i, int row) throws SQLException {
+         set(row, rs.getInt(i), rs.wasNull());
+      }
+      void add (Object value, int row) {
+         set(row, value == null ? 0 : ((Number) value).intValue(), value == null);
+      }
+      private void set (int row, int value, boolean isNull) {
+         if (row == this.values.length)
+            this.values = Arrays.copyOf(this.values, row * 2);
+         this.values[row] = value;
+         if (isNull)
+            this.nulls.set(row);
+      }
+      long getLong (int row) { return this.values[row]; }
+      String getString (int row) { return Integer.toString(this.values[row]); }
+      void trim (int rows) { this.values = Arrays.copyOf(this.values, rows); }
+      long byteSize (int rows) { return 4L * rows; }
+   }//end IntColumn
+
+   static final class LongColumn extends Column {
+      long[] values = new long[16];
+
+      void read (ResultSet rs, int i, int row) throws SQLException {
+         set(row, rs.getLong(i), rs.wasNull());
+      }
+      void add (Object value, int row) {
+         set(row, value == null ? 0 : ((Number) value).longValue(), value == null);
+      }
+      void set (int row, long value, boolean isNull) {
+         if (row == this.values.length)
+            this.values = Arrays.copyOf(this.values, row * 2);
+         this.values[row] = value;
+         if (isNull)
+            this.nulls.set(row);
+      }
+      long getLong (int row) { return this.values[row]; }
+      String getString (int row) { return Long.toString(this.values[row]); }
+      void trim (int rows) { this.values = Arrays.copyOf(this.values, rows); }
+      long byteSize (int rows) { return 8L * rows; }
+   }//end LongColumn
+
+   // dates as days since 1970-01-01 in the local time zone.
+   static final class DateColumn extends Column {
+      int[] values = new int[16];
+
+      void read (ResultSet rs, int i, int row) throws SQLException {
+         add(rs.getDate(i), row);
+      }
+      void add (Object value, int row) {
+         if (row == this.values.length)
+            this.values = Arrays.copyOf(this.values, row * 2);
+         if (value == null){
+            this.nulls.set(row);
+            return;
+         }//end if
+         long millis = ((java.util.Date) value).getTime();
+         millis += TimeZone.getDefault().getOffset(millis);
+         long days = millis / MILLIS_PER_DAY;
+         if (millis % MILLIS_PER_DAY < 0)
+            --days;
+         this.values[row] = (int) days;
+      }
+      long getLong (int row) { return this.values[row]; }
+      String getString (int row) { return toDate(this.values[row]).toString(); }
+      void trim (int rows) { this.values = Arrays.copyOf(this.values, rows); }
+      long byteSize (int rows) { return 4L * rows; }
+   }//end DateColumn
+
+   // timestamps as microseconds since the epoch.
+   static final class TimestampColumn extends Column {
+      long[] values = new long[16];
+
+      void read (ResultSet rs, int i, int row) throws SQLException {
+         add(rs.getTimestamp(i), row);
+      }
+      void add (Object value, int row) {
+         if (row == this.values.length)
+            this.values = Arrays.copyOf(this.values, row * 2);
+         if (value == null){
+            this.nulls.set(row);
+            return;
+         }//end if
+         Timestamp ts = (Timestamp) value;
+         long seconds = ts.getTime() / 1000;
+         if (ts.getTime() % 1000 < 0)
+            --seconds;
+         this.values[row] = seconds * 1000000L + ts.getNanos() / 1000;
+      }
+      long getLong (int row) { return this.values[row]; }
+      String getString (int row) { return toTimestamp(this.values[row]).toString(); }
+      void trim (int rows) { this.values = Arrays.copyOf(this.values, rows); }
+      long byteSize (int rows) { return 8L * rows; }
+   }//end TimestampColumn
+
+   // char(n) values without their padding, each distinct value stored once.
+   static final class DictionaryColumn extends Column {
+      int[] codes = new int[16];
+      String[] dictionary = new String[16];
+      int size = 0;
+      HashMap<String, Integer> lookup = new HashMap<String, Integer>();
+
+      void read (ResultSet rs, int i, int row) throws SQLException {
+         add(rs.getString(i), row);
+      }
+      void add (Object value, int row) {
+         if (row == this.codes.length)
+            this.codes = Arrays.copyOf(this.codes, row * 2);
+         if (value == null){
+            this.nulls.set(row);
+            this.codes[row] = -1;
+            return;
+         }//end if
+         String s = trimTrailing(value.toString());
+         Integer code = this.lookup.get(s);
+         if (code == null){
+            if (this.size == this.dictionary.length)
+               this.dictionary = Arrays.copyOf(this.dictionary, this.size * 2);
+            code = Integer.valueOf(this.size);
+            this.dictionary[this.size++] = s;
+            this.lookup.put(s, code);
+         }//end if
+         this.codes[row] = code.intValue();
+      }
+      long getLong (int row) { return Long.parseLong(getString(row)); }
+      String getString (int row) {
+         int code = this.codes[row];
+         return code < 0 ? null : this.dictionary[code];
+      }
+      void trim (int rows) {
+         this.codes = Arrays.copyOf(this.codes, rows);
+         this.dictionary = Arrays.copyOf(this.dictionary, this.size);
+         // the lookup is only needed while rows are added.
+         this.lookup = null;
+      }
+      long byteSize (int rows) {
+         long bytes = 0;
+         for (int row = 0; row < rows; ++row)
+            bytes += this.codes[row] < 0 ? 0 : this.dictionary[this.codes[row]].length();
+         return bytes;
+      }
+   }//end DictionaryColumn
+
+   static final class StringColumn extends Column {
+      String[] values = new String[16];
+
+      void read (ResultSet rs, int i, int row) throws SQLException {
+         add(rs.getString(i), row);
+      }
+      void add (Object value, int row) {
+         if (row == this.values.length)
+            this.values = Arrays.copyOf(this.values, row * 2);
+         if (value == null)
+            this.nulls.set(row);
+         else
+            this.values[row] = value.toString();
+      }
+      long getLong (int row) { return Long.parseLong(this.values[row]); }
+      String getString (int row) { return this.values[row]; }
+      void trim (int rows) { this.values = Arrays.copyOf(this.values, rows); }
+      long byteSize (int rows) {
+         long bytes = 0;
+         for (int row = 0; row < rows; ++row)
+            bytes += this.values[row] == null ? 0 : this.values[row].length();
+         return bytes;
+      }
+   }//end StringColumn
+
+   static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+   private final String[] _names;
+   private final Column[] _columns;
+   private int _rowCount = 0;
+
+   /**
+    * Creates an empty table
+    *
+    * @param names the column names
+    * @param sqlTypes the java.sql.Types of the columns
+    */
+   public ResultTable (String[] names, int[] sqlTypes) {
+      this._names = names.clone();
+      this._columns = new Column[names.length];
+      for (int i = 0; i < names.length; ++i)
+         this._columns[i] = newColumn(sqlTypes[i]);
+   }//end ResultTable
+
+   /**
+    * Method to read every row of a result set into a new table.
+    *
+    * @param rs the result set to read
+    * @return the table holding the rows
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   public static ResultTable from (ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      String[] names = new String[numCol];
+      int[] types = new int[numCol];
+      for (int i = 0; i < numCol; ++i){
+         names[i] = rsmd.getColumnName(i + 1);
+         types[i] = rsmd.getColumnType(i + 1);
+      }//end for
+      ResultTable table = new ResultTable(names, types);
+      while (rs.next()){
+         for (int i = 0; i < numCol; ++i)
+            table._columns[i].read(rs, i + 1, table._rowCount);
+         ++table._rowCount;
+      }//end while
+      table.trim();
+      return table;
+   }//end from
+
+   /**
+    * Method to append a row of values: Numbers for integer columns,
+    * java.util.Date for dates, Timestamps for timestamps and Strings
+    * otherwise.  Call trim once all rows are added.
+    *
+    * @param values one value per column, null for SQL NULL
+    */
+   public void addRow (Object... values) {
+      for (int i = 0; i < this._columns.length; ++i)
+         this._columns[i].add(values[i], this._rowCount);
+      ++this._rowCount;
+   }//end addRow
+
+   /**
+    * Method to release the spare capacity left from appending rows.
+    */
+   public void trim () {
+      for (Column column : this._columns)
+         column.trim(this._rowCount);
+   }//end trim
+
+   public int getRowCount () { return this._rowCount; }
+   public int getColumnCount () { return this._columns.length; }
+   public String getColumnName (int col) { return this._names[col]; }
+   public boolean isEmpty () { return this._rowCount == 0; }
+
+   /**
+    * Estimates the size of the values: 4 or 8 bytes per number, date and
+    * timestamp and the length of every string.
+    */
+   public long byteSize () {
+      long bytes = 0;
+      for (Column column : this._columns)
+         bytes += column.byteSize(this._rowCount);
+      return bytes;
+   }//end byteSize
+
+   public boolean isNull (int row, int col) {
+      checkRow(row);
+      return this._columns[col].nulls.get(row);
+   }//end isNull
+
+   /**
+    * Reads a value as an int, 0 for SQL NULL.
+    */
+   public int getInt (int row, int col) {
+      return (int) getLong(row, col);
+   }//end getInt
+
+   /**
+    * Reads a value as a long: integers as is, dates as epoch days,
+    * timestamps as epoch microseconds and strings parsed.  0 for SQL NULL.
+    */
+   public long getLong (int row, int col) {
+      checkRow(row);
+      Column column = this._columns[col];
+      return column.nulls.get(row) ? 0 : column.getLong(row);
+   }//end getLong
+
+   /**
+    * Reads a value as a string, char(n) values without their padding and
+    * null for SQL NULL.
+    */
+   public String getString (int row, int col) {
+      checkRow(row);
+      Column column = this._columns[col];
+      return column.nulls.get(row) ? null : column.getString(row);
+   }//end getString
+
+   /**
+    * Returns a view positioned on a row.
+    */
+   public Row row (int row) {
+      checkRow(row);
+      return new Row(row);
+   }//end row
+
+   String rowToString (int row) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < this._columns.length; ++i)
+         sb.append(getString(row, i)).append('\t');
+      return sb.toString();
+   }//end rowToString
+
+   private void checkRow (int row) {
+      if (row < 0 || row >= this._rowCount)
+         throw new IndexOutOfBoundsException("row " + row + " of " + this._rowCount);
+   }//end checkRow
+
+   private static Column newColumn (int sqlType) {
+      switch (sqlType){
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER: return new IntColumn();
+         case Types.BIGINT: return new LongColumn();
+         case Types.DATE: return new DateColumn();
+         case Types.TIMESTAMP: return new TimestampColumn();
+         case Types.CHAR: return new DictionaryColumn();
+         default: return new StringColumn();
+      }//end switch
+   }//end newColumn
+
+   static String trimTrailing (String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return end == s.length() ? s : s.substring(0, end);
+   }//end trimTrailing
+
+   static java.sql.Date toDate (int days) {
+      long millis = days * MILLIS_PER_DAY;
+      return new java.sql.Date(millis - TimeZone.getDefault().getOffset(millis));
+   }//end toDate
+
+   static Timestamp toTimestamp (long micros) {
+      long seconds = micros / 1000000L;
+      long rest = micros % 1000000L;
+      if (rest < 0){
+         --seconds;
+         rest += 1000000L;
+      }//end if
+      Timestamp ts = new Timestamp(seconds * 1000L);
+      ts.setNanos((int) rest * 1000);
+      return ts;
+   }//end toTimestamp
+
+}//end ResultTable
@@ -0,0 +1,98 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/**
+ * This class holds the input and output streams of one interactive user,
+ * either the local console or a network client of ProfNetworkServer.
+ * The menu handlers read and print through the session bound to their
+ * thread, so many sessions can run the menus side by side.
+ *
+ */
+public class Session {
+
+   /**
+    * Thrown by readLine once the user's input is exhausted, so every menu
+    * loop unwinds instead of prompting forever.
+    */
+   public static class ClosedException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public ClosedException () {
+         super("Session closed");
+      }
+   }//end ClosedException
+
+   private final BufferedReader _in;
+   private final PrintStream _out;
+   private final PrintStream _err;
+   private volatile boolean _closed = false;
+   // System.currentTimeMillis() of the session's last write, 0 for none.
+   private volatile long _lastWrite = 0;
+
+   /**
+    * Creates a new session over a pair of streams
+    *
+    * @param in the reader the user's lines come from
+    * @param out the stream prompts and results are written to
+    * @param err the stream error messages are written to
+    */
+   public Session (BufferedReader in, PrintStream out, PrintStream err) {
+      this._in = in;
+      this._out = out;
+      this._err = err;
+   }//end Session
+
+   /**
+    * Creates the session for the local console.
+    */
+   public static Session console () {
+      return new Session(new BufferedReader(new InputStreamReader(System.in)), System.out, System.err);
+   }//end console
+
+   /**
+    * Method to read one line of user input.  Pending output is flushed
+    * first so the user sees the prompt.
+    *
+    * @return the line without its terminator
+    * @throws Session.ClosedException when the input is exhausted or broken
+    */
+   public String readLine () {
+      if (this._closed)
+         throw new ClosedException();
+      this._out.flush();
+      String line;
+      try{
+         line = this._in.readLine();
+      }catch (IOException e){
+         line = null;
+      }//end try
+      if (line == null){
+         this._closed = true;
+         throw new ClosedException();
+      }//end if
+      return line;
+   }//end readLine
+
+   public PrintStream out () { return this._out; }
+   public PrintStream err () { return this._err; }
+   public boolean isClosed () { return this._closed; }
+
+   /**
+    * Method to note that the session just changed the database, so its
+    * reads stay on the primary while replicas may lag behind.
+    */
+   public void markWrite () { this._lastWrite = System.currentTimeMillis(); }
+   public long getLastWrite () { return this._lastWrite; }
+
+   /**
+    * Method to flush pending output and mark the session closed.
+    */
+   public void close () {
+      this._closed = true;
+      this._out.flush();
+      this._err.flush();
+   }//end close
+
+}//end Session
@@ -0,0 +1,414 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the accepted connections of CONNECTION_USR in memory
+ * as an undirected graph.  User ids are dictionary encoded to ints and
+ * every user's friends are kept as a sorted int array, so friend lists
+ * and graph walks are served without database round trips.
+ *
+ * Accepts and rejects made through this process update the graph in
+ * place.  A periodic reconciliation reloads the table so changes made by
+ * other processes show up within one interval.
+ *
+ */
+public class SocialGraph {
+
+   /**
+    * Notified after the graph changed, e.g. to drop derived caches.
+    */
+   public interface Listener {
+      // an edge between the two users was added or removed.
+      void connectionChanged (String userId, String connectionId);
+      // the whole graph was rebuilt, user codes may have changed.
+      void reloaded ();
+   }//end Listener
+
+   private final ProfNetwork _esql;
+   private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+   private ScheduledExecutorService _reconciler = null;
+   // one reload at a time; the edges changed while it reads the table,
+   // replayed onto the new graph, null while no reload runs.
+   private final Object _reloading = new Object();
+   private List<Object[]> _changed = null;
+
+   // dictionary: user id to code and code to user id.
+   private HashMap<String, Integer> _ids = new HashMap<String, Integer>();
+   private String[] _names = new String[16];
+   // friends of each code, sorted, in _adjacency[code][0 .. _degree[code]).
+   private int[][] _adjacency = new int[16][];
+   private int[] _degree = new int[16];
+   private int _users = 0;
+   private int _edges = 0;
+   private long _reloads = 0;
+
+   /**
+    * Creates a new, empty graph.  Call reload to fill it.
+    *
+    * @param esql the database access object
+    */
+   public SocialGraph (ProfNetwork esql) {
+      this._esql = esql;
+   }//end SocialGraph
+
+   /**
+    * Method to rebuild the graph from CONNECTION_USR.  The new graph is
+    * built aside and swapped in, so readers never wait for the load.
+    * Edges added or removed meanwhile are applied again after the swap,
+    * since the rows read may predate them.
+    *
+    * @throws java.sql.SQLException when failed to read the connections
+    */
+   public void reload () throws SQLException {
+      synchronized (this._reloading){
+         reloadTable();
+      }//end synchronized
+      for (Listener listener : this._listeners)
+         listener.reloaded();
+   }//end reload
+
+   private void reloadTable () throws SQLException {
+      this._lock.writeLock().lock();
+      try{
+         this._changed = new ArrayList<Object[]>();
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      ResultTable rows;
+      try{
+         rows = this._esql.executePrimaryQueryAndReturnTable(
+            "SELECT userId, connectionId FROM connection_usr WHERE status = ?", "Accept");
+      }catch (SQLException e){
+         this._lock.writeLock().lock();
+         try{
+            this._changed = null;
+         }finally{
+            this._lock.writeLock().unlock();
+         }//end try
+         throw e;
+      }//end try
+      SocialGraph fresh = new SocialGraph(this._esql);
+      int n = rows.getRowCount();
+      int[] from = new int[n];
+      int[] to = new int[n];
+      for (int i = 0; i < n; ++i){
+         from[i] = fresh.intern(rows.getString(i, 0));
+         to[i] = fresh.intern(rows.getString(i, 1));
+      }//end for
+      // size every list first, then fill, sort and drop duplicate rows.
+      int[] degree = new int[fresh._users];
+      for (int i = 0; i < n; ++i){
+         if (from[i] == to[i])
+            continue;
+         ++degree[from[i]];
+         ++degree[to[i]];
+      }//end for
+      int[][] adjacency = new int[fresh._names.length][];
+      for (int u = 0; u < fresh._users; ++u)
+         adjacency[u] = new int[degree[u]];
+      Arrays.fill(degree, 0);
+      for (int i = 0; i < n; ++i){
+         if (from[i] == to[i])
+            continue;
+         adjacency[from[i]][degree[from[i]]++] = to[i];
+         adjacency[to[i]][degree[to[i]]++] = from[i];
+      }//end for
+      int edges = 0;
+      for (int u = 0; u < fresh._users; ++u){
+         int[] list = adjacency[u];
+         Arrays.sort(list);
+         int d = 0;
+         for (int i = 0; i < list.length; ++i)
+            if (d == 0 || list[d - 1] != list[i])
+               list[d++] = list[i];
+         degree[u] = d;
+         edges += d;
+      }//end for
+
+      this._lock.writeLock().lock();
+      try{
+         this._ids = fresh._ids;
+         this._names = fresh._names;
+         this._adjacency = adjacency;
+         this._degree = Arrays.copyOf(degree, adjacency.length);
+         this._users = fresh._users;
+         this._edges = edges / 2;
+         ++this._reloads;
+         for (Object[] change : this._changed){
+            if (change[2] == Boolean.TRUE)
+               link((String) change[0], (String) change[1]);
+            else
+               unlink((String) change[0], (String) change[1]);
+         }//end for
+         this._changed = null;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end reloadTable
+
+   public void addListener (Listener listener) {
+      this._listeners.add(listener);
+   }//end addListener
+
+   /**
+    * Method to reload the graph periodically in the background.
+    *
+    * @param periodMillis time between two reconciliation passes
+    */
+   public synchronized void startReconciliation (long periodMillis) {
+      if (this._reconciler != null || periodMillis <= 0)
+         return;
+      this._reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+         public Thread newThread (Runnable r){
+            Thread t = new Thread(r, "SocialGraph-reconciler");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._reconciler.scheduleWithFixedDelay(new Runnable(){
+         public void run (){
+            try{
+               reload();
+            }catch (SQLException e){
+               // keep serving the current graph, the next pass retries.
+               System.err.println("SocialGraph reconciliation failed: " + e.getMessage());
+            }//end try
+         }
+      }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+   }//end startReconciliation
+
+   /**
+    * Method to stop the background reconciliation.
+    */
+   public synchronized void close () {
+      if (this._reconciler != null){
+         this._reconciler.shutdownNow();
+         this._reconciler = null;
+      }//end if
+   }//end close
+
+   /**
+    * Method to record an accepted connection.
+    *
+    * @param userId one end of the connection
+    * @param connectionId the other end
+    */
+   public void addEdge (String userId, String connectionId) {
+      this._lock.writeLock().lock();
+      try{
+         if (this._changed != null)
+            this._changed.add(new Object[]{ userId, connectionId, Boolean.TRUE });
+         if (!link(userId, connectionId))
+            return;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      for (Listener listener : this._listeners)
+         listener.connectionChanged(userId, connectionId);
+   }//end addEdge
+
+   /**
+    * Method to drop a connection, e.g. when it was rejected.
+    *
+    * @param userId one end of the connection
+    * @param connectionId the other end
+    */
+   public void removeEdge (String userId, String connectionId) {
+      this._lock.writeLock().lock();
+      try{
+         if (this._changed != null)
+            this._changed.add(new Object[]{ userId, connectionId, Boolean.FALSE });
+         if (!unlink(userId, connectionId))
+            return;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      for (Listener listener : this._listeners)
+         listener.connectionChanged(userId, connectionId);
+   }//end removeEdge
+
+   /**
+    * Method to list the accepted connections of a user.
+    *
+    * @param userId the user
+    * @return the connections' user ids, sorted by name
+    */
+   public String[] friends (String userId) {
+      String[] result;
+      this._lock.readLock().lock();
+      try{
+         Integer u = this._ids.get(userId);
+         if (u == null)
+            return new String[0];
+         int d = this._degree[u.intValue()];
+         int[] list = this._adjacency[u.intValue()];
+         result = new String[d];
+         for (int i = 0; i < d; ++i)
+            result[i] = this._names[list[i]];
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      Arrays.sort(result);
+      return result;
+   }//end friends
+
+   /**
+    * Method to check whether two users are connected.
+    */
+   public boolean isFriend (String userId, String connectionId) {
+      this._lock.readLock().lock();
+      try{
+         Integer a = this._ids.get(userId);
+         Integer b = this._ids.get(connectionId);
+         return a != null && b != null
+                && Arrays.binarySearch(this._adjacency[a.intValue()], 0, this._degree[a.intValue()], b.intValue()) >= 0;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end isFriend
+
+   /**
+    * Returns the int code of a user id, -1 if the user has no connections.
+    * Codes stay stable until the next reload.
+    */
+   public int code (String userId) {
+      this._lock.readLock().lock();
+      try{
+         Integer u = this._ids.get(userId);
+         return u == null ? -1 : u.intValue();
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end code
+
+   public String name (int code) {
+      this._lock.readLock().lock();
+      try{
+         return this._names[code];
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end name
+
+   /**
+    * Returns a copy of the sorted friend codes of a user code.
+    */
+   public int[] friendCodes (int code) {
+      this._lock.readLock().lock();
+      try{
+         return Arrays.copyOf(this._adjacency[code], this._degree[code]);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end friendCodes
+
+   /**
+    * Counts full reloads, so callers can tell whether codes they hold are
+    * still valid.
+    */
+   public long version () {
+      this._lock.readLock().lock();
+      try{
+         return this._reloads;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end version
+
+   public int degree (String userId) {
+      this._lock.readLock().lock();
+      try{
+         Integer u = this._ids.get(userId);
+         return u == null ? 0 : this._degree[u.intValue()];
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end degree
+
+   public String toString () {
+      this._lock.readLock().lock();
+      try{
+         return String.format("graph: %d users, %d connections, %d reloads", this._users, this._edges, this._reloads);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end toString
+
+   // returns the code of a user id, adding it to the dictionary if needed.
+   private int intern (String id) {
+      Integer code = this._ids.get(id);
+      if (code != null)
+         return code.intValue();
+      if (this._users == this._names.length){
+         int capacity = this._users * 2;
+         this._names = Arrays.copyOf(this._names, capacity);
+         this._adjacency = Arrays.copyOf(this._adjacency, capacity);
+         this._degree = Arrays.copyOf(this._degree, capacity);
+      }//end if
+      this._names[this._users] = id;
+      this._adjacency[this._users] = new int[0];
+      this._ids.put(id, Integer.valueOf(this._users));
+      return this._users++;
+   }//end intern
+
+   // adds an edge under the write lock, false if it was there already.
+   private boolean link (String userId, String connectionId) {
+      int a = intern(userId);
+      int b = intern(connectionId);
+      if (a == b || !insert(a, b))
+         return false;
+      insert(b, a);
+      ++this._edges;
+      return true;
+   }//end link
+
+   // drops an edge under the write lock, false if it was not there.
+   private boolean unlink (String userId, String connectionId) {
+      Integer a = this._ids.get(userId);
+      Integer b = this._ids.get(connectionId);
+      if (a == null || b == null || !delete(a.intValue(), b.intValue()))
+         return false;
+      delete(b.intValue(), a.intValue());
+      --this._edges;
+      return true;
+   }//end unlink
+
+   // adds b to the sorted list of a, false if it was there already.
+   private boolean insert (int a, int b) {
+      int[] list = this._adjacency[a];
+      int d = this._degree[a];
+      int pos = Arrays.binarySearch(list, 0, d, b);
+      if (pos >= 0)
+         return false;
+      pos = -pos - 1;
+      if (d == list.length)
+         list = this._adjacency[a] = Arrays.copyOf(list, Math.max(4, d * 2));
+      System.arraycopy(list, pos, list, pos + 1, d - pos);
+      list[pos] = b;
+      ++this._degree[a];
+      return true;
+   }//end insert
+
+   // removes b from the sorted list of a, false if it was not there.
+   private boolean delete (int a, int b) {
+      int[] list = this._adjacency[a];
+      int d = this._degree[a];
+      int pos = Arrays.binarySearch(list, 0, d, b);
+      if (pos < 0)
+         return false;
+      System.arraycopy(list, pos + 1, list, pos, d - pos - 1);
+      --this._degree[a];
+      return true;
+   }//end delete
+
+}//end SocialGraph
@@ -0,0 +1,128 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least recently used cache of prepared
+ * statements for a single physical connection.  Statements are keyed by
+ * their SQL text, so a statement and its parsed placeholders are created
+ * once per connection instead of once per execution.
+ *
+ * The cache is a client side statement pool only: the bundled driver
+ * substitutes the parameters into the SQL text and Postgres still parses
+ * and plans every execution.  Its setUseServerPrepare compares server
+ * versions as text and ignores the call on 10 and later, so it is not
+ * asked for.
+ *
+ */
+public class StatementCache {
+   // default number of statements kept per connection.
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // the connection every cached statement belongs to.
+   private final Connection _connection;
+
+   // maximum number of statements kept open, 0 disables caching.
+   private final int _capacity;
+
+   // SQL text to prepared statement, in access order.
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   // cache statistics.
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   /**
+    * Creates a new statement cache for a connection
+    *
+    * @param connection the physical connection statements are prepared on
+    * @param capacity the maximum number of open statements, 0 disables caching
+    */
+   public StatementCache (Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = Math.max(0, capacity);
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+         protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest){
+            if (size() <= StatementCache.this._capacity)
+               return false;
+            ++StatementCache.this._evictions;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Method to fetch the prepared statement for an SQL string, preparing it
+    * on the connection when it is not cached yet.  Callers must hand the
+    * statement back through release once they are done with it.
+    *
+    * @param sql the SQL string with '?' parameter placeholders
+    * @return the prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null){
+         ++this._hits;
+         stmt.clearParameters();
+         return stmt;
+      }//end if
+      ++this._misses;
+      stmt = this._connection.prepareStatement(sql);
+      if (this._capacity > 0)
+         this._statements.put(sql, stmt);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Method to hand back a statement obtained through prepare.  Statements
+    * that are not held by the cache are closed.
+    *
+    * @param sql the SQL string the statement was prepared for
+    * @param stmt the statement returned by prepare
+    */
+   public synchronized void release (String sql, PreparedStatement stmt) {
+      if (this._statements.get(sql) != stmt)
+         closeQuietly(stmt);
+   }//end release
+
+   /**
+    * Method to close every cached statement.
+    */
+   public synchronized void close () {
+      Iterator<PreparedStatement> it = this._statements.values().iterator();
+      while (it.hasNext()){
+         closeQuietly(it.next());
+         it.remove();
+      }//end while
+   }//end close
+
+   public synchronized long getHits () { return this._hits; }
+   public synchronized long getMisses () { return this._misses; }
+   public synchronized long getEvictions () { return this._evictions; }
+
+   /**
+    * Reports how often a statement was reused instead of being created
+    * again.
+    */
+   public synchronized String toString () {
+      long total = this._hits + this._misses;
+      return String.format("statements: %d cached (capacity %d), %d executions, %d created, %d reused (%.1f%%), %d evictions",
+                           this._statements.size(), this._capacity, total, this._misses, this._hits,
+                           total == 0 ? 0.0 : 100.0 * this._hits / total, this._evictions);
+   }//end toString
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end StatementCache
@@ -0,0 +1,96 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class replays the login and inbox queries for a list of users to
+ * compare literal SQL statements against cached prepared statements.
+ *
+ * Usage: java StatementReplay <dbname> <port> <user> <usr.csv> [rounds]
+ *
+ * The user file is read as CSV with the login in the first column and the
+ * password in the second one, so data/usr.csv can be used directly.
+ * Every round prints the time of both modes and the time the cached
+ * statements saved, which is client side work only: the server parses
+ * and plans both modes alike (StatementCache).  The first round includes
+ * creating the statements.
+ */
+public class StatementReplay {
+   static final String LOGIN_SQL =
+      "SELECT userId FROM USR WHERE userid = ?::bpchar AND password = ?";
+   static final String INBOX_SQL =
+      "SELECT * FROM message where (senderId = ?::bpchar and deletestatus != 2 and deletestatus != 3) OR (receiverId = ?::bpchar and deletestatus != 1 and deletestatus != 3)";
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " +
+            StatementReplay.class.getName () +
+            " <dbname> <port> <user> <usr.csv> [rounds]");
+         return;
+      }//end if
+      int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+      List<String[]> logins = readLogins(args[3]);
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try{
+         for (int round = 1; round <= rounds; ++round){
+            long start = System.nanoTime();
+            for (String[] login : logins){
+               esql.executeQuery(String.format(
+                  "SELECT userId FROM USR WHERE userid = '%s' AND password = '%s'", quote(login[0]), quote(login[1])));
+               esql.executeQuery(String.format(
+                  "SELECT * FROM message where (senderId = '%s' and deletestatus != 2 and deletestatus != 3) OR (receiverId = '%s' and deletestatus != 1 and deletestatus != 3)",
+                  quote(login[0]), quote(login[0])));
+            }//end for
+            long literal = System.nanoTime() - start;
+            report("literal", round, logins.size(), literal);
+
+            start = System.nanoTime();
+            for (String[] login : logins){
+               esql.executeQuery(LOGIN_SQL, login[0], login[1]);
+               esql.executeQuery(INBOX_SQL, login[0], login[0]);
+            }//end for
+            long prepared = System.nanoTime() - start;
+            report("prepared", round, logins.size(), prepared);
+            // what creating every statement again costs the client.
+            System.out.println(String.format("round %d saved    %6d login+inbox pairs    %8.1f ms (%.1f us/pair, %.0f%%)",
+                                             round, logins.size(), (literal - prepared) / 1e6,
+                                             logins.isEmpty() ? 0.0 : (literal - prepared) / 1e3 / logins.size(),
+                                             literal == 0 ? 0.0 : 100.0 * (literal - prepared) / literal));
+         }//end for
+         System.out.println(esql.getStatementStats());
+         System.out.println(esql.getPoolStats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   static void report (String mode, int round, int users, long nanos) {
+      System.out.println(String.format("round %d %-8s %6d login+inbox pairs in %8.1f ms (%.1f us/pair)",
+                                       round, mode, users, nanos / 1e6, users == 0 ? 0.0 : nanos / 1e3 / users));
+   }//end report
+
+   static String quote (String value) {
+      return value.replace("'", "''");
+   }//end quote
+
+   static List<String[]> readLogins (String file) throws Exception {
+      List<String[]> logins = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null){
+            String[] fields = line.split(",", 3);
+            if (fields.length >= 2)
+               logins.add(new String[]{ fields[0], fields[1] });
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      return logins;
+   }//end readLogins
+
+}//end StatementReplay
@@ -0,0 +1,458 @@
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class drives the menu handlers with many simulated users at once
+ * to find how much load a deployment takes.  Every user runs scenarios,
+ * short sequences of handler calls, picked by weight from the mix.  The
+ * handlers read scripted answers from a session bound to the user's
+ * thread and print to a sink, and a call counts as failed when it
+ * printed an error.
+ *
+ * In closed loop each of the users runs one scenario after another,
+ * waiting the think time in between.  In open loop scenarios start at a
+ * constant rate whether or not earlier ones finished, run by the users as
+ * a pool of workers, and scenario latency is taken from the intended
+ * start, so queueing at saturation shows up in the percentiles.
+ *
+ * Latencies are recorded per operation and per scenario in
+ * LatencyHistograms, after the warmup, and reported as a table and as
+ * JSON written to the profnetwork.workload.report file.  Several user
+ * counts, or rates in open loop, given as a comma separated list run as
+ * consecutive steps of one report, e.g. to find the saturation point.
+ *
+ * Usage: java WorkloadDriver &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;users&gt; [rates/s]
+ * with the times in seconds set by the profnetwork.workload.duration and
+ * .warmup properties, the think time in ms by .think, the sampled users by
+ * .sample and the mix by .mix, e.g. browse=50,inbox=30,network=20.
+ */
+public class WorkloadDriver {
+
+   /**
+    * The handlers scenarios are made of.
+    */
+   enum Operation { LogIn, displayUser, displayMessage, SendMessage, viewFriends, SearchPerson, SendRequest, AcceptorReject }
+
+   /**
+    * A named sequence of operations and its share of the mix.
+    */
+   static final class Scenario {
+      final String name;
+      final Operation[] steps;
+      int weight;
+
+      Scenario (String name, int weight, Operation... steps) {
+         this.name = name;
+         this.weight = weight;
+         this.steps = steps;
+      }
+   }//end Scenario
+
+   static final String DEFAULT_MIX = "browse=50,inbox=30,network=20";
+
+   // scenario names are the keys of the mix property.
+   static Map<String, Scenario> scenarios () {
+      Map<String, Scenario> scenarios = new LinkedHashMap<String, Scenario>();
+      scenarios.put("browse", new Scenario("browse", 0,
+         Operation.LogIn, Operation.displayUser, Operation.viewFriends));
+      scenarios.put("inbox", new Scenario("inbox", 0,
+         Operation.LogIn, Operation.displayMessage, Operation.SendMessage));
+      // the stranger accepts the request the user sends.
+      scenarios.put("network", new Scenario("network", 0,
+         Operation.LogIn, Operation.SearchPerson, Operation.SendRequest, Operation.AcceptorReject));
+      return scenarios;
+   }//end scenarios
+
+   /**
+    * Latencies and failures of one operation or scenario.
+    */
+   static final class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }//end Stats
+
+   /**
+    * A sampled user with the ids of its connections.
+    */
+   static final class User {
+      final String userId;
+      final String password;
+      final String[] friends;
+
+      User (String userId, String password, String[] friends) {
+         this.userId = userId;
+         this.password = password;
+         this.friends = friends;
+      }
+   }//end User
+
+   /**
+    * The streams a thread's handlers print to, counting the error bytes.
+    */
+   static final class Sink {
+      long errors = 0;
+      final PrintStream out = new PrintStream(new OutputStream(){
+         public void write (int b) {}
+         public void write (byte[] b, int off, int len) {}
+      });
+      final PrintStream err = new PrintStream(new OutputStream(){
+         public void write (int b) { ++errors; }
+         public void write (byte[] b, int off, int len) { errors += len; }
+      });
+   }//end Sink
+
+   private static final ThreadLocal<Sink> _sink = new ThreadLocal<Sink>(){
+      protected Sink initialValue () {
+         return new Sink();
+      }
+   };
+
+   private final ProfNetwork _esql;
+   private final List<User> _users;
+   private final List<Scenario> _mix;
+   private final int _totalWeight;
+   private final long _thinkMillis;
+   private final AtomicLong _messages = new AtomicLong();
+   // the statistics of the running step, replaced per step.
+   private volatile Map<String, Stats> _operations;
+   private volatile Map<String, Stats> _scenarios;
+   private volatile long _measureFrom;
+
+   /**
+    * Creates a new driver
+    *
+    * @param esql the database access object
+    * @param users the users simulated users log in as
+    * @param mix the scenarios with their weights
+    * @param thinkMillis mean pause between a user's scenarios in closed loop
+    */
+   public WorkloadDriver (ProfNetwork esql, List<User> users, List<Scenario> mix, long thinkMillis) {
+      this._esql = esql;
+      this._users = users;
+      this._mix = mix;
+      int total = 0;
+      for (Scenario scenario : mix)
+         total += scenario.weight;
+      this._totalWeight = total;
+      this._thinkMillis = thinkMillis;
+   }//end WorkloadDriver
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: java [-classpath <classpath>] " +
+            WorkloadDriver.class.getName () +
+            " <dbname> <port> <user> <users> [rates/s]");
+         return;
+      }//end if
+      int duration = Integer.getInteger("profnetwork.workload.duration", 60);
+      int warmup = Integer.getInteger("profnetwork.workload.warmup", 10);
+      long think = Long.getLong("profnetwork.workload.think", 0L);
+      int sample = Integer.getInteger("profnetwork.workload.sample", 1000);
+      String report = System.getProperty("profnetwork.workload.report", "workload.json");
+      List<Scenario> mix = parseMix(System.getProperty("profnetwork.workload.mix", DEFAULT_MIX));
+      int[] users = parseInts(args[3]);
+      int[] rates = args.length > 4 ? parseInts(args[4]) : null;
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      try{
+         List<List<String>> rows = esql.executeQueryAndReturnResult(ProfNetworkBench.SAMPLE_SQL, "1", sample);
+         if (rows.size() < 2) {
+            System.err.println("not enough users to simulate, load a dataset first");
+            return;
+         }//end if
+         List<User> sampled = new ArrayList<User>(rows.size());
+         for (List<String> row : rows)
+            sampled.add(new User(row.get(0).trim(), row.get(1), ProfNetwork.connectionsOf(esql, row.get(0))));
+         WorkloadDriver driver = new WorkloadDriver(esql, sampled, mix, think);
+
+         StringBuilder json = new StringBuilder("{\"steps\": [");
+         int steps = rates == null ? users.length : rates.length;
+         for (int step = 0; step < steps; ++step) {
+            int n = rates == null ? users[step] : users[Math.min(step, users.length - 1)];
+            long started = System.nanoTime();
+            if (rates == null)
+               driver.closedLoop(n, warmup, duration);
+            else
+               driver.openLoop(n, rates[step], warmup, duration);
+            double seconds = Math.max(1e-9, (System.nanoTime() - started) / 1e9 - warmup);
+            System.out.println(String.format("%s loop, %d users%s:", rates == null ? "closed" : "open", n,
+                                             rates == null ? "" : ", " + rates[step] + " scenarios/s"));
+            System.out.print(driver.table(seconds));
+            json.append(step == 0 ? "\n" : ",\n");
+            driver.json(json, rates == null ? "closed" : "open", n, rates == null ? 0 : rates[step], warmup, seconds);
+         }//end for
+         json.append("\n]}\n");
+         Writer out = new FileWriter(report);
+         try{
+            out.write(json.toString());
+         }finally{
+            out.close();
+         }//end try
+         System.out.println("report written to " + report);
+         System.out.println(esql.getPoolStats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Method to run users that each start their next scenario once the
+    * last one finished and the think time passed.
+    *
+    * @param users the simulated users, one thread each
+    * @param warmup seconds run before latencies are recorded
+    * @param duration seconds latencies are recorded for
+    */
+   public void closedLoop (int users, int warmup, int duration) throws InterruptedException {
+      reset(warmup);
+      final long end = this._measureFrom + duration * 1000000000L;
+      Thread[] threads = new Thread[users];
+      for (int t = 0; t < users; ++t) {
+         threads[t] = new Thread(new Runnable(){
+            public void run (){
+               while (System.nanoTime() < end) {
+                  long start = System.nanoTime();
+                  scenario(start);
+                  think();
+               }//end while
+            }
+         }, "user-" + t);
+         threads[t].start();
+      }//end for
+      for (Thread thread : threads)
+         thread.join();
+   }//end closedLoop
+
+   /**
+    * Method to start scenarios at a constant rate, run by a pool of
+    * users.  Scenarios not started within a minute after the duration are
+    * dropped and counted as failed.
+    *
+    * @param users the worker threads
+    * @param rate scenarios started per second
+    * @param warmup seconds run before latencies are recorded
+    * @param duration seconds latencies are recorded for
+    */
+   public void openLoop (int users, int rate, int warmup, int duration) throws InterruptedException {
+      reset(warmup);
+      long end = this._measureFrom + duration * 1000000000L;
+      long interval = 1000000000L / Math.max(1, rate);
+      ExecutorService pool = Executors.newFixedThreadPool(users);
+      long start = System.nanoTime();
+      for (long i = 0; ; ++i) {
+         final long intended = start + i * interval;
+         if (intended >= end)
+            break;
+         long wait = intended - System.nanoTime();
+         if (wait > 0)
+            LockSupport.parkNanos(wait);
+         pool.execute(new Runnable(){
+            public void run (){
+               scenario(intended);
+            }
+         });
+      }//end for
+      pool.shutdown();
+      if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
+         int dropped = pool.shutdownNow().size();
+         this._scenarios.get("dropped").errors.addAndGet(dropped);
+         pool.awaitTermination(60, TimeUnit.SECONDS);
+      }//end if
+   }//end openLoop
+
+   // starts a step: fresh statistics, recorded from after the warmup.
+   private void reset (int warmup) {
+      Map<String, Stats> operations = new LinkedHashMap<String, Stats>();
+      for (Operation op : Operation.values())
+         operations.put(op.name(), new Stats());
+      Map<String, Stats> scenarios = new LinkedHashMap<String, Stats>();
+      for (Scenario scenario : this._mix)
+         scenarios.put(scenario.name, new Stats());
+      scenarios.put("dropped", new Stats());
+      this._operations = operations;
+      this._scenarios = scenarios;
+      this._measureFrom = System.nanoTime() + warmup * 1000000000L;
+   }//end reset
+
+   // runs one scenario picked from the mix for a random user.
+   private void scenario (long intended) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Scenario scenario = pick(random.nextInt(this._totalWeight));
+      User user = this._users.get(random.nextInt(this._users.size()));
+      User stranger = this._users.get(random.nextInt(this._users.size()));
+      if (stranger == user)
+         stranger = this._users.get((this._users.indexOf(user) + 1) % this._users.size());
+      String friend = user.friends.length == 0 ? stranger.userId : user.friends[random.nextInt(user.friends.length)];
+
+      boolean measured = intended >= this._measureFrom;
+      boolean failed = false;
+      for (Operation op : scenario.steps) {
+         if (!call(op, user, friend, stranger.userId, measured)) {
+            failed = true;
+            break;
+         }//end if
+      }//end for
+      if (!measured)
+         return;
+      Stats stats = this._scenarios.get(scenario.name);
+      stats.latency.record(System.nanoTime() - intended);
+      if (failed)
+         stats.errors.incrementAndGet();
+   }//end scenario
+
+   private Scenario pick (int ticket) {
+      for (Scenario scenario : this._mix) {
+         ticket -= scenario.weight;
+         if (ticket < 0)
+            return scenario;
+      }//end for
+      return this._mix.get(this._mix.size() - 1);
+   }//end pick
+
+   private void think () {
+      if (this._thinkMillis <= 0)
+         return;
+      // exponential pauses around the mean, as independent users would.
+      double pause = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * this._thinkMillis;
+      LockSupport.parkNanos((long) (pause * 1000000));
+   }//end think
+
+   /**
+    * Runs one handler with its scripted answers and records its latency.
+    *
+    * @return false if the handler printed an error or the login failed
+    */
+   private boolean call (Operation op, User user, String friend, String stranger, boolean measured) {
+      Sink sink = _sink.get();
+      String script;
+      switch (op) {
+         case LogIn: script = user.userId + "\n" + user.password + "\n"; break;
+         case displayMessage: script = "q\n"; break;
+         case SendMessage: script = "workload message " + this._messages.incrementAndGet() + "\n"; break;
+         // list the friends, select one, list theirs and go back.
+         case viewFriends: script = user.friends.length == 0 ? "2\n" : "1\n" + friend + "\n3\n2\n"; break;
+         case SearchPerson: script = stranger.substring(0, Math.min(6, stranger.length())) + "\nq\n"; break;
+         case SendRequest: script = stranger + "\n"; break;
+         case AcceptorReject: script = user.userId + "\nAccept\n"; break;
+         default: script = ""; break;
+      }//end switch
+      ProfNetwork.bindSession(new Session(new BufferedReader(new StringReader(script), 256), sink.out, sink.err));
+      String previous = QueryStats.enter(op.name());
+      long errors = sink.errors;
+      boolean ok = true;
+      long start = System.nanoTime();
+      try{
+         switch (op) {
+            case LogIn: ok = ProfNetwork.LogIn(this._esql) != null; break;
+            case displayUser: ProfNetwork.displayUser(this._esql, user.userId); break;
+            case displayMessage: ProfNetwork.displayMessage(this._esql, user.userId); break;
+            case SendMessage: ProfNetwork.SendMessage(this._esql, user.userId, friend); break;
+            case viewFriends: ProfNetwork.viewFriends(this._esql, user.userId); break;
+            case SearchPerson: ProfNetwork.SearchPerson(this._esql); break;
+            case SendRequest: ProfNetwork.SendRequest(this._esql, user.userId); break;
+            case AcceptorReject: ProfNetwork.AcceptorReject(this._esql, stranger); break;
+         }//end switch
+      }catch (RuntimeException e){
+         ok = false;
+      }finally{
+         QueryStats.exit(previous);
+         ProfNetwork.bindSession(null);
+      }//end try
+      long elapsed = System.nanoTime() - start;
+      ok = ok && sink.errors == errors;
+      if (measured) {
+         Stats stats = this._operations.get(op.name());
+         stats.latency.record(elapsed);
+         if (!ok)
+            stats.errors.incrementAndGet();
+      }//end if
+      return ok;
+   }//end call
+
+   // the statistics of the last step as a table, latencies in ms.
+   String table (double seconds) {
+      StringBuilder out = new StringBuilder(String.format("%-16s %9s %7s %9s %8s %8s %8s %8s %8s\n",
+                                                          "", "count", "errors", "per s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+      Map<String, Stats> all = new LinkedHashMap<String, Stats>(this._operations);
+      all.putAll(this._scenarios);
+      for (Map.Entry<String, Stats> entry : all.entrySet()) {
+         LatencyHistogram h = entry.getValue().latency;
+         long errors = entry.getValue().errors.get();
+         if (h.count() == 0 && errors == 0)
+            continue;
+         out.append(String.format("%-16s %9d %7d %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f\n",
+                                  entry.getKey(), h.count(), errors, h.count() / seconds,
+                                  h.percentile(0.5) / 1e6, h.percentile(0.9) / 1e6, h.percentile(0.99) / 1e6,
+                                  h.percentile(0.999) / 1e6, h.max() / 1e6));
+      }//end for
+      return out.toString();
+   }//end table
+
+   // the statistics of the last step as a JSON object, latencies in us.
+   void json (StringBuilder out, String mode, int users, int rate, int warmup, double seconds) {
+      out.append(String.format("{\"mode\": \"%s\", \"users\": %d, \"rate\": %d, \"warmup\": %d, \"seconds\": %.3f",
+                               mode, users, rate, warmup, seconds));
+      json(out, "operations", this._operations, seconds);
+      json(out, "scenarios", this._scenarios, seconds);
+      out.append("}");
+   }//end json
+
+   private static void json (StringBuilder out, String name, Map<String, Stats> stats, double seconds) {
+      out.append(",\n \"").append(name).append("\": {");
+      boolean first = true;
+      for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+         LatencyHistogram h = entry.getValue().latency;
+         out.append(first ? "\n  \"" : ",\n  \"").append(entry.getKey()).append("\": ");
+         out.append(String.format("{\"count\": %d, \"errors\": %d, \"per_second\": %.3f, \"mean_us\": %.1f,"
+                                  + " \"p50_us\": %.1f, \"p90_us\": %.1f, \"p99_us\": %.1f, \"p999_us\": %.1f, \"max_us\": %.1f}",
+                                  h.count(), entry.getValue().errors.get(), h.count() / seconds, h.mean() / 1e3,
+                                  h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3, h.percentile(0.99) / 1e3,
+                                  h.percentile(0.999) / 1e3, h.max() / 1e3));
+         first = false;
+      }//end for
+      out.append("}");
+   }//end json
+
+   // parses e.g. browse=50,inbox=30 into the named scenarios with weights.
+   static List<Scenario> parseMix (String mix) {
+      Map<String, Scenario> known = scenarios();
+      List<Scenario> result = new ArrayList<Scenario>();
+      for (String part : mix.split(",")) {
+         String[] pair = part.trim().split("=");
+         Scenario scenario = known.get(pair[0].trim());
+         if (scenario == null)
+            throw new IllegalArgumentException("unknown scenario " + pair[0] + ", known are " + known.keySet());
+         scenario.weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+         if (scenario.weight > 0)
+            result.add(scenario);
+      }//end for
+      if (result.isEmpty())
+         throw new IllegalArgumentException("no scenario in the mix " + mix);
+      return result;
+   }//end parseMix
+
+   static int[] parseInts (String list) {
+      String[] parts = list.split(",");
+      int[] values = new int[parts.length];
+      for (int i = 0; i < parts.length; ++i)
+         values[i] = Integer.parseInt(parts[i].trim());
+      return values;
+   }//end parseInts
+
+}//end WorkloadDriver
@@ -0,0 +1,22 @@
+-- Lookups of a user's connections from the receiving side
+-- (FriendList, AcceptorReject, ConnectionReach) filter on connectionId,
+-- which the (userId, connectionId) primary key cannot serve.
+DROP INDEX connection_usr_connectionid_idx;
+CREATE INDEX connection_usr_connectionid_idx ON CONNECTION_USR(connectionId);
+
+-- Keyset pages of a user's inbox (Inbox) read received and sent messages
+-- newest first from (sendTime, msgId).  The partial indexes only hold the
+-- messages still visible to that side.
+DROP INDEX message_receiver_time_idx;
+CREATE INDEX message_receiver_time_idx ON MESSAGE(receiverId, sendTime, msgId) WHERE deleteStatus IN (0, 2);
+DROP INDEX message_sender_time_idx;
+CREATE INDEX message_sender_time_idx ON MESSAGE(senderId, sendTime, msgId) WHERE deleteStatus IN (0, 1);
+
+-- MessageCompactor finds the messages both sides deleted in msgId order.
+DROP INDEX message_deleted_idx;
+CREATE INDEX message_deleted_idx ON MESSAGE(msgId) WHERE deleteStatus = 3;
+
+-- MessageSearch matches the words of the contents with full text search;
+-- the planner ANDs this index with the sender and receiver indexes.
+DROP INDEX message_contents_idx;
+CREATE INDEX message_contents_idx ON MESSAGE USING gin (to_tsvector('english', contents));
@@ -0,0 +1,127 @@
+-- The MESSAGE table of an extra message shard (MessageShards), a database
+-- of its own, e.g. created with createdb and loaded for shard 1 with
+--   psql -v shard=1 -p $PGPORT $SHARD_DB < sql/src/create_message_shard.sql
+-- The users live in the main database, so senderId and receiverId have
+-- no foreign keys here; ProfNetwork checks the receiver before sending.
+DROP TABLE MESSAGE;
+DROP TABLE MESSAGE_COUNTERS;
+DROP SEQUENCE message_id_seq;
+DROP FUNCTION incr_message_num();
+DROP FUNCTION count_messages();
+DROP LANGUAGE plpgsql;
+
+CREATE TABLE MESSAGE(
+	msgId integer UNIQUE NOT NULL, 
+	senderId char(50) NOT NULL,
+	receiverId char(50) NOT NULL,
+	contents char(500) NOT NULL,
+	sendTime timestamp,
+	deleteStatus integer,
+	status char(30) NOT NULL,
+	PRIMARY KEY(msgId));
+
+CREATE TABLE MESSAGE_COUNTERS(
+	userId char(50) NOT NULL,
+	unread integer NOT NULL DEFAULT 0,
+	received integer NOT NULL DEFAULT 0,
+	sent integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(userId));
+
+CREATE INDEX message_receiver_time_idx ON MESSAGE(receiverId, sendTime, msgId) WHERE deleteStatus IN (0, 2);
+CREATE INDEX message_sender_time_idx ON MESSAGE(senderId, sendTime, msgId) WHERE deleteStatus IN (0, 1);
+CREATE INDEX message_deleted_idx ON MESSAGE(msgId) WHERE deleteStatus = 3;
+CREATE INDEX message_contents_idx ON MESSAGE USING gin (to_tsvector('english', contents));
+
+CREATE LANGUAGE plpgsql;
+
+-- The sequence keeps to the shard's own msgId range, shard << 27 to
+-- ((shard + 1) << 27) - 1; ProfNetwork checks the bounds when it connects.
+SELECT set_config('profnetwork.shard', :'shard', false);
+DO $$
+DECLARE
+  k bigint := current_setting('profnetwork.shard')::bigint;
+BEGIN
+  EXECUTE format('CREATE SEQUENCE message_id_seq MINVALUE %s MAXVALUE %s START WITH %s',
+                 k << 27, ((k + 1) << 27) - 1, k << 27);
+END
+$$;
+CREATE OR REPLACE FUNCTION incr_message_num()
+RETURNS "trigger" AS
+$BODY$
+  BEGIN
+    IF NEW.msgId IS NULL THEN
+      NEW.msgId := nextval('message_id_seq');
+    END IF;
+    IF NEW.sendTime IS NULL THEN
+      NEW.sendTime := current_timestamp;
+    END IF;
+    IF NEW.deleteStatus IS NULL THEN
+      NEW.deleteStatus := 0;
+    END IF;
+    IF NEW.status IS NULL THEN
+      NEW.status := 'Sent';
+    END IF;
+    return NEW;
+  END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER name BEFORE INSERT
+ON message FOR EACH ROW 
+EXECUTE PROCEDURE incr_message_num();
+
+-- the shard's part of the counts MessageCounters shows, counted once per
+-- statement as in triggers.sql.
+CREATE OR REPLACE FUNCTION count_messages()
+RETURNS "trigger" AS
+$BODY$
+  DECLARE
+    changed text;
+  BEGIN
+    -- the rows the statement changed and the sign they count with.
+    IF TG_OP = 'INSERT' THEN
+      changed := 'SELECT senderId, receiverId, deleteStatus, status, 1 AS sign FROM new_rows';
+    ELSIF TG_OP = 'DELETE' THEN
+      changed := 'SELECT senderId, receiverId, deleteStatus, status, -1 AS sign FROM old_rows';
+    ELSE
+      changed := 'SELECT senderId, receiverId, deleteStatus, status, -1 AS sign FROM old_rows'
+        || ' UNION ALL SELECT senderId, receiverId, deleteStatus, status, 1 FROM new_rows';
+    END IF;
+    -- a side counts the messages it has not deleted, as Inbox shows them;
+    -- users whose counts did not change are left alone.
+    EXECUTE 'INSERT INTO message_counters(userId, unread, received, sent)'
+      || ' SELECT userId, sum(unread), sum(received), sum(sent) FROM ('
+      || ' SELECT receiverId AS userId, COALESCE(sum(sign) FILTER (WHERE status = ''Sent''), 0) AS unread,'
+      || ' sum(sign) AS received, 0 AS sent FROM (' || changed || ') c'
+      || ' WHERE deleteStatus IS NULL OR deleteStatus IN (0, 2) GROUP BY receiverId'
+      || ' UNION ALL'
+      || ' SELECT senderId, 0, 0, sum(sign) FROM (' || changed || ') c'
+      || ' WHERE deleteStatus IS NULL OR deleteStatus IN (0, 1) GROUP BY senderId'
+      || ') counts GROUP BY userId HAVING sum(unread) <> 0 OR sum(received) <> 0 OR sum(sent) <> 0'
+      || ' ON CONFLICT (userId) DO UPDATE SET unread = message_counters.unread + EXCLUDED.unread,'
+      || ' received = message_counters.received + EXCLUDED.received, sent = message_counters.sent + EXCLUDED.sent';
+    RETURN NULL;
+  END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- transition tables allow one event per trigger.
+CREATE TRIGGER message_counters_insert AFTER INSERT ON message
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE count_messages();
+CREATE TRIGGER message_counters_update AFTER UPDATE ON message
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE count_messages();
+CREATE TRIGGER message_counters_delete AFTER DELETE ON message
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE count_messages();
+
+-- the counts of the messages already there.
+DELETE FROM message_counters;
+INSERT INTO message_counters(userId, unread, received, sent)
+  SELECT userId, sum(unread), sum(received), sum(sent) FROM (
+    SELECT receiverId AS userId, count(*) FILTER (WHERE status = 'Sent') AS unread, count(*) AS received, 0 AS sent
+      FROM message WHERE deleteStatus IS NULL OR deleteStatus IN (0, 2) GROUP BY receiverId
+    UNION ALL
+    SELECT senderId, 0, 0, count(*) FROM message WHERE deleteStatus IS NULL OR deleteStatus IN (0, 1) GROUP BY senderId
+  ) counts GROUP BY userId;
@@ -1,6 +1,9 @@
 DROP TABLE WORK_EXPR;
 DROP TABLE EDUCATIONAL_DETAILS;
 DROP TABLE MESSAGE;
+DROP TABLE MESSAGE_SHARD_MAP;
+DROP TABLE MESSAGE_COUNTERS;
+DROP TABLE CONNECTION_COUNTERS;
 DROP TABLE CONNECTION_USR;
 DROP TABLE USR;
 
@@ -45,6 +48,13 @@ CREATE TABLE MESSAGE(
   FOREIGN KEY(senderId) REFERENCES USR(userId),
   FOREIGN KEY(receiverId) REFERENCES USR(userId));
 
+-- Which message shard each of the 1024 conversation buckets is on
+-- (MessageShards); buckets without a row are in this database.
+CREATE TABLE MESSAGE_SHARD_MAP(
+	bucket integer NOT NULL,
+	shard integer NOT NULL,
+	PRIMARY KEY(bucket));
+
 CREATE TABLE CONNECTION_USR(
 	userId char(50) NOT NULL, 
 	connectionId char(50) NOT NULL, 
@@ -52,3 +62,18 @@ CREATE TABLE CONNECTION_USR(
 	PRIMARY KEY(userId,connectionId),
   FOREIGN KEY(userId) REFERENCES USR(userId),
   FOREIGN KEY(connectionId) REFERENCES USR(userId));
+
+-- Per user counts kept by the triggers in triggers.sql, so the login
+-- banner (MessageCounters) reads one row instead of counting.  Each
+-- message shard counts its own messages.
+CREATE TABLE MESSAGE_COUNTERS(
+	userId char(50) NOT NULL,
+	unread integer NOT NULL DEFAULT 0,
+	received integer NOT NULL DEFAULT 0,
+	sent integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(userId));
+
+CREATE TABLE CONNECTION_COUNTERS(
+	userId char(50) NOT NULL,
+	pending integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(userId));
@@ -1,6 +1,8 @@
 /* Using CSV file format for load data */
-\COPY usr FROM '~/Courses/cs166/CS166_Project/data/usr.csv' WITH DELIMITER ',' CSV
-\COPY work_expr FROM '~/Courses/cs166/CS166_Project/data/work_expr.csv' WITH DELIMITER ',' CSV
-\COPY educational_details FROM '~/Courses/cs166/CS166_Project/data/educational_details.csv' WITH DELIMITER ',' CSV
-\COPY connection_usr FROM '~/Courses/cs166/CS166_Project/data/connection_usr.csv' WITH DELIMITER ',' CSV
-\COPY message FROM '~/Courses/cs166/CS166_Project/data/message.csv' WITH DELIMITER ',' CSV
+/* Paths are relative to the repository root, create_db.sh runs psql from there. */
+/* There is no message.csv yet; java ProfNetwork <dbname> <port> <user> --load data */
+/* also loads it when present, rejecting bad rows instead of aborting. */
+\COPY usr FROM 'data/usr.csv' WITH DELIMITER ',' CSV
+\COPY work_expr FROM 'data/work_expr.csv' WITH DELIMITER ',' CSV
+\COPY educational_details FROM 'data/educational_details.csv' WITH DELIMITER ',' CSV
+\COPY connection_usr FROM 'data/connection_usr.csv' WITH DELIMITER ',' CSV
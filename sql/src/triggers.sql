@@ -4,19 +4,33 @@
 -- June 6, 2015
 DROP SEQUENCE message_id_seq;
 DROP FUNCTION incr_message_num();
+DROP FUNCTION count_messages();
+DROP FUNCTION count_connections();
 DROP LANGUAGE plpgsql;
 
-CREATE SEQUENCE message_id_seq START WITH 50000;
+-- the main database is message shard 0 and keeps to its msgId range,
+-- 1 to (1 << 27) - 1, so the extra shards' ids never collide with it.
+CREATE SEQUENCE message_id_seq START WITH 50000 MAXVALUE 134217727;
 
 CREATE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION incr_message_num()
 RETURNS "trigger" AS
 $BODY$
   BEGIN
-    NEW.msgId := nextval('message_id_seq');
-    NEW.sendTime := current_timestamp;
-    NEW.deleteStatus := 0;
-    NEW.status := 'Sent';
+    -- the Java layer reserves msgIds in blocks and supplies them itself,
+    -- defaults are only filled in for values left out of the insert.
+    IF NEW.msgId IS NULL THEN
+      NEW.msgId := nextval('message_id_seq');
+    END IF;
+    IF NEW.sendTime IS NULL THEN
+      NEW.sendTime := current_timestamp;
+    END IF;
+    IF NEW.deleteStatus IS NULL THEN
+      NEW.deleteStatus := 0;
+    END IF;
+    IF NEW.status IS NULL THEN
+      NEW.status := 'Sent';
+    END IF;
     return NEW;
   END;
 $BODY$
@@ -25,3 +39,86 @@ LANGUAGE plpgsql VOLATILE;
 CREATE TRIGGER name BEFORE INSERT
 ON message FOR EACH ROW 
 EXECUTE PROCEDURE incr_message_num();
+
+-- Counts per user for the login banner (MessageCounters): unread,
+-- received and sent messages, and connection requests waiting for an
+-- answer, kept in the same transaction as the rows they count.  Messages
+-- are counted once per statement from its transition tables, so a
+-- multi-row INSERT updates each user's counts once, not once per row.
+CREATE OR REPLACE FUNCTION count_messages()
+RETURNS "trigger" AS
+$BODY$
+  DECLARE
+    changed text;
+  BEGIN
+    -- the rows the statement changed and the sign they count with.
+    IF TG_OP = 'INSERT' THEN
+      changed := 'SELECT senderId, receiverId, deleteStatus, status, 1 AS sign FROM new_rows';
+    ELSIF TG_OP = 'DELETE' THEN
+      changed := 'SELECT senderId, receiverId, deleteStatus, status, -1 AS sign FROM old_rows';
+    ELSE
+      changed := 'SELECT senderId, receiverId, deleteStatus, status, -1 AS sign FROM old_rows'
+        || ' UNION ALL SELECT senderId, receiverId, deleteStatus, status, 1 FROM new_rows';
+    END IF;
+    -- a side counts the messages it has not deleted, as Inbox shows them;
+    -- users whose counts did not change are left alone.
+    EXECUTE 'INSERT INTO message_counters(userId, unread, received, sent)'
+      || ' SELECT userId, sum(unread), sum(received), sum(sent) FROM ('
+      || ' SELECT receiverId AS userId, COALESCE(sum(sign) FILTER (WHERE status = ''Sent''), 0) AS unread,'
+      || ' sum(sign) AS received, 0 AS sent FROM (' || changed || ') c'
+      || ' WHERE deleteStatus IS NULL OR deleteStatus IN (0, 2) GROUP BY receiverId'
+      || ' UNION ALL'
+      || ' SELECT senderId, 0, 0, sum(sign) FROM (' || changed || ') c'
+      || ' WHERE deleteStatus IS NULL OR deleteStatus IN (0, 1) GROUP BY senderId'
+      || ') counts GROUP BY userId HAVING sum(unread) <> 0 OR sum(received) <> 0 OR sum(sent) <> 0'
+      || ' ON CONFLICT (userId) DO UPDATE SET unread = message_counters.unread + EXCLUDED.unread,'
+      || ' received = message_counters.received + EXCLUDED.received, sent = message_counters.sent + EXCLUDED.sent';
+    RETURN NULL;
+  END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- transition tables allow one event per trigger.
+CREATE TRIGGER message_counters_insert AFTER INSERT ON message
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE count_messages();
+CREATE TRIGGER message_counters_update AFTER UPDATE ON message
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE count_messages();
+CREATE TRIGGER message_counters_delete AFTER DELETE ON message
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE count_messages();
+
+-- the counts of the messages already there.
+DELETE FROM message_counters;
+INSERT INTO message_counters(userId, unread, received, sent)
+  SELECT userId, sum(unread), sum(received), sum(sent) FROM (
+    SELECT receiverId AS userId, count(*) FILTER (WHERE status = 'Sent') AS unread, count(*) AS received, 0 AS sent
+      FROM message WHERE deleteStatus IS NULL OR deleteStatus IN (0, 2) GROUP BY receiverId
+    UNION ALL
+    SELECT senderId, 0, 0, count(*) FROM message WHERE deleteStatus IS NULL OR deleteStatus IN (0, 1) GROUP BY senderId
+  ) counts GROUP BY userId;
+
+CREATE OR REPLACE FUNCTION count_connections()
+RETURNS "trigger" AS
+$BODY$
+  BEGIN
+    IF TG_OP <> 'INSERT' AND OLD.status = 'Request' THEN
+      UPDATE connection_counters SET pending = pending - 1 WHERE userId = OLD.connectionId;
+    END IF;
+    IF TG_OP <> 'DELETE' AND NEW.status = 'Request' THEN
+      INSERT INTO connection_counters(userId, pending) VALUES (NEW.connectionId, 1)
+        ON CONFLICT (userId) DO UPDATE SET pending = connection_counters.pending + 1;
+    END IF;
+    RETURN NULL;
+  END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER connection_counters AFTER INSERT OR UPDATE OR DELETE
+ON connection_usr FOR EACH ROW
+EXECUTE PROCEDURE count_connections();
+
+DELETE FROM connection_counters;
+INSERT INTO connection_counters(userId, pending)
+  SELECT connectionId, count(*) FROM connection_usr WHERE status = 'Request' GROUP BY connectionId;